@@ -0,0 +1,79 @@
+package io.kersten.thefuzz;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generating whole tests of a given length, with and without writing them
+ * out. Dividing by length shows whether longer tests cost more per
+ * instruction.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class EndToEndBenchmark {
+
+    @Param({"100", "1000", "10000", "100000"})
+    public int length;
+
+    private TestGenerator generator;
+
+    private int iteration = 0;
+
+    // Throws the text away, so only rendering it is measured.
+    private final Writer nowhere = new Writer() {
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+        }
+
+        @Override
+        public void write(String str) {
+        }
+
+        @Override
+        public void write(int c) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        generator = new TestGenerator(Programs.ALL, length, 30000, "bench",
+                1);
+    }
+
+    @Benchmark
+    public Program generate() {
+        return generator.generate(iteration++);
+    }
+
+    @Benchmark
+    public Program generateAndWrite() throws IOException {
+        Program p = generator.generate(iteration);
+        generator.writeTest(nowhere, iteration++, p);
+        return p;
+    }
+}
@@ -0,0 +1,56 @@
+package io.kersten.thefuzz;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 10000-opcode tests generated whole, against the same tests generated in
+ * families of 16 sharing a prefix, where each member only generates the
+ * last suffix opcodes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class FamilyBenchmark {
+
+    private static final int LENGTH = 10000;
+
+    @Param({"100", "1000"})
+    public int suffix;
+
+    private TestGenerator whole;
+    private TestGenerator family;
+
+    private int iteration = 0;
+
+    @Setup
+    public void setUp() {
+        whole = new TestGenerator(Programs.ALL, LENGTH, 30000, "bench", 1);
+        family = new TestGenerator(Programs.ALL, LENGTH, 30000, "bench", 1);
+        family.setFamily(16, LENGTH - suffix);
+    }
+
+    @Benchmark
+    public Program generateWhole() {
+        return whole.generate(iteration++);
+    }
+
+    @Benchmark
+    public Program generateMember() {
+        return family.generate(iteration++);
+    }
+}
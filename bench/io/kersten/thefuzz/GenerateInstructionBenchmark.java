@@ -0,0 +1,46 @@
+package io.kersten.thefuzz;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of generating one instruction of each opcode. The program keeps
+ * growing for the whole iteration, the same as it does while a long test is
+ * being generated.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GenerateInstructionBenchmark {
+
+    @Param({"ADD", "SUB", "NAND", "XOR", "SRA", "SRL", "SLL", "LW", "SW",
+            "LHB", "LLB", "B"})
+    public IOpcode.Opcode opcode;
+
+    private Program program;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        program = Programs.warmedUp(30000, 1);
+    }
+
+    @Benchmark
+    public int generateInstruction() {
+        return InstructionFactory.generateInstruction(program, opcode);
+    }
+}
@@ -0,0 +1,71 @@
+package io.kersten.thefuzz;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning instructions and whole programs into text.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PrintBenchmark {
+
+    private static final int INSTRUCTIONS = 1000;
+
+    @Param({"100", "10000"})
+    public int length;
+
+    private Program program;
+
+    private int[] words = new int[INSTRUCTIONS];
+
+    private LabelTable labels;
+
+    @Setup
+    public void setUp() {
+        program = Programs.generated(length, 1);
+
+        Program source = Programs.generated(INSTRUCTIONS, 2);
+        for (int i = 0; i < INSTRUCTIONS; i++) {
+            words[i] = source.getInstructions().get(i);
+        }
+        labels = source.getLabels();
+    }
+
+    /**
+     * Instruction.print, per instruction. Doesn't depend on length.
+     */
+    @Benchmark
+    @OperationsPerInvocation(INSTRUCTIONS)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void instructionPrint(Blackhole bh) {
+        for (int word : words) {
+            bh.consume(Instruction.print(word, labels, "; R1=2"));
+        }
+    }
+
+    /**
+     * Program.print of a whole terminated program of length opcodes.
+     */
+    @Benchmark
+    public String programPrint() {
+        return program.print();
+    }
+}
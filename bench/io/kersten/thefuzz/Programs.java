@@ -0,0 +1,39 @@
+package io.kersten.thefuzz;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Programs for the benchmarks to work on.
+ */
+final class Programs {
+
+    // Every opcode the generator can actually produce.
+    static final List<String> ALL = Arrays.asList("ADD", "SUB", "NAND",
+            "XOR", "SRA", "SRL", "SLL", "LW", "SW", "LHB", "LLB", "B");
+
+    private Programs() {
+    }
+
+    /**
+     * @return A program that already has some valid registers and memory,
+     * so every opcode can be generated into it straight away.
+     */
+    static Program warmedUp(int dataOffset, long seed) {
+        Program p = new Program(dataOffset, seed);
+        for (int i = 0; i < 16; i++) {
+            InstructionFactory.generateInstruction(p, IOpcode.Opcode.LLB);
+            InstructionFactory.generateInstruction(p, IOpcode.Opcode.SW);
+        }
+
+        return p;
+    }
+
+    /**
+     * @return A terminated program of length opcodes drawn from ALL.
+     */
+    static Program generated(int length, long seed) {
+        return new TestGenerator(ALL, length, 30000, "bench", seed).generate
+                (0);
+    }
+}
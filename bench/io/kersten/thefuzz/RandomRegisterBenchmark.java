@@ -0,0 +1,52 @@
+package io.kersten.thefuzz;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of Program.getRandomRegister, depending on how many registers are
+ * valid. Fewer valid registers means more draws get thrown away.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RandomRegisterBenchmark {
+
+    // Valid registers besides R0.
+    @Param({"0", "3", "14"})
+    public int valid;
+
+    private Program program;
+
+    @Setup
+    public void setUp() {
+        program = new Program(0, 1);
+        for (int r = 1; r <= valid; r++) {
+            program.setRegisterValid(Program.registerFromNumber(r));
+        }
+    }
+
+    @Benchmark
+    public Register anyRegister() {
+        return program.getRandomRegister(false);
+    }
+
+    @Benchmark
+    public Register validRegister() {
+        return program.getRandomRegister(true);
+    }
+}
@@ -0,0 +1,69 @@
+package io.kersten.thefuzz;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per instruction of InstructionFactory.simulateLastInstruction,
+ * replaying a generated program from the start like Program.write does.
+ * With comments on, that includes filling in each line's Annotation and
+ * writing it out.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SimulateBenchmark {
+
+    private static final int LENGTH = 10000;
+
+    @Param({"true", "false"})
+    public boolean comments;
+
+    private Program program;
+
+    private Annotation note = new Annotation();
+
+    // Comments are written out too, to count what it costs to render them.
+    private Writer sink = Writer.nullWriter();
+
+    @Setup
+    public void setUp() {
+        program = Programs.generated(LENGTH, 1);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LENGTH)
+    public Program replay() throws IOException {
+        Program replay = new Program(program.getMemoryDataOffset(), program
+                .getSeed());
+        InstructionStream instrs = program.getInstructions();
+
+        // Covers the instructions the opcodes expanded into, which is a few
+        // more than LENGTH.
+        for (int i = 0; i < instrs.size(); i++) {
+            InstructionFactory.simulateLastInstruction(replay, instrs.get(i),
+                    comments ? note : null);
+            if (comments)
+                note.write(sink);
+        }
+
+        return replay;
+    }
+}
@@ -0,0 +1,47 @@
+package io.kersten.thefuzz;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of Program.terminate. A program can only be terminated once, so a
+ * fresh one is made for every call; that setup isn't measured, but at this
+ * size JMH's per-invocation timing overhead shows up in the numbers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TerminateBenchmark {
+
+    private Program program;
+
+    private long seed = 0;
+
+    @Setup(Level.Invocation)
+    public void setUp() {
+        program = Programs.warmedUp(30000, seed++);
+        for (int i = 0; i < 8; i++) {
+            InstructionFactory.generateInstruction(program, IOpcode.Opcode.B);
+        }
+    }
+
+    @Benchmark
+    public Program terminate() {
+        program.terminate();
+        return program;
+    }
+}
@@ -0,0 +1,328 @@
+package io.kersten.thefuzz;
+
+/**
+ * Decides which addresses a program's stores write to and its loads read
+ * from, so tests can exercise a memory system with a particular pattern of
+ * accesses rather than only uniformly random ones:
+ *
+ * - random: any address, uniformly (the default).
+ * - sequential: one word after another.
+ * - stride:N: every Nth word.
+ * - working-set:K: anywhere within K lines, picked at random up front.
+ * - conflict: anywhere within lines that all map to the same cache set.
+ *
+ * Lines are lineSize words, and a cache has sets sets, so line L maps to
+ * set L % sets. Stores stay in [0, limit], where limit keeps addresses
+ * positive in 16 bits and inside the data segment. Loads can only read
+ * addresses that have been stored to, so they follow the pattern where
+ * stores have been and fall back to any valid address where they haven't.
+ * Every choice takes a fixed number of random draws and constant time: a
+ * load is picked from the memory's list of stored-to addresses, never by
+ * searching memory for one.
+ *
+ * An allocator keeps per-program state (where a sequence is up to, which
+ * lines are in the working set), set up from the program's own random
+ * stream the first time it's used. Each program gets its own copy().
+ */
+public abstract class AddressAllocator {
+
+    /**
+     * Any address, uniformly, with the default cache geometry. Has no state,
+     * so it can be shared.
+     */
+    public static final AddressAllocator RANDOM = new Random(8, 64);
+
+    protected final int lineSize;
+    protected final int sets;
+
+    // The mode, as parse() would take it.
+    private final String mode;
+
+    protected AddressAllocator(String mode, int lineSize, int sets) {
+        this.mode = mode;
+        this.lineSize = lineSize;
+        this.sets = sets;
+    }
+
+    /**
+     * Make an allocator from its mode, as given to --mem-pattern.
+     *
+     * @param lineSize Words per cache line.
+     * @param sets     Sets in the cache.
+     */
+    public static AddressAllocator parse(String mode, int lineSize, int sets) {
+        if (lineSize < 1 || sets < 1) {
+            throw new RuntimeException("The line size and number of sets " +
+                    "have to be positive.");
+        }
+
+        String name = mode.toLowerCase();
+        int argument = -1;
+        int colon = name.indexOf(':');
+        if (colon >= 0) {
+            try {
+                argument = Integer.parseInt(name.substring(colon + 1));
+            } catch (NumberFormatException nfe) {
+                throw new RuntimeException("Not a number in " + mode);
+            }
+            if (argument < 1) {
+                throw new RuntimeException("The number in " + mode + " has " +
+                        "to be positive.");
+            }
+            name = name.substring(0, colon);
+        }
+
+        if (name.equals("random") && argument < 0)
+            return new Random(lineSize, sets);
+        if (name.equals("sequential") && argument < 0)
+            return new Stride(name, lineSize, sets, 1);
+        if (name.equals("stride") && argument > 0)
+            return new Stride(name + ":" + argument, lineSize, sets, argument);
+        if (name.equals("working-set") && argument > 0)
+            return new WorkingSet(name + ":" + argument, lineSize, sets,
+                    argument);
+        if (name.equals("conflict") && argument < 0)
+            return new Conflict(lineSize, sets);
+
+        throw new RuntimeException("Memory pattern must be random, " +
+                "sequential, stride:N, working-set:K or conflict, not " + mode);
+    }
+
+    /**
+     * @return The mode, as given to parse().
+     */
+    public String getMode() {
+        return mode;
+    }
+
+    public int getLineSize() {
+        return lineSize;
+    }
+
+    public int getSets() {
+        return sets;
+    }
+
+    /**
+     * @return The highest address a store can go to in this program.
+     */
+    public static int limit(Program p) {
+        return Math.min((1 << 15) - 1, DataMemory.SIZE - p
+                .getMemoryDataOffset() - 1);
+    }
+
+    /**
+     * @return Whether this just picks addresses at random, with no pattern
+     * to keep to.
+     */
+    public boolean isRandom() {
+        return false;
+    }
+
+    /**
+     * @return A copy with the same state, to carry on from here in another
+     * program.
+     */
+    public abstract AddressAllocator copy();
+
+    /**
+     * @return The address for the next store, in [0, limit(p)].
+     */
+    public abstract int nextStore(Program p);
+
+    /**
+     * @return The address for the next load, one that's been stored to.
+     * The program has to have at least one.
+     */
+    public abstract int nextLoad(Program p);
+
+    /**
+     * @return Any address that's been stored to, uniformly.
+     */
+    protected static int anyValid(Program p) {
+        return p.getMemory().getValid(p.getRandom().nextInt(p.getMemory()
+                .getValidCount()));
+    }
+
+    /**
+     * @return A random address in the line starting at line if it's been
+     * stored to, or else any that has. Only patterned stores are made with
+     * an allocator that isn't random, so either way it's in the pattern.
+     */
+    protected int validInLine(Program p, int line) {
+        int a = inLine(p, line);
+        if (p.getMemory().isValid(a))
+            return a;
+        return anyValid(p);
+    }
+
+    /**
+     * @return A random address in the line starting at line.
+     */
+    protected int inLine(Program p, int line) {
+        return line + p.getRandom().nextInt(Math.min(lineSize, limit(p) + 1
+                - line));
+    }
+
+    private static class Random extends AddressAllocator {
+        Random(int lineSize, int sets) {
+            super("random", lineSize, sets);
+        }
+
+        @Override
+        public boolean isRandom() {
+            return true;
+        }
+
+        @Override
+        public AddressAllocator copy() {
+            return this;
+        }
+
+        @Override
+        public int nextStore(Program p) {
+            return p.getRandom().nextInt(limit(p) + 1);
+        }
+
+        @Override
+        public int nextLoad(Program p) {
+            return anyValid(p);
+        }
+    }
+
+    /**
+     * Stores walk forward stride words at a time from a random line,
+     * wrapping around at the limit; loads walk after them, taking the
+     * stored addresses in the order they were stored.
+     */
+    private static class Stride extends AddressAllocator {
+        private final int stride;
+
+        // Where the next store goes; -1 until the first store.
+        private int storeAt = -1;
+
+        // Index of the next load in the memory's list of stored addresses,
+        // which is in the order they were first stored to.
+        private int loadIndex = 0;
+
+        Stride(String mode, int lineSize, int sets, int stride) {
+            super(mode, lineSize, sets);
+            this.stride = stride;
+        }
+
+        @Override
+        public AddressAllocator copy() {
+            Stride s = new Stride(getMode(), lineSize, sets, stride);
+            s.storeAt = storeAt;
+            s.loadIndex = loadIndex;
+            return s;
+        }
+
+        @Override
+        public int nextStore(Program p) {
+            int space = limit(p) + 1;
+            if (storeAt < 0)
+                storeAt = p.getRandom().nextInt(space) / lineSize * lineSize;
+
+            int addr = storeAt;
+            storeAt = (int) (((long) storeAt + stride) % space);
+            return addr;
+        }
+
+        @Override
+        public int nextLoad(Program p) {
+            // Start again from the first store once they've all been read.
+            DataMemory memory = p.getMemory();
+            if (loadIndex >= memory.getValidCount())
+                loadIndex = 0;
+            return memory.getValid(loadIndex++);
+        }
+    }
+
+    /**
+     * Every access goes to one of a fixed set of lines.
+     */
+    private static class WorkingSet extends AddressAllocator {
+        private final int size;
+
+        // The first address of each line in the set; null until first use.
+        private int[] lines = null;
+
+        WorkingSet(String mode, int lineSize, int sets, int size) {
+            super(mode, lineSize, sets);
+            this.size = size;
+        }
+
+        @Override
+        public AddressAllocator copy() {
+            WorkingSet w = new WorkingSet(getMode(), lineSize, sets, size);
+            w.lines = lines;
+            return w;
+        }
+
+        private int pickLine(Program p) {
+            if (lines == null) {
+                int count = (limit(p) + 1 + lineSize - 1) / lineSize;
+                lines = new int[size];
+                for (int i = 0; i < size; i++) {
+                    lines[i] = p.getRandom().nextInt(count) * lineSize;
+                }
+            }
+
+            return lines[p.getRandom().nextInt(size)];
+        }
+
+        @Override
+        public int nextStore(Program p) {
+            return inLine(p, pickLine(p));
+        }
+
+        @Override
+        public int nextLoad(Program p) {
+            return validInLine(p, pickLine(p));
+        }
+    }
+
+    /**
+     * Every access goes to a line that maps to one cache set, chosen at
+     * random, so they all fight over that set.
+     */
+    private static class Conflict extends AddressAllocator {
+        // The set, and how many lines in range map to it; set is -1 until
+        // first use.
+        private int set = -1;
+        private int tags;
+
+        Conflict(int lineSize, int sets) {
+            super("conflict", lineSize, sets);
+        }
+
+        @Override
+        public AddressAllocator copy() {
+            Conflict c = new Conflict(lineSize, sets);
+            c.set = set;
+            c.tags = tags;
+            return c;
+        }
+
+        private int pickLine(Program p) {
+            if (set < 0) {
+                int count = (limit(p) + 1 + lineSize - 1) / lineSize;
+                set = p.getRandom().nextInt(Math.min(sets, count));
+                tags = (count - 1 - set) / sets + 1;
+            }
+
+            return (p.getRandom().nextInt(tags) * sets + set) * lineSize;
+        }
+
+        @Override
+        public int nextStore(Program p) {
+            return inLine(p, pickLine(p));
+        }
+
+        @Override
+        public int nextLoad(Program p) {
+            return validInLine(p, pickLine(p));
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package io.kersten.thefuzz;
+
+/**
+ * What the ALU operations and branch conditions do. The generator's
+ * simulation (InstructionFactory) and the Interpreter both go through here,
+ * so the expected state and the re-executed state can't drift apart.
+ *
+ * Each operation returns its outcome packed into one int: the 16-bit result
+ * in the low half and the flags it would set (FLAG_*) in the upper half.
+ * The flags are worked out on the full int result, before it gets cut down
+ * to 16 bits, the same as they always have been.
+ */
+public final class Alu {
+
+    public static final int FLAG_Z = 1;
+    public static final int FLAG_N = 2;
+    public static final int FLAG_V = 4;
+
+    // For each Condition (by ordinal), bit f is set if a branch on that
+    // condition is taken when the flags are f.
+    private static final int[] TAKEN = new int[Condition.values().length];
+
+    static {
+        for (Condition c : Condition.values()) {
+            for (int f = 0; f < 8; f++) {
+                boolean z = (f & FLAG_Z) != 0;
+                boolean n = (f & FLAG_N) != 0;
+                boolean v = (f & FLAG_V) != 0;
+                boolean taken;
+
+                switch (c) {
+                    case NEQ:
+                        taken = !z;
+                        break;
+                    case EQ:
+                        taken = z;
+                        break;
+                    case GT:
+                        taken = !z && !n;
+                        break;
+                    case LT:
+                        taken = n;
+                        break;
+                    case GTE:
+                        taken = !n;
+                        break;
+                    case LTE:
+                        taken = n || z;
+                        break;
+                    case OVFL:
+                        taken = v;
+                        break;
+                    case UNCOND:
+                        taken = true;
+                        break;
+                    default:
+                        taken = false;
+                }
+
+                if (taken)
+                    TAKEN[c.ordinal()] |= 1 << f;
+            }
+        }
+    }
+
+    private Alu() {
+    }
+
+    // Saturates on positive overflow.
+    public static int add(int arg1, int arg2) {
+        boolean v = arg1 + arg2 > (1 << 15) - 1;
+        return pack(Math.min(arg1 + arg2, (1 << 15) - 1), v);
+    }
+
+    // Saturates on negative overflow.
+    public static int sub(int arg1, int arg2) {
+        boolean v = arg1 - arg2 < -(1 << 15);
+        return pack(Math.max(arg1 - arg2, -(1 << 15)), v);
+    }
+
+    public static int nand(int arg1, int arg2) {
+        return zeroOnly(~(arg1 & arg2));
+    }
+
+    public static int xor(int arg1, int arg2) {
+        return zeroOnly(arg1 ^ arg2);
+    }
+
+    public static int sll(int arg1, int amount) {
+        return zeroOnly(arg1 << amount);
+    }
+
+    public static int srl(int arg1, int amount) {
+        return zeroOnly(arg1 >> amount);
+    }
+
+    public static int sra(int arg1, int amount) {
+        // This is tricky because we're doing these high-level on ints but
+        // need some zeros inserted down in the 16-bit range. So cast to
+        // short first.
+        return zeroOnly((short) arg1 >>> amount);
+    }
+
+    /**
+     * Run an ALU opcode on its two arguments (the second is the shift amount
+     * for the shifts).
+     *
+     * @return The packed outcome.
+     * @throws RuntimeException If opcode isn't one the ALU does.
+     */
+    public static int apply(IOpcode.Opcode opcode, int arg1, int arg2) {
+        switch (opcode) {
+            case ADD:
+                return add(arg1, arg2);
+            case SUB:
+                return sub(arg1, arg2);
+            case NAND:
+                return nand(arg1, arg2);
+            case XOR:
+                return xor(arg1, arg2);
+            case SLL:
+                return sll(arg1, arg2);
+            case SRL:
+                return srl(arg1, arg2);
+            case SRA:
+                return sra(arg1, arg2);
+            case INC:
+                throw new RuntimeException("INC currently not supported!");
+            default:
+                throw new RuntimeException("Not an ALU opcode: " + opcode);
+        }
+    }
+
+    /**
+     * @return The 16-bit result of a packed outcome.
+     */
+    public static short result(int outcome) {
+        return (short) outcome;
+    }
+
+    /**
+     * @return The FLAG_* bits of a packed outcome.
+     */
+    public static int flags(int outcome) {
+        return outcome >>> 16;
+    }
+
+    /**
+     * @param flags The current FLAG_* bits.
+     * @return Whether a branch on this condition is taken.
+     */
+    public static boolean conditionHolds(Condition cond, int flags) {
+        return conditionHolds(cond.ordinal(), flags);
+    }
+
+    /**
+     * Same as above, for callers which keep conditions as their ordinal.
+     */
+    public static boolean conditionHolds(int cond, int flags) {
+        return (TAKEN[cond] >>> flags & 1) != 0;
+    }
+
+    public static int flags(boolean z, boolean n, boolean v) {
+        return (z ? FLAG_Z : 0) | (n ? FLAG_N : 0) | (v ? FLAG_V : 0);
+    }
+
+    private static int pack(int result, boolean v) {
+        return result & 0xFFFF | flags(result == 0, result < 0, v) << 16;
+    }
+
+    // NAND, XOR and the shifts never report N or V.
+    private static int zeroOnly(int result) {
+        return result & 0xFFFF | (result == 0 ? FLAG_Z : 0) << 16;
+    }
+}
@@ -0,0 +1,190 @@
+package io.kersten.thefuzz;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * What one instruction did when it was simulated: the values it read, what
+ * it computed, which register or memory word it changed and which flags it
+ * set. InstructionFactory.simulateLastInstruction fills one in while the
+ * program is being written, and write() turns it into the instruction's
+ * comment straight onto the output, so no comment text is ever built up
+ * as Strings.
+ *
+ * One Annotation is reused for every instruction of a listing.
+ */
+public class Annotation {
+
+    // What kind of effect the instruction had.
+    static final int NONE = 0;
+    static final int LOAD = 1;
+    static final int STORE = 2;
+    static final int ALU = 3;
+    static final int LOAD_BYTE = 4;
+    static final int BRANCH = 5;
+
+    // The instruction's Instruction.NOTE_*: why the generator put it there.
+    int note;
+
+    // Whether this is a label (only the not-taken one has anything to say).
+    boolean label;
+
+    int effect;
+
+    // The register written, or read for STORE.
+    int target;
+
+    // LOAD/STORE: the address, and for STORE, the value stored.
+    int address;
+    int value;
+
+    // ALU: the operands, the operation and its result. For LOAD_BYTE the
+    // new value of the target goes in result.
+    int arg1;
+    int arg2;
+    IOpcode.Opcode operation;
+    int result;
+
+    // Whether the target was R0, so nothing changed.
+    boolean r0;
+
+    // BRANCH: the condition and whether it's taken.
+    Condition condition;
+    boolean taken;
+
+    // Which flags the instruction set (Alu.FLAG_* bits) and what to.
+    int flagsSet;
+    int flags;
+
+    // Scratch space for writing numbers without making Strings.
+    private final char[] digits = new char[11];
+
+    void reset(int note) {
+        this.note = note;
+        label = false;
+        effect = NONE;
+        r0 = false;
+        flagsSet = 0;
+    }
+
+    /**
+     * Write the comment text (what goes after the '#') for the instruction
+     * this describes.
+     */
+    public void write(Writer out) throws IOException {
+        if (label) {
+            if (note == Instruction.NOTE_NOT_TAKEN)
+                out.write("; failure case for wrongly taken branches");
+            return;
+        }
+
+        if (note == Instruction.NOTE_LW_ADDRESS || note == Instruction
+                .NOTE_SW_ADDRESS) {
+            out.write(operation == IOpcode.Opcode.LHB ? "; Load upper" :
+                    "; Load lower");
+            out.write(note == Instruction.NOTE_LW_ADDRESS ? " for lw" :
+                    " for sw");
+        }
+
+        switch (effect) {
+            case LOAD:
+                out.write("; R");
+                writeInt(out, target);
+                out.write("<-mem[");
+                writeInt(out, address);
+                out.write(']');
+                if (r0)
+                    out.write("; No change to R0");
+                break;
+            case STORE:
+                out.write("; R");
+                writeInt(out, target);
+                out.write('=');
+                writeInt(out, value);
+                out.write("->mem[");
+                writeInt(out, address);
+                out.write(']');
+                break;
+            case ALU:
+                out.write("; (");
+                if (operation == IOpcode.Opcode.XOR)
+                    out.write("~(");
+                writeInt(out, arg1);
+                out.write(symbol(operation));
+                writeInt(out, arg2);
+                if (operation == IOpcode.Opcode.XOR)
+                    out.write(')');
+                out.write('=');
+                writeInt(out, result);
+                out.write(')');
+                if (r0)
+                    out.write("; No change to R0");
+                break;
+            case LOAD_BYTE:
+                if (r0)
+                    out.write("; No change to R0");
+                out.write("; R");
+                writeInt(out, target);
+                out.write('=');
+                writeInt(out, result);
+                break;
+            case BRANCH:
+                out.write("; branch on ");
+                out.write(condition.name());
+                out.write(taken ? ", take = yes" : ", take = no");
+                break;
+        }
+
+        if ((flagsSet & Alu.FLAG_Z) != 0)
+            out.write((flags & Alu.FLAG_Z) != 0 ? "; Z->1" : "; Z->0");
+        if ((flagsSet & Alu.FLAG_N) != 0)
+            out.write((flags & Alu.FLAG_N) != 0 ? "; N->1" : "; N->0");
+        if ((flagsSet & Alu.FLAG_V) != 0)
+            out.write((flags & Alu.FLAG_V) != 0 ? "; V->1" : "; V->0");
+    }
+
+    private static String symbol(IOpcode.Opcode operation) {
+        switch (operation) {
+            case ADD:
+                return "+";
+            case SUB:
+                return "-";
+            case NAND:
+                return "!&";
+            case XOR:
+                return "^";
+            case SLL:
+                return "<<";
+            case SRL:
+                return ">>";
+            case SRA:
+                return ">>>";
+            default:
+                throw new RuntimeException("Not an ALU operation: " +
+                        operation);
+        }
+    }
+
+    /**
+     * Same as out.write(String.valueOf(n)).
+     */
+    private void writeInt(Writer out, int n) throws IOException {
+        if (n == Integer.MIN_VALUE) {
+            out.write(String.valueOf(n));
+            return;
+        }
+
+        int pos = digits.length;
+        boolean negative = n < 0;
+        if (negative)
+            n = -n;
+        do {
+            digits[--pos] = (char) ('0' + n % 10);
+            n /= 10;
+        } while (n != 0);
+        if (negative)
+            digits[--pos] = '-';
+
+        out.write(digits, pos, digits.length - pos);
+    }
+}
@@ -0,0 +1,238 @@
+package io.kersten.thefuzz;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads a test back in from its .asm listing: the instructions go into an
+ * InstructionStream (the same form a generated Program keeps them in) and
+ * the expected state after the final HLT goes into a FinalState.
+ *
+ * Anything after a '#' is a comment. Full-line comments that look like the
+ * summary the generator writes ("# R3 = 12", "# Z = 0 N = 1 V = 0",
+ * "#    mem[40] = 7") make up the expected state.
+ */
+public class AsmParser {
+
+    private static final Pattern REGISTER_LINE = Pattern.compile
+            ("R(\\d+) = (-?\\d+|xxxx)");
+    private static final Pattern FLAGS_LINE = Pattern.compile
+            ("Z = ([01]) N = ([01]) V = ([01])");
+    private static final Pattern MEMORY_LINE = Pattern.compile
+            ("mem\\[(\\d+)\\] = (-?\\d+)");
+
+    private InstructionStream instructions = new InstructionStream();
+
+    private LabelTable labels = new LabelTable();
+
+    private FinalState expected = null;
+
+    // Which label ids have been defined, and which have been used.
+    private BitSet defined = new BitSet();
+    private BitSet used = new BitSet();
+
+    private AsmParser() {
+    }
+
+    public static AsmParser parse(File f) throws IOException {
+        Reader in = new InputStreamReader(new FileInputStream(f),
+                StandardCharsets.UTF_8);
+        try {
+            return parse(in, f.getName());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param in   The listing.
+     * @param name What to call it in error messages.
+     */
+    public static AsmParser parse(Reader in, String name) throws IOException {
+        AsmParser parser = new AsmParser();
+        BufferedReader lines = new BufferedReader(in, 1 << 16);
+
+        String line;
+        int number = 0;
+        while ((line = lines.readLine()) != null) {
+            number++;
+            try {
+                parser.parseLine(line);
+            } catch (RuntimeException re) {
+                throw new RuntimeException(name + ":" + number + ": " + re
+                        .getMessage());
+            }
+        }
+
+        BitSet used = parser.used;
+        for (int id = used.nextSetBit(0); id >= 0; id = used.nextSetBit(id +
+                1)) {
+            if (!parser.defined.get(id)) {
+                throw new RuntimeException(name + ": label " + parser.labels
+                        .getName(id) + " is never defined.");
+            }
+        }
+
+        return parser;
+    }
+
+    public InstructionStream getInstructions() {
+        return instructions;
+    }
+
+    public LabelTable getLabels() {
+        return labels;
+    }
+
+    /**
+     * @return The state listed after the program, or null if there isn't
+     * one.
+     */
+    public FinalState getExpected() {
+        return expected;
+    }
+
+    private void parseLine(String line) {
+        int hash = line.indexOf('#');
+        String code = (hash < 0 ? line : line.substring(0, hash)).trim();
+
+        if (code.length() == 0) {
+            if (hash >= 0)
+                parseSummary(line.substring(hash + 1).trim());
+            return;
+        }
+
+        // Labels, possibly with an instruction after them.
+        int colon = code.indexOf(':');
+        if (colon >= 0) {
+            int id = labels.intern(code.substring(0, colon).trim());
+            if (defined.get(id)) {
+                throw new RuntimeException("label " + labels.getName(id) +
+                        " is defined twice.");
+            }
+            defined.set(id);
+            instructions.add(Instruction.label(id));
+
+            code = code.substring(colon + 1).trim();
+            if (code.length() == 0)
+                return;
+        }
+
+        int space = code.indexOf(' ');
+        String mnemonic = space < 0 ? code : code.substring(0, space);
+        String[] args = space < 0 ? new String[0] : code.substring(space + 1)
+                .split(",");
+
+        IOpcode.Opcode opcode = IOpcode.fromMnemonic(mnemonic);
+        if (opcode == null) {
+            throw new RuntimeException("unknown instruction " + mnemonic);
+        }
+
+        IOpcode op = IOpcode.forOpcode(opcode);
+        if (args.length != op.getArgumentCount()) {
+            throw new RuntimeException(mnemonic + " takes " + op
+                    .getArgumentCount() + " arguments, not " + args.length);
+        }
+
+        if (opcode == IOpcode.Opcode.B) {
+            Condition cond;
+            try {
+                cond = Condition.valueOf(args[0].trim().toUpperCase());
+            } catch (IllegalArgumentException iae) {
+                throw new RuntimeException("unknown condition " + args[0]
+                        .trim());
+            }
+
+            int target = labels.intern(args[1].trim());
+            used.set(target);
+            instructions.add(Instruction.branch(cond, target));
+            return;
+        }
+
+        int[] values = new int[3];
+        for (int i = 0; i < args.length; i++) {
+            values[i] = parseArgument(args[i].trim(), op.getArgumentType(i));
+        }
+
+        instructions.add(Instruction.make(opcode, values[0], values[1],
+                values[2]));
+    }
+
+    private static int parseArgument(String arg, ArgumentType type) {
+        switch (type) {
+            case REGISTER:
+            case VREGISTER:
+                if (arg.length() > 1 && (arg.charAt(0) == 'R' || arg.charAt
+                        (0) == 'r')) {
+                    int r = parseNumber(arg.substring(1));
+                    if (r >= 0 && r < 16)
+                        return r;
+                }
+                throw new RuntimeException("not a register: " + arg);
+            case IMMEDIATE4:
+                return inRange(parseNumber(arg), -8, 7);
+            case IMMEDIATE8:
+                // Signed for LHB, unsigned for LLB; either way it's 8 bits.
+                return inRange(parseNumber(arg), -128, 255);
+            default:
+                throw new RuntimeException("can't parse a " + type + " here");
+        }
+    }
+
+    private static int inRange(int value, int min, int max) {
+        if (value < min || value > max) {
+            throw new RuntimeException(value + " doesn't fit in the " +
+                    "immediate.");
+        }
+
+        return value;
+    }
+
+    private static int parseNumber(String s) {
+        try {
+            return Integer.parseInt(s);
+        } catch (NumberFormatException nfe) {
+            throw new RuntimeException("not a number: " + s);
+        }
+    }
+
+    /**
+     * Pick up the expected state from the summary comment lines.
+     */
+    private void parseSummary(String comment) {
+        Matcher m = REGISTER_LINE.matcher(comment);
+        if (m.matches()) {
+            int r = parseNumber(m.group(1));
+            if (r < 16 && !m.group(2).equals("xxxx"))
+                expected().setRegister(r, (short) parseNumber(m.group(2)));
+            return;
+        }
+
+        m = FLAGS_LINE.matcher(comment);
+        if (m.matches()) {
+            expected().setFlags(Alu.flags(m.group(1).equals("1"), m.group(2)
+                    .equals("1"), m.group(3).equals("1")));
+            return;
+        }
+
+        m = MEMORY_LINE.matcher(comment);
+        if (m.matches()) {
+            expected().addMemory(parseNumber(m.group(1)), (short) parseNumber
+                    (m.group(2)));
+        }
+    }
+
+    private FinalState expected() {
+        if (expected == null)
+            expected = new FinalState();
+        return expected;
+    }
+}
@@ -0,0 +1,361 @@
+package io.kersten.thefuzz;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes a generated program into 16-bit machine words and writes memory
+ * images a simulator can load directly, so tests don't need to go through a
+ * separate assembler.
+ *
+ * Instruction formats:
+ * * ADD, SUB, NAND, XOR: opcode rd rs rt
+ * * SRA, SRL, SLL: opcode rd rs imm4
+ * * LW, SW: opcode rt rs offset4
+ * * LHB, LLB: opcode rd imm8
+ * * B: opcode ccc offset9, where the target is PC + 1 + offset
+ * * everything else: opcode 000000000000
+ *
+ * The image holds the program starting at address 0, followed by the data
+ * segment at memoryDataOffset. The generator always starts from zeroed
+ * memory, so the data segment is a zero at every address the program stores
+ * to; it's there so simulated memories don't start out as X.
+ */
+public class Assembler {
+
+    /**
+     * Image formats we can write.
+     */
+    public enum Format {
+        // Raw big-endian words, one per address.
+        BIN("bin"),
+        // Intel HEX, two bytes per word, byte-addressed.
+        HEX("hex"),
+        // Verilog $readmemh, one word per line with @address markers.
+        MEMH("memh");
+
+        private final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+    }
+
+    private Assembler() {
+    }
+
+    /**
+     * Encode a program into machine words. Labels take up no space; they
+     * resolve to the address of the next instruction.
+     *
+     * @param p The program to encode.
+     * @return One machine word per (non-label) instruction.
+     */
+    public static short[] assemble(Program p) {
+        InstructionStream instrs = p.getInstructions();
+
+        // First pass: where does each label point?
+        int[] labelAddress = new int[p.getLabels().size()];
+        int pc = 0;
+        for (int i = 0; i < instrs.size(); i++) {
+            int word = instrs.get(i);
+            if (Instruction.isLabel(word))
+                labelAddress[Instruction.labelId(word)] = pc;
+            else
+                pc++;
+        }
+
+        // Second pass: encode.
+        short[] code = new short[pc];
+        pc = 0;
+        for (int i = 0; i < instrs.size(); i++) {
+            int word = instrs.get(i);
+            if (!Instruction.isLabel(word)) {
+                code[pc] = encode(word, pc, labelAddress, p.getLabels());
+                pc++;
+            }
+        }
+
+        return code;
+    }
+
+    /**
+     * Encode a single instruction.
+     *
+     * @param word         The instruction.
+     * @param pc           The address it lives at.
+     * @param labelAddress Address of each label, indexed by label id.
+     * @param labels       Label names, for error messages.
+     * @return The machine word.
+     */
+    public static short encode(int word, int pc, int[] labelAddress,
+                               LabelTable labels) {
+        IOpcode op = Instruction.getiOpcode(word);
+        int machine = op.getOpcode().getEncoding() << 12;
+
+        if (op.getOpcode() == IOpcode.Opcode.B) {
+            int offset = labelAddress[Instruction.labelId(word)] - (pc + 1);
+            if (offset < -(1 << 8) || offset >= (1 << 8)) {
+                throw new RuntimeException("Branch at " + pc + " to " +
+                        labels.getName(Instruction.labelId(word)) + " is " +
+                        "out of range (offset " + offset + ").");
+            }
+
+            return (short) (machine | Instruction.condition(word).ordinal()
+                    << 9 | (offset & 0x1FF));
+        }
+
+        int count = op.getArgumentCount();
+        if (count == 3) {
+            machine |= Instruction.first(word) << 8 | Instruction.second(word)
+                    << 4;
+            machine |= op.getArgumentType(2) == ArgumentType.IMMEDIATE4 ?
+                    Instruction.immediate4(word) & 0xF : Instruction.third
+                    (word);
+        } else if (count == 2) {
+            machine |= Instruction.first(word) << 8 | Instruction.immediate8
+                    (word) & 0xFF;
+        } else if (count != 0) {
+            throw new RuntimeException("Don't know how to encode " + op
+                    .getMnemonic());
+        }
+
+        return (short) machine;
+    }
+
+    /**
+     * @return The absolute addresses the program stores to, in order.
+     * @throws RuntimeException If they don't fit after the program.
+     */
+    private static int[] dataAddresses(Program p, short[] code) {
+        int[] data = p.getValidMemory();
+        for (int i = 0; i < data.length; i++) {
+            data[i] += p.getMemoryDataOffset();
+        }
+
+        if (data.length > 0 && data[0] < code.length) {
+            throw new RuntimeException("Data segment at " + p
+                    .getMemoryDataOffset() + " overlaps the program (" + code
+                    .length + " words), use a larger data offset.");
+        }
+
+        if (data.length > 0 && data[data.length - 1] >= 1 << 16) {
+            throw new RuntimeException("Data segment doesn't fit below " +
+                    "address 65536.");
+        }
+
+        return data;
+    }
+
+    /**
+     * Write the memory image of a program.
+     *
+     * @param p      The (terminated) program.
+     * @param format Which image format to write.
+     * @param f      The file to write. It must not exist yet.
+     * @throws IOException If the file can't be written.
+     */
+    public static void write(Program p, Format format, File f) throws
+            IOException {
+        short[] code = assemble(p);
+        int[] data = dataAddresses(p, code);
+
+        if (format == Format.BIN) {
+            writeBinary(code, imageLength(data), f);
+            return;
+        }
+
+        Writer out = open(f);
+        try {
+            writeText(code, data, format, out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Write the memory image of a program to a stream, which is flushed but
+     * left open.
+     *
+     * @param p      The (terminated) program.
+     * @param format Which image format to write.
+     * @param out    Where to write it.
+     * @throws IOException If out can't be written to.
+     */
+    public static void write(Program p, Format format, OutputStream out)
+            throws IOException {
+        short[] code = assemble(p);
+        int[] data = dataAddresses(p, code);
+
+        if (format == Format.BIN) {
+            DataOutputStream words = new DataOutputStream(new
+                    BufferedOutputStream(out, 1 << 16));
+            for (short word : code) {
+                words.writeShort(word);
+            }
+            for (int i = code.length; i < imageLength(data); i++) {
+                words.writeShort(0);
+            }
+            words.flush();
+            return;
+        }
+
+        Writer text = new BufferedWriter(new OutputStreamWriter(out,
+                StandardCharsets.US_ASCII), 1 << 16);
+        writeText(code, data, format, text);
+        text.flush();
+    }
+
+    /**
+     * @return How many words a raw image takes: up to the last data word.
+     */
+    private static int imageLength(int[] data) {
+        return data.length > 0 ? data[data.length - 1] + 1 : 0;
+    }
+
+    private static void writeText(short[] code, int[] data, Format format,
+                                  Writer out) throws IOException {
+        if (format == Format.HEX)
+            writeIntelHex(code, data, out);
+        else
+            writeReadmemh(code, data, out);
+    }
+
+    /**
+     * Raw image, memory-mapped. Words after the program are left as the
+     * zeroes the file is extended with.
+     */
+    private static void writeBinary(short[] code, int length, File f) throws
+            IOException {
+        length = Math.max(length, code.length);
+
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer image = channel.map(FileChannel.MapMode
+                    .READ_WRITE, 0, 2L * length);
+            image.asShortBuffer().put(code);
+            image.force();
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void writeIntelHex(short[] code, int[] data, Writer out)
+            throws IOException {
+        int[] upper = {-1};
+        writeHexRecords(out, code, 0, code.length, 0, upper);
+
+        // One run of zeroes per block of consecutive data addresses.
+        for (int i = 0; i < data.length; ) {
+            int run = 1;
+            while (i + run < data.length && data[i + run] == data[i] + run)
+                run++;
+
+            writeHexRecords(out, null, 0, run, data[i], upper);
+            i += run;
+        }
+
+        // End of file record.
+        out.write(":00000001FF\n");
+    }
+
+    /**
+     * Write words [from, to) of words (or zeroes, if words is null) as data
+     * records starting at word address base.
+     *
+     * @param upper The current upper 16 bits of the byte address, updated
+     *              when an extended linear address record is needed.
+     */
+    private static void writeHexRecords(Writer out, short[] words, int from,
+                                        int to, int base, int[] upper) throws
+            IOException {
+        // 8 words (16 bytes) per record.
+        for (int i = from; i < to; i += 8) {
+            int count = Math.min(8, to - i);
+            int byteAddress = (base + i) * 2;
+
+            if (byteAddress >>> 16 != upper[0]) {
+                upper[0] = byteAddress >>> 16;
+                writeHexRecord(out, 0, 4, new int[]{upper[0] >> 8, upper[0] &
+                        0xFF});
+            }
+
+            int[] bytes = new int[count * 2];
+            for (int w = 0; w < count; w++) {
+                int value = words == null ? 0 : words[i + w];
+                bytes[w * 2] = (value >> 8) & 0xFF;
+                bytes[w * 2 + 1] = value & 0xFF;
+            }
+
+            writeHexRecord(out, byteAddress & 0xFFFF, 0, bytes);
+        }
+    }
+
+    private static void writeHexRecord(Writer out, int address, int type,
+                                       int[] bytes) throws IOException {
+        int checksum = bytes.length + (address >> 8) + (address & 0xFF) + type;
+
+        out.write(':');
+        writeHex(out, bytes.length, 2);
+        writeHex(out, address, 4);
+        writeHex(out, type, 2);
+        for (int b : bytes) {
+            writeHex(out, b, 2);
+            checksum += b;
+        }
+        writeHex(out, -checksum & 0xFF, 2);
+        out.write('\n');
+    }
+
+    private static void writeReadmemh(short[] code, int[] data, Writer out)
+            throws IOException {
+        out.write("// Program\n@0000\n");
+        for (short word : code) {
+            writeHex(out, word & 0xFFFF, 4);
+            out.write('\n');
+        }
+
+        if (data.length > 0) {
+            out.write("// Data segment\n");
+        }
+
+        for (int i = 0; i < data.length; i++) {
+            // Only need a new address when we skip ahead.
+            if (i == 0 || data[i] != data[i - 1] + 1) {
+                out.write('@');
+                writeHex(out, data[i], 4);
+                out.write('\n');
+            }
+            out.write("0000\n");
+        }
+    }
+
+    private static Writer open(File f) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream
+                (f), StandardCharsets.US_ASCII), 1 << 16);
+    }
+
+    private static void writeHex(Writer out, int value, int digits) throws
+            IOException {
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            out.write(Character.toUpperCase(Character.forDigit((value >>
+                    shift) & 0xF, 16)));
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package io.kersten.thefuzz;
+
+import java.util.Arrays;
+
+/**
+ * Boils a program down to a 64-bit hash of what it actually does, so
+ * programs that only differ in which registers and label numbers they
+ * happened to use hash the same.
+ *
+ * Registers are renumbered in the order they're first mentioned (R0 is left
+ * alone, since it's always zero) and so are labels. Notes, which only
+ * affect comments, are dropped. Everything else (opcodes, conditions,
+ * immediates, and so the addresses the program uses) is kept as it is.
+ *
+ * A Canonicalizer keeps a little scratch space, so use one per thread.
+ */
+public class Canonicalizer {
+
+    private static final IOpcode.Opcode[] OPCODES = IOpcode.Opcode.values();
+
+    // Canonical number of each register, or -1 if it hasn't come up yet.
+    private final int[] registers = new int[16];
+
+    // Canonical number of each label id, or -1 if it hasn't come up yet.
+    private int[] labels = new int[64];
+
+    private int nextRegister;
+    private int nextLabel;
+
+    public long hash(Program p) {
+        return hash(p.getInstructions());
+    }
+
+    public long hash(InstructionStream instructions) {
+        Arrays.fill(registers, -1);
+        registers[0] = 0;
+        nextRegister = 1;
+        Arrays.fill(labels, -1);
+        nextLabel = 0;
+
+        long h = 0x9E3779B97F4A7C15L;
+        for (int i = 0; i < instructions.size(); i++) {
+            h = Long.rotateLeft(h ^ canonical(instructions.get(i)) *
+                    0xC2B2AE3D27D4EB4FL, 31) * 0x9E3779B97F4A7C15L;
+        }
+
+        return mix(h ^ instructions.size());
+    }
+
+    /**
+     * @return The instruction with its registers and labels renumbered.
+     */
+    private int canonical(int word) {
+        int kind = Instruction.kind(word);
+
+        if (kind == Instruction.LABEL)
+            return Instruction.label(label(Instruction.labelId(word)));
+
+        if (kind == IOpcode.Opcode.B.ordinal())
+            return Instruction.branch(Instruction.condition(word), label
+                    (Instruction.labelId(word)));
+
+        IOpcode op = IOpcode.forOpcode(OPCODES[kind]);
+        int count = op.getArgumentCount();
+
+        // Take the argument fields as they are, then swap in registers.
+        int canonical = word & ~0xE0;
+        if (count > 0 && isRegister(op.getArgumentType(0))) {
+            canonical = (canonical & ~(0xF << 8)) | register(Instruction.first
+                    (word)) << 8;
+        }
+        if (count > 1 && isRegister(op.getArgumentType(1))) {
+            canonical = (canonical & ~(0xFF << 12)) | register(Instruction
+                    .second(word)) << 12;
+        }
+        if (count > 2 && isRegister(op.getArgumentType(2))) {
+            canonical = (canonical & ~(0xF << 20)) | register(Instruction.third
+                    (word)) << 20;
+        }
+
+        return canonical;
+    }
+
+    private static boolean isRegister(ArgumentType type) {
+        return type == ArgumentType.REGISTER || type == ArgumentType.VREGISTER;
+    }
+
+    private int register(int r) {
+        if (registers[r] < 0)
+            registers[r] = nextRegister++;
+        return registers[r];
+    }
+
+    private int label(int id) {
+        if (id >= labels.length) {
+            int old = labels.length;
+            labels = Arrays.copyOf(labels, Math.max(id + 1, old * 2));
+            Arrays.fill(labels, old, labels.length, -1);
+        }
+
+        if (labels[id] < 0)
+            labels[id] = nextLabel++;
+        return labels[id];
+    }
+
+    /**
+     * Final mix so every bit of the hash depends on every instruction.
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,500 @@
+package io.kersten.thefuzz;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Keeps track of which combinations of ISA state a campaign has exercised,
+ * and (when guided) steers the generator toward the ones it hasn't.
+ *
+ * The bins are:
+ * * every tested opcode, executed with each of the 8 flag states;
+ * * every branch condition, both taken and not taken (except UNCOND not
+ * taken, which can't happen);
+ * * ADD and SUB, each with and without overflow.
+ *
+ * Whether a flag state can be reached at all depends on which opcodes are
+ * being tested (only the shifts can leave N set when Z gets set, for
+ * example), so bins in flag states that can't be reached aren't counted.
+ * Guided, the generator is also steered toward flag states that still have
+ * bins to cover, which can take a couple of instructions in a row (a SUB
+ * that overflows, then a shift to zero).
+ *
+ * One model is shared by every test of a campaign, and the choices it makes
+ * depend on what the earlier tests covered, so tests have to be generated
+ * one at a time for a campaign to be reproducible.
+ */
+public class CoverageModel {
+
+    private static final IOpcode.Opcode[] OPCODES = IOpcode.Opcode.values();
+
+    private static final Condition[] CONDITIONS = Condition.values();
+
+    /**
+     * How many extra operand pairs the generator tries when it's after a
+     * particular outcome.
+     */
+    public static final int TRIES = 8;
+
+    // Further from a flag state with bins left than any can be.
+    private static final int FAR = 8;
+
+    // For each opcode that sets flags (by ordinal), bit f is set if it can
+    // come out with flags f: ADD saturates to a positive result when it
+    // overflows, SUB to a negative one, and the rest only ever report Z.
+    // Only the flags the opcode sets are taken from these.
+    private static final int[] OUTCOMES = new int[OPCODES.length];
+
+    static {
+        for (IOpcode.Opcode o : OPCODES) {
+            OUTCOMES[o.ordinal()] = 1 | 1 << Alu.FLAG_Z;
+        }
+        OUTCOMES[IOpcode.Opcode.ADD.ordinal()] |= 1 << Alu.FLAG_N | 1 << Alu
+                .FLAG_V;
+        OUTCOMES[IOpcode.Opcode.SUB.ordinal()] |= 1 << Alu.FLAG_N | 1 <<
+                (Alu.FLAG_N | Alu.FLAG_V);
+    }
+
+    private final IOpcode.Opcode[] opcodes;
+
+    // Whether to bias choices toward uncovered bins, or just watch.
+    private final boolean guided;
+
+    // Which opcodes are being tested, by ordinal.
+    private final boolean[] tested = new boolean[OPCODES.length];
+
+    // Hits per (opcode ordinal, flags before it ran).
+    private final long[] stateHits = new long[OPCODES.length * 8];
+
+    // Hits per (condition ordinal, taken).
+    private final long[] branchHits = new long[CONDITIONS.length * 2];
+
+    // Hits per (ADD or SUB, overflowed).
+    private final long[] overflowHits = new long[4];
+
+    // Whether any tested opcode can put something other than zero in a
+    // register. If not, every ALU result is zero.
+    private final boolean values;
+
+    // OUTCOMES, for the opcodes being tested.
+    private final int[] outcomes = new int[OPCODES.length];
+
+    // Which flag states the tested opcodes can get to, one bit per state.
+    private final int reachable;
+
+    private int covered = 0;
+    private final int total;
+
+    // How many flag-setting instructions it takes from each flag state to
+    // get to one with bins left, as of when covered was distanceCovered.
+    private final int[] distance = new int[8];
+    private int distanceCovered = -1;
+
+    private long instructions = 0;
+    private int tests = 0;
+
+    // Coverage after each test: instructions so far and bins covered.
+    private long[] closureInstructions = new long[64];
+    private int[] closureCovered = new int[64];
+
+    // Scratch space for weighted choices.
+    private final double[] weights;
+
+    public CoverageModel(IOpcode.Opcode[] opcodes, boolean guided) {
+        this.opcodes = opcodes.clone();
+        this.guided = guided;
+        this.weights = new double[Math.max(opcodes.length, CONDITIONS
+                .length)];
+
+        for (IOpcode.Opcode o : opcodes) {
+            tested[o.ordinal()] = true;
+        }
+
+        // Loads and stores set up their addresses with LLB and LHB, and a
+        // NAND of zeros is all ones.
+        values = tested[IOpcode.Opcode.LLB.ordinal()] || tested[IOpcode
+                .Opcode.LHB.ordinal()] || tested[IOpcode.Opcode.NAND
+                .ordinal()] || tested[IOpcode.Opcode.LW.ordinal()] ||
+                tested[IOpcode.Opcode.SW.ordinal()];
+        for (IOpcode.Opcode o : OPCODES) {
+            outcomes[o.ordinal()] = values ? OUTCOMES[o.ordinal()] : 1 << Alu
+                    .FLAG_Z;
+        }
+
+        // Every test starts with the flags clear.
+        int states = 1;
+        for (boolean grew = true; grew; ) {
+            grew = false;
+            for (int f = 0; f < 8; f++) {
+                if ((states >>> f & 1) == 0)
+                    continue;
+                for (IOpcode.Opcode o : opcodes) {
+                    int next = states | successors(o, f);
+                    grew |= next != states;
+                    states = next;
+                }
+            }
+        }
+        reachable = states;
+
+        int bins = 0;
+        for (boolean t : tested) {
+            bins += t ? Integer.bitCount(reachable) : 0;
+        }
+        if (tested[IOpcode.Opcode.B.ordinal()]) {
+            for (int c = 0; c < CONDITIONS.length; c++) {
+                for (int taken = 0; taken < 2; taken++) {
+                    bins += canBranch(c, taken) ? 1 : 0;
+                }
+            }
+        }
+        if (tested[IOpcode.Opcode.ADD.ordinal()]) {
+            bins += values ? 2 : 1;
+        }
+        if (tested[IOpcode.Opcode.SUB.ordinal()]) {
+            bins += values ? 2 : 1;
+        }
+        total = bins;
+    }
+
+    public boolean isGuided() {
+        return guided;
+    }
+
+    /**
+     * @return The flag states an opcode can leave behind when run with flags
+     * f, one bit per state.
+     */
+    private int successors(IOpcode.Opcode o, int f) {
+        int sets = IOpcode.forOpcode(o).getFlags();
+        if (sets == 0)
+            return 1 << f;
+
+        int next = 0;
+        for (int out = 0; out < 8; out++) {
+            if ((outcomes[o.ordinal()] >>> out & 1) != 0)
+                next |= 1 << (f & ~sets | out & sets);
+        }
+        return next;
+    }
+
+    /**
+     * @return Whether a branch on condition c can go this way (taken is 1
+     * or 0) in some reachable flag state.
+     */
+    private boolean canBranch(int c, int taken) {
+        for (int f = 0; f < 8; f++) {
+            if ((reachable >>> f & 1) != 0 && (Alu.conditionHolds(c, f) ? 1
+                    : 0) == taken)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return Whether flag state f still has bins to cover.
+     */
+    private boolean hasBinsLeft(int f) {
+        for (IOpcode.Opcode o : opcodes) {
+            if (stateHits[o.ordinal() * 8 + f] == 0)
+                return true;
+        }
+
+        if (tested[IOpcode.Opcode.B.ordinal()]) {
+            for (int c = 0; c < CONDITIONS.length; c++) {
+                if (branchHits[c * 2 + (Alu.conditionHolds(c, f) ? 1 : 0)]
+                        == 0)
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Bring distance up to date, if anything's been covered since it was
+     * last worked out.
+     */
+    private void updateDistances() {
+        if (distanceCovered == covered)
+            return;
+        distanceCovered = covered;
+
+        for (int f = 0; f < 8; f++) {
+            distance[f] = (reachable >>> f & 1) != 0 && hasBinsLeft(f) ? 0 :
+                    FAR;
+        }
+
+        // No path is longer than there are states.
+        for (int round = 0; round < 8; round++) {
+            for (int f = 0; f < 8; f++) {
+                for (IOpcode.Opcode o : opcodes) {
+                    for (int next = successors(o, f); next != 0; next &=
+                            next - 1) {
+                        distance[f] = Math.min(distance[f], distance[Integer
+                                .numberOfTrailingZeros(next)] + 1);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The flag state closest to one with bins left that this opcode
+     * can get to from flags f, or -1 if it can't get any closer than f is.
+     */
+    private int towards(IOpcode.Opcode o, int f) {
+        int best = -1;
+        for (int next = successors(o, f); next != 0; next &= next - 1) {
+            int g = Integer.numberOfTrailingZeros(next);
+            if (distance[g] < (best < 0 ? distance[f] : distance[best]))
+                best = g;
+        }
+        return best;
+    }
+
+    /**
+     * Pick the next opcode to generate. Unguided, that's uniform (and uses
+     * the same draw the generator always has). Guided, an opcode's chance
+     * goes down with the number of times it has already run in the
+     * program's current flag state, and up if the current flag state has
+     * nothing left to cover and this opcode can head toward one that has.
+     */
+    public IOpcode.Opcode chooseOpcode(Program p) {
+        if (!guided) {
+            return opcodes[p.getRandom().nextInt(opcodes.length)];
+        }
+
+        updateDistances();
+        int flags = p.getFlags();
+        for (int i = 0; i < opcodes.length; i++) {
+            // A load needs something in memory to load from.
+            if (opcodes[i] == IOpcode.Opcode.LW && p.getMemory()
+                    .getValidCount() == 0) {
+                weights[i] = 0;
+            } else {
+                weights[i] = 1.0 / (1 + stateHits[opcodes[i].ordinal() * 8 +
+                        flags]);
+                if (distance[flags] > 0 && towards(opcodes[i], flags) >= 0)
+                    weights[i] += 1;
+            }
+        }
+
+        int i = choose(p, opcodes.length);
+        return i < 0 ? opcodes[p.getRandom().nextInt(opcodes.length)] :
+                opcodes[i];
+    }
+
+    /**
+     * Pick a condition for a branch. Guided, conditions which would go the
+     * way (taken or not) they've gone least often are more likely.
+     */
+    public Condition chooseCondition(Program p) {
+        if (!guided) {
+            return CONDITIONS[p.getRandom().nextInt(CONDITIONS.length)];
+        }
+
+        int flags = p.getFlags();
+        for (int c = 0; c < CONDITIONS.length; c++) {
+            int taken = Alu.conditionHolds(c, flags) ? 1 : 0;
+            weights[c] = 1.0 / (1 + branchHits[c * 2 + taken]);
+        }
+
+        return CONDITIONS[choose(p, CONDITIONS.length)];
+    }
+
+    /**
+     * @return How many extra operand pairs the generator should try, looking
+     * for one which makes this opcode overflow.
+     */
+    public int overflowTries(IOpcode.Opcode opcode) {
+        int index = overflowIndex(opcode);
+        if (!guided || !values || index < 0 || overflowHits[index * 2 + 1] >
+                0)
+            return 0;
+
+        return TRIES;
+    }
+
+    /**
+     * @return The flags this opcode should leave, if the current flag state
+     * has nothing left to cover and it can head toward one that has, or -1
+     * if any will do. The generator tries a few more operands to get them.
+     */
+    public int wantedFlags(Program p, IOpcode.Opcode opcode) {
+        if (!guided)
+            return -1;
+
+        updateDistances();
+        int flags = p.getFlags();
+        if (distance[flags] == 0)
+            return -1;
+
+        return towards(opcode, flags);
+    }
+
+    /**
+     * Weighted choice among weights[0, count).
+     *
+     * @return The index chosen, or -1 if every weight is zero.
+     */
+    private int choose(Program p, int count) {
+        double sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum += weights[i];
+        }
+
+        if (sum == 0)
+            return -1;
+
+        double pick = p.getRandom().nextDouble() * sum;
+        for (int i = 0; i < count; i++) {
+            pick -= weights[i];
+            if (pick < 0 && weights[i] > 0)
+                return i;
+        }
+
+        // Rounding; take the last one that could have been picked.
+        for (int i = count - 1; ; i--) {
+            if (weights[i] > 0)
+                return i;
+        }
+    }
+
+    /**
+     * Note that an instruction was generated (and will run).
+     *
+     * @param word        The instruction.
+     * @param flagsBefore The Alu.FLAG_* bits before it ran.
+     * @param flagsAfter  The Alu.FLAG_* bits after it ran.
+     */
+    public void record(int word, int flagsBefore, int flagsAfter) {
+        if (Instruction.isLabel(word))
+            return;
+
+        IOpcode.Opcode opcode = Instruction.opcode(word);
+        if (!tested[opcode.ordinal()])
+            return;
+
+        instructions++;
+        hit(stateHits, opcode.ordinal() * 8 + flagsBefore);
+
+        if (opcode == IOpcode.Opcode.B) {
+            int c = Instruction.condition(word).ordinal();
+            hit(branchHits, c * 2 + (Alu.conditionHolds(c, flagsBefore) ? 1 :
+                    0));
+        }
+
+        int index = overflowIndex(opcode);
+        if (index >= 0) {
+            hit(overflowHits, index * 2 + ((flagsAfter & Alu.FLAG_V) != 0 ? 1
+                    : 0));
+        }
+    }
+
+    private void hit(long[] bins, int bin) {
+        if (bins[bin]++ == 0)
+            covered++;
+    }
+
+    private static int overflowIndex(IOpcode.Opcode opcode) {
+        return opcode == IOpcode.Opcode.ADD ? 0 : opcode == IOpcode.Opcode
+                .SUB ? 1 : -1;
+    }
+
+    /**
+     * Note that a test is finished, for the closure history.
+     */
+    public void endTest() {
+        if (tests == closureCovered.length) {
+            closureInstructions = Arrays.copyOf(closureInstructions, tests *
+                    2);
+            closureCovered = Arrays.copyOf(closureCovered, tests * 2);
+        }
+
+        closureInstructions[tests] = instructions;
+        closureCovered[tests] = covered;
+        tests++;
+    }
+
+    public int getCovered() {
+        return covered;
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    public long getInstructions() {
+        return instructions;
+    }
+
+    /**
+     * Write how coverage grew, one line per test, as CSV.
+     */
+    public void writeClosure(Writer out) throws IOException {
+        out.write("test,instructions,covered,total\n");
+        for (int t = 0; t < tests; t++) {
+            out.write(t + "," + closureInstructions[t] + "," +
+                    closureCovered[t] + "," + total + "\n");
+        }
+    }
+
+    /**
+     * Print a summary, including every bin which was never hit.
+     */
+    public void report(PrintStream out) {
+        out.println("Coverage: " + covered + "/" + total + " bins (" + String
+                .format("%.1f", 100.0 * covered / Math.max(1, total)) + "%) " +
+                "after " + instructions + " instructions in " + tests + " " +
+                "tests");
+
+        // When was it first reached?
+        for (int t = 0; t < tests; t++) {
+            if (closureCovered[t] == covered) {
+                out.println("Reached after test " + t + " (" +
+                        closureInstructions[t] + " instructions)");
+                break;
+            }
+        }
+
+        for (IOpcode.Opcode o : OPCODES) {
+            if (!tested[o.ordinal()])
+                continue;
+
+            for (int f = 0; f < 8; f++) {
+                if ((reachable >>> f & 1) != 0 && stateHits[o.ordinal() * 8 +
+                        f] == 0) {
+                    out.println("  not covered: " + o + " with Z = " + (f &
+                            Alu.FLAG_Z) + " N = " + (f >> 1 & 1) + " V = " +
+                            (f >> 2 & 1));
+                }
+            }
+        }
+
+        if (tested[IOpcode.Opcode.B.ordinal()]) {
+            for (Condition c : CONDITIONS) {
+                for (int taken = 0; taken < 2; taken++) {
+                    if (canBranch(c.ordinal(), taken) && branchHits[c
+                            .ordinal() * 2 + taken] == 0) {
+                        out.println("  not covered: B " + c + (taken == 1 ?
+                                " taken" : " not taken"));
+                    }
+                }
+            }
+        }
+
+        for (IOpcode.Opcode o : new IOpcode.Opcode[]{IOpcode.Opcode.ADD,
+                IOpcode.Opcode.SUB}) {
+            if (!tested[o.ordinal()])
+                continue;
+
+            int index = overflowIndex(o);
+            if (overflowHits[index * 2] == 0)
+                out.println("  not covered: " + o + " without overflow");
+            if (values && overflowHits[index * 2 + 1] == 0)
+                out.println("  not covered: " + o + " with overflow");
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package io.kersten.thefuzz;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The data memory of a program. Memory is stored in 256-word pages which are
+ * only allocated once something is written to them, so a program that
+ * touches a handful of addresses doesn't carry around the whole 64K words.
+ *
+ * Separately, it keeps track of which addresses hold values the generator
+ * knows about (the "valid" addresses, which loads may read from). Those are
+ * kept both as a bitset, for ordered iteration without repeats, and as a
+ * list, so a random one can be picked in constant time.
+ *
+ * A frozen memory can be forked cheaply: the fork shares all of its pages
+ * until it writes to one (which copies just that page), and only keeps
+ * track of valid addresses added after the fork.
+ */
+public class DataMemory {
+
+    // Number of addressable words.
+    public static final int SIZE = 1 << 16;
+
+    private static final int PAGE_BITS = 8;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+    private short[][] pages = new short[SIZE / PAGE_SIZE][];
+
+    // Pages shared with a fork (or the memory this was forked from), which
+    // have to be copied before they're written to. One bit per page.
+    private long[] shared = new long[SIZE / PAGE_SIZE / 64];
+
+    // The memory this was forked from, which holds the valid addresses
+    // from before the fork.
+    private final DataMemory base;
+    private final int baseValidCount;
+
+    // Valid addresses added here.
+    private BitSet valid = new BitSet();
+
+    private int[] validList = new int[16];
+    private int validCount = 0;
+
+    private boolean frozen = false;
+
+    public DataMemory() {
+        this.base = null;
+        this.baseValidCount = 0;
+    }
+
+    private DataMemory(DataMemory base) {
+        this.base = base;
+        this.baseValidCount = base.getValidCount();
+        this.pages = base.pages.clone();
+        Arrays.fill(shared, -1L);
+    }
+
+    public short read(int addr) {
+        addr &= SIZE - 1;
+        short[] page = pages[addr >>> PAGE_BITS];
+        return page == null ? 0 : page[addr & (PAGE_SIZE - 1)];
+    }
+
+    public void write(int addr, short value) {
+        if (frozen) {
+            throw new RuntimeException("Can't change a frozen memory.");
+        }
+
+        addr &= SIZE - 1;
+        int p = addr >>> PAGE_BITS;
+        short[] page = pages[p];
+        if (page == null) {
+            if (value == 0)
+                return; // Unallocated pages already read as zero.
+
+            page = new short[PAGE_SIZE];
+            pages[p] = page;
+            shared[p >>> 6] &= ~(1L << p);
+        } else if ((shared[p >>> 6] >>> p & 1) != 0) {
+            if (page[addr & (PAGE_SIZE - 1)] == value)
+                return;
+
+            page = page.clone();
+            pages[p] = page;
+            shared[p >>> 6] &= ~(1L << p);
+        }
+
+        page[addr & (PAGE_SIZE - 1)] = value;
+    }
+
+    /**
+     * Mark an address as holding a value we know about. Marking an address
+     * twice has no effect.
+     */
+    public void setValid(int addr) {
+        if (frozen) {
+            throw new RuntimeException("Can't change a frozen memory.");
+        }
+
+        addr &= SIZE - 1;
+        if (isValid(addr))
+            return;
+
+        valid.set(addr);
+        if (validCount == validList.length) {
+            validList = Arrays.copyOf(validList, validCount * 2);
+        }
+        validList[validCount++] = addr;
+    }
+
+    public boolean isValid(int addr) {
+        return valid.get(addr & (SIZE - 1)) || (base != null && base.isValid
+                (addr));
+    }
+
+    /**
+     * @return How many distinct valid addresses there are.
+     */
+    public int getValidCount() {
+        return baseValidCount + validCount;
+    }
+
+    /**
+     * @param index Between 0 and getValidCount() - 1.
+     * @return A valid address. Each index gives a different address, in no
+     * particular order, which makes picking one at random easy.
+     */
+    public int getValid(int index) {
+        if (index < baseValidCount)
+            return base.getValid(index);
+        return validList[index - baseValidCount];
+    }
+
+    /**
+     * For walking the valid addresses in increasing order.
+     *
+     * @return The lowest valid address at or after from, or -1 if there
+     * isn't one.
+     */
+    public int nextValid(int from) {
+        int next = valid.nextSetBit(from);
+        if (base == null)
+            return next;
+
+        int fromBase = base.nextValid(from);
+        if (next < 0 || (fromBase >= 0 && fromBase < next))
+            return fromBase;
+        return next;
+    }
+
+    /**
+     * Stop any more changes, so the memory can be forked.
+     */
+    public void freeze() {
+        frozen = true;
+        Arrays.fill(shared, -1L);
+    }
+
+    /**
+     * @return A new memory with the same contents and valid addresses. Only
+     * frozen memories can be forked, and then from any number of threads.
+     */
+    public DataMemory fork() {
+        if (!frozen) {
+            throw new RuntimeException("Only a frozen memory can be forked.");
+        }
+
+        return new DataMemory(this);
+    }
+}
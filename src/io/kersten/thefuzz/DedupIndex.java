@@ -0,0 +1,203 @@
+package io.kersten.thefuzz;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * The set of program hashes (see Canonicalizer) a campaign has already
+ * produced, kept in a file so later runs skip them too.
+ *
+ * The file is a header (a magic number, then how many hashes follow) and the
+ * hashes themselves in increasing order, all as big-endian longs. It's
+ * memory-mapped and binary searched rather than read in, so opening an index
+ * of millions of programs is cheap. Hashes added during this run are kept in
+ * memory and merged into the file by close().
+ */
+public class DedupIndex implements Closeable {
+
+    private static final long MAGIC = 0x46555A5A44555031L; // "FUZZDUP1"
+
+    private static final int HEADER = 16;
+
+    private final File file;
+
+    // The hashes already in the file, in increasing order.
+    private final LongBuffer known;
+
+    // Hashes added since the file was opened: an open addressing table,
+    // with 0 meaning empty (so a hash of 0 is tracked on its own).
+    private long[] added = new long[1 << 10];
+    private int addedCount = 0;
+    private boolean addedZero = false;
+
+    public DedupIndex(File file) throws IOException {
+        this.file = file;
+
+        if (!file.exists() || file.length() == 0) {
+            known = LongBuffer.allocate(0);
+            return;
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            LongBuffer all = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size()).asLongBuffer();
+
+            if (channel.size() < HEADER || all.get(0) != MAGIC) {
+                throw new RuntimeException(file + " isn't a dedup index.");
+            }
+
+            long count = all.get(1);
+            if (count < 0 || HEADER + 8 * count != channel.size()) {
+                throw new RuntimeException(file + " is truncated (expected " +
+                        count + " hashes).");
+            }
+
+            all.position(HEADER / 8);
+            known = all.slice();
+        } finally {
+            // The mapping stays valid after the file is closed.
+            raf.close();
+        }
+    }
+
+    /**
+     * Add a program's hash to the index.
+     *
+     * @return Whether it's new; false if it was already there.
+     */
+    public synchronized boolean add(long hash) {
+        if (contains(hash))
+            return false;
+
+        if (hash == 0) {
+            addedZero = true;
+        } else {
+            if (2 * (addedCount + 1) > added.length)
+                grow();
+            insert(added, hash);
+        }
+        addedCount++;
+        return true;
+    }
+
+    public synchronized boolean contains(long hash) {
+        if (hash == 0) {
+            if (addedZero)
+                return true;
+        } else {
+            int mask = added.length - 1;
+            for (int i = slot(hash, mask); added[i] != 0; i = (i + 1) & mask) {
+                if (added[i] == hash)
+                    return true;
+            }
+        }
+
+        // Binary search the file.
+        int lo = 0;
+        int hi = known.limit() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long k = known.get(mid);
+            if (k < hash)
+                lo = mid + 1;
+            else if (k > hash)
+                hi = mid - 1;
+            else
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @return How many hashes are in the index, old and new.
+     */
+    public synchronized long size() {
+        return known.limit() + addedCount;
+    }
+
+    /**
+     * @return How many hashes were added since the index was opened.
+     */
+    public synchronized int getAddedCount() {
+        return addedCount;
+    }
+
+    private static int slot(long hash, int mask) {
+        return (int) (hash ^ hash >>> 32) & mask;
+    }
+
+    private static void insert(long[] table, long hash) {
+        int mask = table.length - 1;
+        int i = slot(hash, mask);
+        while (table[i] != 0)
+            i = (i + 1) & mask;
+        table[i] = hash;
+    }
+
+    private void grow() {
+        long[] bigger = new long[added.length * 2];
+        for (long h : added) {
+            if (h != 0)
+                insert(bigger, h);
+        }
+        added = bigger;
+    }
+
+    /**
+     * Merge the hashes added during this run into the file. The new file is
+     * written next to the old one and then moved over it, so a crash part
+     * way through leaves the old index intact.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (addedCount == 0)
+            return;
+
+        long[] fresh = new long[addedCount];
+        int n = 0;
+        if (addedZero)
+            fresh[n++] = 0;
+        for (long h : added) {
+            if (h != 0)
+                fresh[n++] = h;
+        }
+        Arrays.sort(fresh);
+
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream
+                (new FileOutputStream(tmp), 1 << 16));
+        try {
+            out.writeLong(MAGIC);
+            out.writeLong(known.limit() + fresh.length);
+
+            // Merge the two sorted runs. Nothing in fresh is in known.
+            int k = 0;
+            int f = 0;
+            while (k < known.limit() || f < fresh.length) {
+                if (f == fresh.length || (k < known.limit() && known.get(k) <
+                        fresh[f]))
+                    out.writeLong(known.get(k++));
+                else
+                    out.writeLong(fresh[f++]);
+            }
+        } finally {
+            out.close();
+        }
+
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption
+                .REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,186 @@
+package io.kersten.thefuzz;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Differential testing: generates tests, runs each one on the design under
+ * test through a DutRunner, and compares what it dumps with the state the
+ * generator expects.
+ *
+ * Generation and execution are pipelined. Tests are generated and written
+ * on a Pipeline (threads of them at once, and in iteration order), and each
+ * one is handed to a pool of jobs commands as it's stored. Only a couple of
+ * tests per job are let in ahead of the results, which are reported in
+ * iteration order as well, so a long batch doesn't pile up in memory and a
+ * failure stops it straight away. A coverage campaign gets a single
+ * generator thread, since its tests have to be generated in order.
+ */
+public class DiffHarness {
+
+    private final TestGenerator generator;
+
+    private final DutRunner dut;
+
+    // How many tests may be generated at once.
+    private final int threads;
+
+    // How many commands may run at once.
+    private final int jobs;
+
+    // Where mismatches are reported during run(), and how many so far.
+    private Writer out;
+    private File report;
+    private int mismatches;
+
+    public DiffHarness(TestGenerator generator, DutRunner dut, int threads,
+                       int jobs) {
+        this.generator = generator;
+        this.dut = dut;
+        this.threads = Math.max(1, threads);
+        this.jobs = Math.max(1, jobs);
+    }
+
+    /**
+     * Run iterations [0, iterations) on the design under test and write a
+     * report of every mismatch to report.
+     *
+     * @return How many tests didn't match.
+     */
+    public int run(int iterations, File report) throws IOException {
+        final ExecutorService runners = Executors.newFixedThreadPool(jobs);
+
+        // Commands for stored tests, oldest first.
+        final ArrayDeque<Future<String>> running = new
+                ArrayDeque<Future<String>>();
+
+        Pipeline pipeline = new Pipeline(generator, generator.getCoverage()
+                != null ? 1 : threads) {
+            @Override
+            protected TestGenerator.Rendered produce(int iteration) {
+                Program p = generator.generate(iteration);
+                if (generator.isDuplicate(iteration, p))
+                    return new TestGenerator.Rendered(iteration);
+
+                // Keep the program to compare the design with.
+                TestGenerator.Rendered r = generator.render(iteration, p);
+                r.program = p;
+                return r;
+            }
+
+            @Override
+            protected void stored(final TestGenerator.Rendered r) {
+                if (r.isDuplicate())
+                    return;
+
+                // Wait for the oldest command if there are enough going.
+                if (running.size() == 2 * jobs)
+                    report(running.remove());
+
+                running.add(runners.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return check(r.iteration, r.program);
+                    }
+                }));
+            }
+        };
+
+        this.report = report;
+        this.mismatches = 0;
+        this.out = new BufferedWriter(new OutputStreamWriter(new
+                FileOutputStream(report), StandardCharsets.UTF_8));
+        try {
+            pipeline.run(iterations);
+            while (!running.isEmpty())
+                report(running.remove());
+
+            out.write(mismatches + " of " + iterations + " tests didn't " +
+                    "match.\n");
+        } finally {
+            runners.shutdownNow();
+            out.close();
+        }
+
+        return mismatches;
+    }
+
+    /**
+     * Wait for a test's command to finish and report it if it didn't match.
+     */
+    private void report(Future<String> result) {
+        String mismatch;
+        try {
+            mismatch = result.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while running tests.");
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new RuntimeException(cause);
+        }
+
+        if (mismatch == null)
+            return;
+
+        mismatches++;
+        try {
+            out.write(mismatch);
+        } catch (IOException ioe) {
+            System.err.println(ioe.getLocalizedMessage());
+            throw new RuntimeException("Couldn't write to " + report);
+        }
+        System.out.print(mismatch);
+    }
+
+    /**
+     * Run one written test on the design under test.
+     *
+     * @param program The test, or null if it was dropped as a duplicate.
+     * @return A description of how it went wrong, or null if it matched.
+     */
+    private String check(int iteration, Program program) throws IOException,
+            InterruptedException {
+        if (program == null)
+            return null;
+
+        File asm = generator.getAsmFile(iteration);
+        File log = new File(asm.getPath() + ".log");
+
+        List<String> diffs;
+        try {
+            FinalState actual = dut.run(asm, generator.getImageFile
+                    (iteration), log);
+            diffs = FinalState.of(program).diff(actual, false);
+        } catch (RuntimeException re) {
+            diffs = new ArrayList<String>();
+            diffs.add(re.getMessage());
+        }
+
+        if (diffs.isEmpty())
+            return null;
+
+        StringBuilder s = new StringBuilder("MISMATCH " + asm.getPath() + " " +
+                "(seed " + program.getSeed() + ")\n");
+        for (String d : diffs) {
+            s.append("    ").append(d).append('\n');
+        }
+
+        return s.toString();
+    }
+}
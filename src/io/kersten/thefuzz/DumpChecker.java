@@ -0,0 +1,288 @@
+package io.kersten.thefuzz;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Checks the state a processor simulator dumped after running each test of
+ * a batch against what the test expects, for when the tests were run some
+ * other way than DiffHarness (say, a whole regression in one go).
+ *
+ * For each iteration the simulator leaves two files next to the test (or in
+ * another directory), named after it:
+ *
+ * - testname_N.mem: all 64K words of memory, raw big-endian like a bin
+ * image, with the data segment at the data offset;
+ * - testname_N.regs: R0 to R15, big-endian words, optionally followed by
+ * one more word with the flags (Z = 1, N = 2, V = 4).
+ *
+ * What's expected comes from testname_N.state if there is one, or the
+ * summary after the final HLT of testname_N.asm if not, or the pack if the
+ * batch was packed. Only the registers and addresses the test lists are
+ * looked at. Memory dumps are mapped rather than read, so only the pages
+ * with those addresses ever come off the disk, and they're compared a run
+ * of addresses at a time (FinalState.mismatch). The details of a mismatch
+ * are only worked out once one is found.
+ *
+ * Iterations are spread over a pool of threads and reported in order.
+ */
+public class DumpChecker {
+
+    // Bytes in a register dump, without and with the flags.
+    private static final int REGISTERS = 32;
+    private static final int REGISTERS_AND_FLAGS = 34;
+
+    private final String testName;
+
+    private final File dumpDir;
+
+    private final int dataOffset;
+
+    // How many iterations to check at once.
+    private final int jobs;
+
+    // The pack the tests are in, if they were packed.
+    private PackReader pack = null;
+
+    /**
+     * @param testName   The batch's filename, as given when it was
+     *                   generated.
+     * @param dumpDir    Where the dumps are, or null if they're next to the
+     *                   tests.
+     * @param dataOffset The batch's data offset.
+     */
+    public DumpChecker(String testName, File dumpDir, int dataOffset, int
+            jobs) {
+        this.testName = testName;
+        this.dumpDir = dumpDir;
+        this.dataOffset = dataOffset;
+        this.jobs = Math.max(1, jobs);
+    }
+
+    /**
+     * Check iterations [0, iterations) and write a report of every mismatch
+     * to report. Iterations with no test (dropped as duplicates) are
+     * skipped.
+     *
+     * @return How many tests didn't match.
+     */
+    public int run(int iterations, File report) throws IOException {
+        File packFile = new File(testName + ".pack");
+        if (packFile.exists())
+            pack = new PackReader(packFile);
+
+        ExecutorService pool = Executors.newFixedThreadPool(jobs);
+        ArrayList<Future<String>> results = new ArrayList<Future<String>>();
+        int mismatches = 0;
+        int skipped = 0;
+
+        Writer out = new BufferedWriter(new OutputStreamWriter(new
+                FileOutputStream(report), StandardCharsets.UTF_8));
+        try {
+            for (int i = 0; i < iterations; i++) {
+                final int iteration = i;
+                results.add(pool.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws IOException {
+                        return check(iteration);
+                    }
+                }));
+            }
+
+            for (int i = 0; i < iterations; i++) {
+                String mismatch = results.get(i).get();
+                if (mismatch == null)
+                    continue;
+
+                if (mismatch.isEmpty()) {
+                    skipped++;
+                    continue;
+                }
+
+                mismatches++;
+                out.write(mismatch);
+                System.out.print(mismatch);
+            }
+
+            out.write(mismatches + " of " + (iterations - skipped) + " tests " +
+                    "didn't match.\n");
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while checking dumps.");
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof RuntimeException)
+                throw (RuntimeException) ee.getCause();
+            throw new RuntimeException(ee.getCause());
+        } finally {
+            pool.shutdownNow();
+            out.close();
+            if (pack != null)
+                pack.close();
+        }
+
+        return mismatches;
+    }
+
+    /**
+     * @return The state an iteration's test expects, or null if there's no
+     * such test.
+     * @throws RuntimeException If the test doesn't say.
+     */
+    private FinalState expected(int iteration) throws IOException {
+        String name = testName + "_" + iteration;
+        AsmParser parsed;
+
+        if (pack != null) {
+            byte[] state = pack.read(iteration, PackWriter.STATE);
+            if (state != null)
+                return FinalState.read(ByteBuffer.wrap(state));
+
+            byte[] asm = pack.read(iteration, PackWriter.ASM);
+            if (asm == null)
+                return null;
+            parsed = AsmParser.parse(new InputStreamReader(new
+                    ByteArrayInputStream(asm), StandardCharsets.UTF_8), name +
+                    ".asm");
+        } else {
+            File state = new File(name + ".state");
+            if (state.exists())
+                return FinalState.read(state);
+
+            File asm = new File(name + ".asm");
+            if (!asm.exists())
+                return null;
+            parsed = AsmParser.parse(asm);
+        }
+
+        if (parsed.getExpected() == null) {
+            throw new RuntimeException(name + ".asm doesn't list the state " +
+                    "it expects.");
+        }
+        return parsed.getExpected();
+    }
+
+    private File dump(int iteration, String extension) {
+        String name = testName + "_" + iteration + extension;
+        if (dumpDir == null)
+            return new File(name);
+        return new File(dumpDir, new File(name).getName());
+    }
+
+    /**
+     * Check one iteration's dumps.
+     *
+     * @return A description of how it went wrong, null if it matched, or
+     * empty if there's no test for this iteration.
+     */
+    private String check(int iteration) throws IOException {
+        File mem = dump(iteration, ".mem");
+        List<String> diffs = new ArrayList<String>();
+
+        FinalState expected;
+        try {
+            expected = expected(iteration);
+        } catch (RuntimeException re) {
+            diffs.add(re.getMessage());
+            return describe(mem, diffs);
+        }
+        if (expected == null)
+            return "";
+
+        ShortBuffer memory;
+        ShortBuffer registers;
+        try {
+            memory = map(mem, 2 * DataMemory.SIZE, 2 * DataMemory.SIZE);
+            registers = map(dump(iteration, ".regs"), REGISTERS,
+                    REGISTERS_AND_FLAGS);
+        } catch (RuntimeException re) {
+            diffs.add(re.getMessage());
+            return describe(mem, diffs);
+        }
+
+        boolean flags = registers.limit() > 16;
+        boolean matches = expected.mismatch(memory, dataOffset) < 0;
+        for (int r = 0; r < 16 && matches; r++) {
+            if (expected.isRegisterValid(r) && registers.get(r) != expected
+                    .getRegister(r))
+                matches = false;
+        }
+        if (flags && ((registers.get(16) ^ expected.getFlags()) & expected
+                .getKnownFlags()) != 0)
+            matches = false;
+
+        if (matches)
+            return null;
+
+        // Something's off; gather up everything it's checked against so it
+        // can all be reported.
+        FinalState actual = new FinalState();
+        for (int r = 0; r < 16; r++) {
+            actual.setRegister(r, registers.get(r));
+        }
+        if (flags)
+            actual.setFlags(registers.get(16) & 7);
+        for (int i = 0; i < expected.getMemoryCount(); i++) {
+            int addr = expected.getAddress(i);
+            if (addr + dataOffset < DataMemory.SIZE)
+                actual.addMemory(addr, memory.get(addr + dataOffset));
+        }
+
+        return describe(mem, expected.diff(actual, false));
+    }
+
+    /**
+     * Map a dump file as big-endian words.
+     *
+     * @throws RuntimeException If it isn't there or isn't a size it could
+     *                          be.
+     */
+    private static ShortBuffer map(File f, int size, int orSize) throws
+            IOException {
+        if (!f.exists())
+            throw new RuntimeException("No dump at " + f.getPath());
+
+        FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption
+                .READ);
+        try {
+            long length = channel.size();
+            if (length != size && length != orSize) {
+                throw new RuntimeException(f.getPath() + " is " + length + " " +
+                        "bytes, expected " + (size == orSize ? size : size +
+                        " or " + orSize) + ".");
+            }
+
+            // The mapping stays good after the channel's closed.
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, length)
+                    .asShortBuffer();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static String describe(File mem, List<String> diffs) {
+        StringBuilder s = new StringBuilder("MISMATCH " + mem.getPath() +
+                "\n");
+        for (String d : diffs) {
+            s.append("    ").append(d).append('\n');
+        }
+        return s.toString();
+    }
+}
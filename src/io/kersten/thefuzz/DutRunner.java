@@ -0,0 +1,239 @@
+package io.kersten.thefuzz;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs a test on the design under test (a processor simulator, like a
+ * Verilator or iverilog model) by launching a local command, and reads back
+ * the state it dumps when it halts.
+ *
+ * The command is split into arguments on spaces, the way a shell would
+ * (without running one): 'single quotes' keep everything inside as it is,
+ * "double quotes" do too except for \" and \\, and a backslash outside
+ * quotes escapes the next character. {asm} and {image} in the arguments are
+ * then replaced with the paths of the test and its memory image, so those
+ * can have spaces in them. Everything the command prints goes to a log file
+ * next to the test, which is then searched for lines like these (an
+ * optional leading '#' is fine, so is ':' instead of '='):
+ *
+ * R3 = 12
+ * Z = 0 N = 1 V = 0
+ * mem[40] = -7
+ *
+ * Values can be decimal or 0x hex; a value of x (or xxxx) means unknown.
+ * Memory addresses are the same ones the test lists after its final HLT.
+ */
+public class DutRunner {
+
+    private static final Pattern REGISTER_LINE = Pattern.compile
+            ("R(\\d+)\\s*[=:]\\s*(\\S+)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern FLAGS_LINE = Pattern.compile
+            ("([ZNV]\\s*[=:]\\s*[01][\\s,]*)+", Pattern.CASE_INSENSITIVE);
+    private static final Pattern FLAG = Pattern.compile
+            ("([ZNV])\\s*[=:]\\s*([01])", Pattern.CASE_INSENSITIVE);
+    private static final Pattern MEMORY_LINE = Pattern.compile
+            ("mem\\[\\s*(\\S+?)\\s*\\]\\s*[=:]\\s*(\\S+)", Pattern
+                    .CASE_INSENSITIVE);
+
+    private final String[] command;
+
+    private final long timeoutMillis;
+
+    /**
+     * @param command       The command line, with {asm} and {image} where
+     *                      the test's files should go.
+     * @param timeoutMillis How long to give it before it's killed.
+     */
+    public DutRunner(String command, long timeoutMillis) {
+        this.command = split(command);
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Split a command line into its arguments, as described above.
+     *
+     * @throws RuntimeException If a quote isn't closed.
+     */
+    static String[] split(String command) {
+        ArrayList<String> args = new ArrayList<String>();
+        StringBuilder arg = new StringBuilder();
+        // Whether there's an argument going, even an empty one ('').
+        boolean inArg = false;
+
+        for (int i = 0; i < command.length(); i++) {
+            char c = command.charAt(i);
+
+            if (Character.isWhitespace(c)) {
+                if (inArg)
+                    args.add(arg.toString());
+                arg.setLength(0);
+                inArg = false;
+                continue;
+            }
+
+            inArg = true;
+            if (c == '\\' && i + 1 < command.length()) {
+                arg.append(command.charAt(++i));
+            } else if (c == '\'' || c == '"') {
+                int close = i + 1;
+                for (; close < command.length() && command.charAt(close) !=
+                        c; close++) {
+                    char q = command.charAt(close);
+                    if (c == '"' && q == '\\' && close + 1 < command.length()
+                            && (command.charAt(close + 1) == '"' || command
+                            .charAt(close + 1) == '\\'))
+                        q = command.charAt(++close);
+                    arg.append(q);
+                }
+                if (close == command.length())
+                    throw new RuntimeException("Unclosed " + c + " in " +
+                            command);
+                i = close;
+            } else {
+                arg.append(c);
+            }
+        }
+
+        if (inArg)
+            args.add(arg.toString());
+        return args.toArray(new String[0]);
+    }
+
+    /**
+     * @return Whether the command wants a memory image.
+     */
+    public boolean needsImage() {
+        for (String s : command) {
+            if (s.contains("{image}"))
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Run one test.
+     *
+     * @param asm   The .asm file of the test.
+     * @param image Its memory image, or null if there isn't one.
+     * @param log   Where the command's output goes.
+     * @return The state the command dumped.
+     * @throws IOException      If the command can't be started.
+     * @throws RuntimeException If it times out or fails, with a message
+     *                          saying so.
+     */
+    public FinalState run(File asm, File image, File log) throws IOException,
+            InterruptedException {
+        ArrayList<String> args = new ArrayList<String>();
+        for (String s : command) {
+            s = s.replace("{asm}", asm.getAbsolutePath());
+            if (image != null)
+                s = s.replace("{image}", image.getAbsolutePath());
+            args.add(s);
+        }
+
+        ProcessBuilder pb = new ProcessBuilder(args);
+        pb.redirectErrorStream(true);
+        pb.redirectOutput(log);
+        Process process = pb.start();
+
+        try {
+            if (!process.waitFor(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new RuntimeException("Timed out after " +
+                        timeoutMillis + " ms (see " + log + ")");
+            }
+        } finally {
+            process.destroyForcibly();
+        }
+
+        if (process.exitValue() != 0) {
+            throw new RuntimeException("Exited with " + process.exitValue() +
+                    " (see " + log + ")");
+        }
+
+        return parseDump(log);
+    }
+
+    /**
+     * Read a dumped state out of the command's output. Lines that don't look
+     * like part of a dump are skipped.
+     */
+    public static FinalState parseDump(File log) throws IOException {
+        FinalState state = new FinalState();
+
+        // Dumps can list memory in any order.
+        TreeMap<Integer, Short> memory = new TreeMap<Integer, Short>();
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(new
+                FileInputStream(log), StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.startsWith("#"))
+                    line = line.substring(1).trim();
+
+                Matcher m = REGISTER_LINE.matcher(line);
+                if (m.matches()) {
+                    int r = Integer.parseInt(m.group(1));
+                    Integer value = parseValue(m.group(2));
+                    if (r < 16 && value != null)
+                        state.setRegister(r, (short) (int) value);
+                    continue;
+                }
+
+                if (FLAGS_LINE.matcher(line).matches()) {
+                    m = FLAG.matcher(line);
+                    while (m.find()) {
+                        int flag = "Z".equalsIgnoreCase(m.group(1)) ? Alu
+                                .FLAG_Z : "N".equalsIgnoreCase(m.group(1)) ?
+                                Alu.FLAG_N : Alu.FLAG_V;
+                        state.setFlag(flag, m.group(2).equals("1"));
+                    }
+                    continue;
+                }
+
+                m = MEMORY_LINE.matcher(line);
+                if (m.matches()) {
+                    Integer addr = parseValue(m.group(1));
+                    Integer value = parseValue(m.group(2));
+                    if (addr != null && value != null)
+                        memory.put(addr & (DataMemory.SIZE - 1), (short) (int)
+                                value);
+                }
+            }
+        } finally {
+            in.close();
+        }
+
+        for (Map.Entry<Integer, Short> e : memory.entrySet()) {
+            state.addMemory(e.getKey(), e.getValue());
+        }
+
+        return state;
+    }
+
+    /**
+     * @return The value, or null if it's unknown or not a number.
+     */
+    private static Integer parseValue(String s) {
+        try {
+            if (s.startsWith("0x") || s.startsWith("0X"))
+                return Integer.parseInt(s.substring(2), 16);
+            return Integer.parseInt(s);
+        } catch (NumberFormatException nfe) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,392 @@
+package io.kersten.thefuzz;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * What a test expects the processor to look like once it halts: the value of
+ * every register that got written, the flags, and the contents of every
+ * memory address that got stored to. This is what gets written after the
+ * final HLT of a test, and what the Interpreter checks itself against.
+ *
+ * It can also be written on its own, so a checker doesn't have to pick it
+ * out of the comments: write() gives a compact record (see read() for the
+ * layout) and writeJson() the same thing as JSON.
+ */
+public class FinalState {
+
+    static final int MAGIC = 0x465A5354; // "FZST"
+
+    // Bytes in a record before the memory list.
+    static final int HEADER = 44;
+
+    private short[] registers = new short[16];
+
+    // Bit i is set if register i holds a known value (R0 always does).
+    private int validRegisters = 1;
+
+    // Alu.FLAG_* bits.
+    private int flags = 0;
+
+    // Which of the flags are actually known. A dump from a processor might
+    // leave some of them out.
+    private int knownFlags = 0;
+
+    // Stored-to addresses in increasing order, and what they hold.
+    private int[] addresses = new int[16];
+    private short[] values = new short[16];
+    private int memoryCount = 0;
+
+    /**
+     * @return The state a generated program is expected to end in.
+     */
+    public static FinalState of(Program p) {
+        FinalState s = new FinalState();
+
+        for (int i = 0; i < 16; i++) {
+            if (p.isRegisterValid(Program.registerFromNumber(i)))
+                s.setRegister(i, p.getRegisterFile()[i]);
+        }
+
+        s.setFlags(Alu.flags(p.isFlag_z(), p.isFlag_n(), p.isFlag_v()));
+
+        for (int addr : p.getValidMemory()) {
+            s.addMemory(addr, p.getMemory().read(addr));
+        }
+
+        return s;
+    }
+
+    /**
+     * Read one record, starting at the buffer's position and leaving it
+     * just past the end. Everything is big-endian:
+     *
+     * MAGIC (int), which registers are valid (short, bit i for Ri), which
+     * flags are known (byte), the flags (byte, Alu.FLAG_* bits), all 16
+     * registers (short each, 0 if not valid), the number of stored-to
+     * addresses (int), then for each one in increasing order its address
+     * (unsigned short) and value (short).
+     */
+    public static FinalState read(ByteBuffer in) {
+        if (in.remaining() < HEADER || in.getInt() != MAGIC) {
+            throw new RuntimeException("Not an expected state record.");
+        }
+
+        FinalState s = new FinalState();
+        s.validRegisters = (in.getShort() & 0xFFFF) | 1;
+        s.knownFlags = in.get() & 7;
+        s.flags = in.get() & 7;
+        for (int r = 0; r < 16; r++) {
+            s.registers[r] = in.getShort();
+        }
+
+        int count = in.getInt();
+        if (count < 0 || count > in.remaining() / 4) {
+            throw new RuntimeException("Expected state record is cut short.");
+        }
+
+        s.addresses = new int[Math.max(16, count)];
+        s.values = new short[Math.max(16, count)];
+        for (int i = 0; i < count; i++) {
+            s.addMemory(in.getChar(), in.getShort());
+        }
+
+        return s;
+    }
+
+    /**
+     * Read a .state file.
+     */
+    public static FinalState read(File f) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(f.toPath()));
+        FinalState s = read(in);
+        if (in.hasRemaining()) {
+            throw new RuntimeException(f + " has more than one record in it.");
+        }
+        return s;
+    }
+
+    /**
+     * Write this state as one record, the way read() wants it. out is
+     * flushed but left open; it's written a few bytes at a time, so it
+     * should be buffered.
+     */
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeShort(validRegisters);
+        data.writeByte(knownFlags);
+        data.writeByte(flags);
+        for (int r = 0; r < 16; r++) {
+            data.writeShort(isRegisterValid(r) ? registers[r] : 0);
+        }
+
+        data.writeInt(memoryCount);
+        for (int i = 0; i < memoryCount; i++) {
+            data.writeShort(addresses[i]);
+            data.writeShort(values[i]);
+        }
+        data.flush();
+    }
+
+    /**
+     * @return This state as one record, the way read() wants it.
+     */
+    public byte[] toBytes() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(HEADER + 4 *
+                memoryCount);
+        try {
+            write(out);
+        } catch (IOException ioe) {
+            // It's all in memory.
+            throw new RuntimeException(ioe);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Write this state as a JSON object: the valid registers by name, the
+     * known flags as 0 or 1, and the stored-to addresses with their values,
+     * in increasing order.
+     */
+    public void writeJson(Writer out) throws IOException {
+        out.write("{\n  \"registers\": {");
+        boolean first = true;
+        for (int r = 0; r < 16; r++) {
+            if (!isRegisterValid(r))
+                continue;
+            out.write((first ? "" : ", ") + "\"R" + r + "\": " + registers[r]);
+            first = false;
+        }
+
+        out.write("},\n  \"flags\": {");
+        String[] names = {"Z", "N", "V"};
+        first = true;
+        for (int f = 0; f < 3; f++) {
+            if ((knownFlags >> f & 1) == 0)
+                continue;
+            out.write((first ? "" : ", ") + "\"" + names[f] + "\": " +
+                    (flags >> f & 1));
+            first = false;
+        }
+
+        out.write("},\n  \"memory\": [");
+        for (int i = 0; i < memoryCount; i++) {
+            out.write((i == 0 ? "\n" : ",\n") + "    {\"address\": " +
+                    addresses[i] + ", \"value\": " + values[i] + "}");
+        }
+        out.write(memoryCount == 0 ? "]\n}\n" : "\n  ]\n}\n");
+    }
+
+    public short getRegister(int r) {
+        return registers[r];
+    }
+
+    public boolean isRegisterValid(int r) {
+        return (validRegisters >>> r & 1) != 0;
+    }
+
+    public void setRegister(int r, short value) {
+        registers[r] = value;
+        validRegisters |= 1 << r;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    /**
+     * Set all three flags at once.
+     */
+    public void setFlags(int flags) {
+        this.flags = flags;
+        knownFlags = Alu.FLAG_Z | Alu.FLAG_N | Alu.FLAG_V;
+    }
+
+    /**
+     * Set just one flag.
+     *
+     * @param flag One of the Alu.FLAG_* bits.
+     */
+    public void setFlag(int flag, boolean set) {
+        flags = set ? flags | flag : flags & ~flag;
+        knownFlags |= flag;
+    }
+
+    public int getKnownFlags() {
+        return knownFlags;
+    }
+
+    public int getMemoryCount() {
+        return memoryCount;
+    }
+
+    public int getAddress(int index) {
+        return addresses[index];
+    }
+
+    public short getValue(int index) {
+        return values[index];
+    }
+
+    /**
+     * Record the value of a stored-to address. Addresses have to be added in
+     * increasing order, like they're listed after a test.
+     */
+    public void addMemory(int addr, short value) {
+        if (memoryCount > 0 && addresses[memoryCount - 1] >= addr) {
+            throw new RuntimeException("Memory addresses out of order at mem["
+                    + addr + "]");
+        }
+
+        if (memoryCount == addresses.length) {
+            addresses = Arrays.copyOf(addresses, memoryCount * 2);
+            values = Arrays.copyOf(values, memoryCount * 2);
+        }
+
+        addresses[memoryCount] = addr;
+        values[memoryCount] = value;
+        memoryCount++;
+    }
+
+    /**
+     * Find the first stored-to address that doesn't hold its expected value
+     * in a dump of the whole memory. Runs of consecutive addresses are
+     * compared in bulk with ShortBuffer.mismatch, which compares many words
+     * at a time as long as both sides have the same byte order, so the
+     * expected values are put in that order first.
+     *
+     * @param memory Every word of memory, by absolute address.
+     * @param offset Where the data segment starts in memory.
+     * @return The index (as for getAddress) of the first one that differs or
+     * is past the end of memory, or -1 if they all match.
+     */
+    public int mismatch(ShortBuffer memory, int offset) {
+        ShortBuffer expected = ByteBuffer.allocate(2 * memoryCount).order
+                (memory.order()).asShortBuffer();
+        expected.put(values, 0, memoryCount);
+
+        int i = 0;
+        while (i < memoryCount) {
+            int j = i + 1;
+            while (j < memoryCount && addresses[j] == addresses[j - 1] + 1)
+                j++;
+
+            // Short runs aren't worth setting up a bulk compare for.
+            int start = addresses[i] + offset;
+            if (j - i < 8 || start + j - i > memory.limit()) {
+                for (int k = i; k < j; k++) {
+                    int addr = addresses[k] + offset;
+                    if (addr >= memory.limit() || memory.get(addr) != values
+                            [k])
+                        return k;
+                }
+            } else {
+                int m = memory.slice(start, j - i).mismatch(expected.slice(i,
+                        j - i));
+                if (m >= 0)
+                    return i + m;
+            }
+
+            i = j;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Compare the state something actually ended up in with this one.
+     *
+     * @param actual The state to check.
+     * @param exact  If true, registers and addresses which actual has but
+     *               this doesn't are differences too (like when checking
+     *               the interpreter, which knows exactly what got written).
+     *               If false, only what's listed here gets checked, which
+     *               suits a dump of a whole processor.
+     * @return One line per difference; empty if everything matches.
+     */
+    public List<String> diff(FinalState actual, boolean exact) {
+        ArrayList<String> diffs = new ArrayList<String>();
+        String missing = exact ? " never written" : " missing";
+
+        for (int r = 0; r < 16; r++) {
+            boolean want = isRegisterValid(r);
+            boolean got = actual.isRegisterValid(r);
+
+            if (want && got && registers[r] != actual.registers[r]) {
+                diffs.add("R" + r + " = " + actual.registers[r] + ", " +
+                        "expected " + registers[r]);
+            } else if (want && !got) {
+                diffs.add("R" + r + missing + ", expected " + registers[r]);
+            } else if (!want && got && exact) {
+                diffs.add("R" + r + " = " + actual.registers[r] + ", " +
+                        "expected xxxx");
+            }
+        }
+
+        int known = knownFlags & actual.knownFlags;
+        if (((flags ^ actual.flags) & known) != 0) {
+            diffs.add("Flags are " + describeFlags(actual.flags, known) + ", " +
+                    "expected " + describeFlags(flags, known));
+        }
+
+        // Both lists of addresses are in increasing order, so walk them
+        // together.
+        missing = exact ? " never stored to" : " missing";
+        int j = 0;
+        for (int i = 0; i < memoryCount; i++) {
+            int addr = addresses[i];
+
+            for (; j < actual.memoryCount && actual.addresses[j] < addr; j++) {
+                if (exact) {
+                    diffs.add("mem[" + actual.addresses[j] + "] = " + actual
+                            .values[j] + " was stored to, but isn't expected");
+                }
+            }
+
+            if (j == actual.memoryCount || actual.addresses[j] != addr) {
+                diffs.add("mem[" + addr + "]" + missing + ", expected " +
+                        values[i]);
+                continue;
+            }
+
+            if (actual.values[j] != values[i]) {
+                diffs.add("mem[" + addr + "] = " + actual.values[j] + ", " +
+                        "expected " + values[i]);
+            }
+            j++;
+        }
+
+        for (; exact && j < actual.memoryCount; j++) {
+            diffs.add("mem[" + actual.addresses[j] + "] = " + actual.values[j]
+                    + " was stored to, but isn't expected");
+        }
+
+        return diffs;
+    }
+
+    private static String describeFlags(int flags, int known) {
+        StringBuilder s = new StringBuilder();
+        String[] names = {"Z", "N", "V"};
+
+        for (int f = 0; f < 3; f++) {
+            if ((known >> f & 1) != 0) {
+                if (s.length() > 0)
+                    s.append(' ');
+                s.append(names[f]).append(" = ").append(flags >> f & 1);
+            }
+        }
+
+        return s.toString();
+    }
+}
@@ -0,0 +1,348 @@
+package io.kersten.thefuzz;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Counts where a batch's time goes: how long each opcode takes to generate,
+ * how often the generator has to throw a choice away and try again, and how
+ * long each test spends in each phase (generating, simulating, rendering,
+ * writing). Everything can be updated from any number of threads.
+ *
+ * Latencies go into histograms with one bucket per power of two
+ * nanoseconds, which is plenty to tell a 200ns opcode from a 20us one.
+ *
+ * The phases are also emitted as JFR events (io.kersten.thefuzz.Phase)
+ * whenever a flight recording is running, whether or not metrics are being
+ * kept.
+ */
+public class GeneratorMetrics {
+
+    private static final IOpcode.Opcode[] OPCODES = IOpcode.Opcode.values();
+
+    private static final int BUCKETS = 64;
+
+    // RENDER streams a test to its files (or compresses it for a pack);
+    // WRITE is what's left to do in order, like adding it to the pack.
+    public enum Phase {
+        GENERATE, SIMULATE, RENDER, WRITE
+    }
+
+    // Things the generator throws away and tries again.
+    public enum Rejection {
+        // An opcode couldn't be generated at all yet (LW before anything's
+        // been stored).
+        NOTHING_TO_GENERATE,
+
+        // The coverage model asked for another pair of operands to get an
+        // overflow.
+        OVERFLOW_RETRY,
+
+        // The coverage model asked for another pair of operands to leave
+        // the flags in a particular state.
+        FLAGS_RETRY
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+    private static final Rejection[] REJECTIONS = Rejection.values();
+
+    private final LongAdder[] opcodeCalls = adders(OPCODES.length);
+    private final LongAdder[] opcodeInstructions = adders(OPCODES.length);
+    private final LongAdder[] opcodeNanos = adders(OPCODES.length);
+    private final AtomicLongArray[] opcodeHistograms = histograms(OPCODES
+            .length);
+
+    private final LongAdder[] phaseCount = adders(PHASES.length);
+    private final LongAdder[] phaseNanos = adders(PHASES.length);
+    private final AtomicLongArray[] phaseHistograms = histograms(PHASES
+            .length);
+
+    private final LongAdder[] rejections = adders(REJECTIONS.length);
+
+    private final long startNanos = System.nanoTime();
+
+    private static LongAdder[] adders(int n) {
+        LongAdder[] a = new LongAdder[n];
+        for (int i = 0; i < n; i++) {
+            a[i] = new LongAdder();
+        }
+        return a;
+    }
+
+    private static AtomicLongArray[] histograms(int n) {
+        AtomicLongArray[] a = new AtomicLongArray[n];
+        for (int i = 0; i < n; i++) {
+            a[i] = new AtomicLongArray(BUCKETS);
+        }
+        return a;
+    }
+
+    /**
+     * Record one call to InstructionFactory.generateInstruction.
+     *
+     * @param instructions How many instructions it added.
+     */
+    public void opcode(IOpcode.Opcode opcode, int instructions, long nanos) {
+        int o = opcode.ordinal();
+        opcodeCalls[o].increment();
+        opcodeInstructions[o].add(instructions);
+        opcodeNanos[o].add(nanos);
+        opcodeHistograms[o].incrementAndGet(bucket(nanos));
+        if (instructions == 0)
+            rejections[Rejection.NOTHING_TO_GENERATE.ordinal()].increment();
+    }
+
+    public void reject(Rejection rejection) {
+        rejections[rejection.ordinal()].increment();
+    }
+
+    public void reject(Rejection rejection, int times) {
+        rejections[rejection.ordinal()].add(times);
+    }
+
+    private void phase(Phase phase, long nanos) {
+        int p = phase.ordinal();
+        phaseCount[p].increment();
+        phaseNanos[p].add(nanos);
+        phaseHistograms[p].incrementAndGet(bucket(nanos));
+    }
+
+    private static int bucket(long nanos) {
+        return nanos <= 0 ? 0 : BUCKETS - Long.numberOfLeadingZeros(nanos);
+    }
+
+    @Name("io.kersten.thefuzz.Phase")
+    @Label("Fuzz Test Phase")
+    @Category("TheFuzz")
+    @Description("One phase of producing one test.")
+    static class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+
+        @Label("Iteration")
+        int iteration;
+
+        @Label("Instructions")
+        int instructions;
+    }
+
+    private static final EventType PHASE_EVENT = EventType.getEventType
+            (PhaseEvent.class);
+
+    /**
+     * A phase being timed; see start().
+     */
+    public static class Span {
+        private final GeneratorMetrics metrics;
+        private final Phase phase;
+        private final PhaseEvent event;
+        private final long start;
+
+        private Span(GeneratorMetrics metrics, Phase phase, PhaseEvent event) {
+            this.metrics = metrics;
+            this.phase = phase;
+            this.event = event;
+            this.start = metrics != null ? System.nanoTime() : 0;
+        }
+
+        /**
+         * Stop timing.
+         *
+         * @param instructions How long the test is, for the JFR event.
+         */
+        public void end(int instructions) {
+            if (metrics != null)
+                metrics.phase(phase, System.nanoTime() - start);
+            if (event != null) {
+                event.instructions = instructions;
+                event.commit();
+            }
+        }
+    }
+
+    // What start() hands back when nobody's watching.
+    private static final Span NONE = new Span(null, null, null);
+
+    /**
+     * Start timing a phase of one test. Costs nothing much if there are no
+     * metrics and no flight recording.
+     *
+     * @param metrics Where to record it, or null.
+     */
+    public static Span start(GeneratorMetrics metrics, Phase phase, int
+            iteration) {
+        PhaseEvent event = null;
+        if (PHASE_EVENT.isEnabled()) {
+            event = new PhaseEvent();
+            event.phase = phase.name().toLowerCase();
+            event.iteration = iteration;
+            event.begin();
+        }
+
+        if (metrics == null && event == null)
+            return NONE;
+        return new Span(metrics, phase, event);
+    }
+
+    /**
+     * @return A rough percentile of a histogram: the top of the bucket it
+     * falls in, in nanoseconds.
+     */
+    private static long percentile(AtomicLongArray histogram, double p) {
+        long total = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            total += histogram.get(b);
+        }
+        if (total == 0)
+            return 0;
+
+        long rank = (long) Math.ceil(p * total);
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += histogram.get(b);
+            if (seen >= rank)
+                return b == 0 ? 0 : b >= 63 ? Long.MAX_VALUE : (1L << b) - 1;
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private long totalInstructions() {
+        long n = 0;
+        for (LongAdder a : opcodeInstructions) {
+            n += a.sum();
+        }
+        return n;
+    }
+
+    private double elapsedSeconds() {
+        return (System.nanoTime() - startNanos) / 1e9;
+    }
+
+    /**
+     * Print a summary table: throughput, then each opcode, each phase and
+     * each kind of rejection.
+     */
+    public void report(PrintStream out) {
+        double seconds = elapsedSeconds();
+        long tests = phaseCount[Phase.GENERATE.ordinal()].sum();
+        long instructions = totalInstructions();
+
+        out.println(String.format("Generated %d tests (%d instructions) in " +
+                "%.2fs: %.1f tests/s, %.0f instructions/s", tests,
+                instructions, seconds, tests / seconds, instructions /
+                        seconds));
+
+        out.println(String.format("%-8s %10s %12s %10s %10s %10s %7s",
+                "opcode", "calls", "instructions", "mean ns", "p50 ns",
+                "p99 ns", "time"));
+        long opcodeTotal = 0;
+        for (LongAdder a : opcodeNanos) {
+            opcodeTotal += a.sum();
+        }
+        for (int o = 0; o < OPCODES.length; o++) {
+            long calls = opcodeCalls[o].sum();
+            if (calls == 0)
+                continue;
+            out.println(String.format("%-8s %10d %12d %10d %10d %10d %6.1f%%",
+                    OPCODES[o], calls, opcodeInstructions[o].sum(),
+                    opcodeNanos[o].sum() / calls, percentile
+                            (opcodeHistograms[o], 0.5), percentile
+                            (opcodeHistograms[o], 0.99), 100.0 *
+                            opcodeNanos[o].sum() / Math.max(1,
+                            opcodeTotal)));
+        }
+
+        out.println(String.format("%-8s %10s %12s %10s %10s %10s", "phase",
+                "count", "total ms", "mean us", "p50 us", "p99 us"));
+        for (int p = 0; p < PHASES.length; p++) {
+            long count = phaseCount[p].sum();
+            if (count == 0)
+                continue;
+            out.println(String.format("%-8s %10d %12d %10d %10d %10d",
+                    PHASES[p].name().toLowerCase(), count, phaseNanos[p].sum()
+                            / 1000000, phaseNanos[p].sum() / count / 1000,
+                    percentile(phaseHistograms[p], 0.5) / 1000, percentile
+                            (phaseHistograms[p], 0.99) / 1000));
+        }
+
+        for (int r = 0; r < REJECTIONS.length; r++) {
+            out.println(String.format("Rejected (%s): %d", REJECTIONS[r].name()
+                    .toLowerCase(), rejections[r].sum()));
+        }
+    }
+
+    /**
+     * Write everything as one JSON object, histograms included (as arrays
+     * of bucket counts, bucket b holding latencies below 2^b ns).
+     */
+    public void writeJson(Writer out) throws IOException {
+        double seconds = elapsedSeconds();
+
+        out.write("{\n  \"seconds\": " + seconds + ",\n");
+        out.write("  \"tests\": " + phaseCount[Phase.GENERATE.ordinal()].sum()
+                + ",\n");
+        out.write("  \"instructions\": " + totalInstructions() + ",\n");
+
+        out.write("  \"opcodes\": {");
+        boolean first = true;
+        for (int o = 0; o < OPCODES.length; o++) {
+            if (opcodeCalls[o].sum() == 0)
+                continue;
+            out.write((first ? "" : ",") + "\n    \"" + OPCODES[o] + "\": {" +
+                    "\"calls\": " + opcodeCalls[o].sum() + ", " +
+                    "\"instructions\": " + opcodeInstructions[o].sum() + ", " +
+                    "\"nanos\": " + opcodeNanos[o].sum() + ", " +
+                    "\"histogram\": " + json(opcodeHistograms[o]) + "}");
+            first = false;
+        }
+        out.write("\n  },\n");
+
+        out.write("  \"phases\": {");
+        first = true;
+        for (int p = 0; p < PHASES.length; p++) {
+            if (phaseCount[p].sum() == 0)
+                continue;
+            out.write((first ? "" : ",") + "\n    \"" + PHASES[p].name()
+                    .toLowerCase() + "\": {\"count\": " + phaseCount[p].sum()
+                    + ", \"nanos\": " + phaseNanos[p].sum() + ", " +
+                    "\"histogram\": " + json(phaseHistograms[p]) + "}");
+            first = false;
+        }
+        out.write("\n  },\n");
+
+        out.write("  \"rejections\": {");
+        for (int r = 0; r < REJECTIONS.length; r++) {
+            out.write((r == 0 ? "" : ",") + "\n    \"" + REJECTIONS[r].name()
+                    .toLowerCase() + "\": " + rejections[r].sum());
+        }
+        out.write("\n  }\n}\n");
+    }
+
+    /**
+     * @return A histogram as a JSON array, without the trailing empty
+     * buckets.
+     */
+    private static String json(AtomicLongArray histogram) {
+        int last = BUCKETS - 1;
+        while (last > 0 && histogram.get(last) == 0)
+            last--;
+
+        StringBuilder sb = new StringBuilder("[");
+        for (int b = 0; b <= last; b++) {
+            if (b > 0)
+                sb.append(", ");
+            sb.append(histogram.get(b));
+        }
+        return sb.append("]").toString();
+    }
+}
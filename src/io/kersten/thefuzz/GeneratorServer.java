@@ -0,0 +1,375 @@
+package io.kersten.thefuzz;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Keeps a warm JVM around and generates tests on demand, for schedulers that
+ * want one test at a time without paying for JVM startup every time.
+ *
+ * Clients connect over a local socket (TCP on the loopback interface, or a
+ * Unix domain socket) and send one request per line:
+ *
+ * GEN ops=add,sub,lw length=100 offset=30000 seed=42
+ *
+ * with optional iteration=N (default 0), format=asm|bin|hex|memh (default
+ * asm), name=testname (for the asm header), verify=true, comments=false
+ * and reuse=R (see --reuse-rate). The test is the same one batch mode would
+ * write for that iteration with --seed. The reply is "OK format" followed by
+ * the test in chunks, each a line with its length in bytes and then that
+ * many bytes, and a zero length chunk at the end; or a single "ERR message"
+ * line. PING gets "OK pong" and QUIT closes the connection. A connection
+ * can send any number of requests.
+ *
+ * Each connection gets a thread from a fixed pool; when they're all busy,
+ * new connections wait in the listen backlog. Replies are written a chunk at
+ * a time straight to the socket, so a client that reads slowly just holds
+ * up its own thread rather than having its test pile up in memory.
+ */
+public class GeneratorServer {
+
+    // Bytes per reply chunk.
+    private static final int CHUNK = 1 << 16;
+
+    // Longest request line we'll read.
+    private static final int MAX_LINE = 1 << 16;
+
+    private final int threads;
+
+    public GeneratorServer(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Open the socket to listen on.
+     *
+     * @param address A TCP port on the loopback interface, or unix:path
+     *                for a Unix domain socket.
+     */
+    public static ServerSocketChannel open(String address) throws
+            IOException {
+        if (address.startsWith("unix:")) {
+            File path = new File(address.substring(5));
+            // A stale socket from an earlier run would stop us binding.
+            path.delete();
+            path.deleteOnExit();
+
+            ServerSocketChannel server = ServerSocketChannel.open
+                    (StandardProtocolFamily.UNIX);
+            server.bind(UnixDomainSocketAddress.of(path.toPath()));
+            return server;
+        }
+
+        int port;
+        try {
+            port = Integer.parseInt(address);
+        } catch (NumberFormatException nfe) {
+            throw new RuntimeException("Listen on a port number or " +
+                    "unix:path, not " + address);
+        }
+
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                port));
+        return server;
+    }
+
+    /**
+     * Accept and serve connections until the socket is closed.
+     */
+    public void serve(ServerSocketChannel server) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+
+        // Only accept a connection when a thread is free to serve it.
+        final Semaphore free = new Semaphore(threads);
+
+        try {
+            while (server.isOpen()) {
+                free.acquireUninterruptibly();
+
+                final SocketChannel client;
+                try {
+                    client = server.accept();
+                } catch (IOException ioe) {
+                    free.release();
+                    throw ioe;
+                }
+
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            handle(client);
+                        } catch (IOException ioe) {
+                            // The client went away; nothing to tell it.
+                        } finally {
+                            try {
+                                client.close();
+                            } catch (IOException ioe) {
+                                // Already gone.
+                            }
+                            free.release();
+                        }
+                    }
+                });
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Serve requests on one connection until it's closed or sends QUIT.
+     */
+    private void handle(SocketChannel client) throws IOException {
+        InputStream in = new BufferedInputStream(Channels.newInputStream
+                (client));
+        OutputStream out = Channels.newOutputStream(client);
+
+        String line;
+        while ((line = readLine(in)) != null) {
+            line = line.trim();
+            if (line.length() == 0)
+                continue;
+
+            if (line.equalsIgnoreCase("QUIT"))
+                return;
+
+            if (line.equalsIgnoreCase("PING")) {
+                writeLine(out, "OK pong");
+                continue;
+            }
+
+            Request request;
+            Program program;
+            try {
+                request = Request.parse(line);
+                program = request.generator.generate(request.iteration);
+
+                // Images can fail to assemble; find out before saying OK.
+                if (request.format != null)
+                    Assembler.assemble(program);
+            } catch (RuntimeException re) {
+                writeLine(out, "ERR " + String.valueOf(re.getMessage())
+                        .replace('\n', ' '));
+                continue;
+            }
+
+            writeLine(out, "OK " + (request.format == null ? "asm" : request
+                    .format.getExtension()));
+
+            ChunkedOutputStream chunks = new ChunkedOutputStream(out);
+            if (request.format == null) {
+                Writer text = new BufferedWriter(new OutputStreamWriter
+                        (chunks, StandardCharsets.UTF_8), CHUNK);
+                request.generator.writeTest(text, request.iteration, program);
+                text.flush();
+            } else {
+                Assembler.write(program, request.format, chunks);
+            }
+            chunks.finish();
+        }
+    }
+
+    /**
+     * @return The next line, or null at the end of the stream.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0)
+                return line.length() == 0 ? null : line.toString();
+            if (line.length() == MAX_LINE)
+                throw new IOException("Request line too long.");
+            line.append((char) c);
+        }
+
+        return line.toString();
+    }
+
+    private static void writeLine(OutputStream out, String line) throws
+            IOException {
+        out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    /**
+     * A parsed GEN request.
+     */
+    private static class Request {
+        TestGenerator generator;
+        int iteration;
+        Assembler.Format format;
+
+        static Request parse(String line) {
+            String[] words = line.split("\\s+");
+            if (!words[0].equalsIgnoreCase("GEN")) {
+                throw new RuntimeException("Unknown request " + words[0]);
+            }
+
+            HashMap<String, String> args = new HashMap<String, String>();
+            for (int i = 1; i < words.length; i++) {
+                int eq = words[i].indexOf('=');
+                if (eq <= 0) {
+                    throw new RuntimeException("Expected key=value, not " +
+                            words[i]);
+                }
+                args.put(words[i].substring(0, eq).toLowerCase(), words[i]
+                        .substring(eq + 1));
+            }
+
+            List<String> opcodes = new ArrayList<String>();
+            String ops = required(args, "ops");
+            if (ops.equalsIgnoreCase("all")) {
+                opcodes.addAll(IOpcode.getAllOpcodes());
+            } else {
+                for (String s : ops.toUpperCase().split(",")) {
+                    if (!IOpcode.isValidOpcode(s))
+                        throw new RuntimeException("Not an opcode: " + s);
+                    opcodes.add(s);
+                }
+            }
+
+            int length = number(required(args, "length"));
+            int offset = number(required(args, "offset"));
+            long seed = Long.parseLong(required(args, "seed"));
+            if (length <= 0 || offset < 0) {
+                throw new RuntimeException("length has to be positive and " +
+                        "offset can't be negative.");
+            }
+
+            Request r = new Request();
+            r.generator = new TestGenerator(opcodes, length, offset, args
+                    .containsKey("name") ? args.get("name") : "serve", seed);
+            r.generator.setVerify("true".equalsIgnoreCase(args.get
+                    ("verify")));
+            r.generator.setComments(!"false".equalsIgnoreCase(args.get
+                    ("comments")));
+            if (args.containsKey("reuse")) {
+                try {
+                    r.generator.setReuseRate(Double.parseDouble(args.get
+                            ("reuse")));
+                } catch (NumberFormatException nfe) {
+                    throw new RuntimeException("Not a number: " + args.get
+                            ("reuse"));
+                }
+            }
+            r.iteration = args.containsKey("iteration") ? number(args.get
+                    ("iteration")) : 0;
+
+            String format = args.containsKey("format") ? args.get("format")
+                    : "asm";
+            if (!format.equalsIgnoreCase("asm")) {
+                try {
+                    r.format = Assembler.Format.valueOf(format.toUpperCase());
+                } catch (IllegalArgumentException iae) {
+                    throw new RuntimeException("format must be asm, bin, hex" +
+                            " or memh.");
+                }
+            }
+
+            return r;
+        }
+
+        private static String required(HashMap<String, String> args, String
+                key) {
+            String value = args.get(key);
+            if (value == null)
+                throw new RuntimeException("Missing " + key + "=");
+            return value;
+        }
+
+        private static int number(String s) {
+            try {
+                return Integer.parseInt(s);
+            } catch (NumberFormatException nfe) {
+                throw new RuntimeException("Not a number: " + s);
+            }
+        }
+    }
+
+    /**
+     * Frames whatever is written to it as chunks: a line with the length,
+     * then the bytes. finish() writes the zero length chunk that ends a
+     * reply, without closing the connection underneath.
+     */
+    private static class ChunkedOutputStream extends FilterOutputStream {
+
+        private final byte[] buffer = new byte[CHUNK];
+        private int count = 0;
+
+        ChunkedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length)
+                flushChunk();
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buffer.length)
+                    flushChunk();
+
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            flushChunk();
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            // The connection outlives the reply.
+            flush();
+        }
+
+        private void flushChunk() throws IOException {
+            if (count == 0)
+                return;
+
+            out.write((count + "\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+
+        void finish() throws IOException {
+            flushChunk();
+            out.write("0\n".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        }
+    }
+}
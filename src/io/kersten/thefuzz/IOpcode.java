@@ -1,13 +1,59 @@
 package io.kersten.thefuzz;
 
+import io.kersten.thefuzz.opcodes.*;
+
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Locale;
 
 /**
- *
+ * Describes an opcode: its mnemonic, what arguments it takes and which flags
+ * it sets. There's exactly one instance per Opcode, looked up with
+ * forOpcode(), so describing an instruction never allocates anything.
  */
 public abstract class IOpcode {
 
+    // The one instance of each opcode, indexed by ordinal.
+    private static final IOpcode[] REGISTRY = {
+            new ADD(), new SUB(), new NAND(), new XOR(), new INC(), new SRA(),
+            new SRL(), new SLL(), new LW(), new SW(), new LHB(), new LLB(),
+            new B(), new HLT(), new CALL(), new RET()
+    };
+
+    private static final HashMap<String, Opcode> BY_NAME = new
+            HashMap<String, Opcode>();
+
+    static {
+        for (Opcode o : Opcode.values()) {
+            if (REGISTRY[o.ordinal()].getOpcode() != o) {
+                throw new RuntimeException("Opcode registry is out of order " +
+                        "at " + o);
+            }
+
+            BY_NAME.put(o.name(), o);
+
+            IOpcode op = REGISTRY[o.ordinal()];
+            op.argumentTypes = op.getArgumentTypes();
+            op.flags = Alu.flags(op.setsZ(), op.setsN(), op.setsV());
+        }
+    }
+
+    /**
+     * @return The one description of this opcode.
+     */
+    public static IOpcode forOpcode(Opcode o) {
+        return REGISTRY[o.ordinal()];
+    }
+
+    /**
+     * @param mnemonic An opcode name, in any case.
+     * @return Its Opcode, or null if there's no such opcode.
+     */
+    public static Opcode fromMnemonic(String mnemonic) {
+        return BY_NAME.get(mnemonic.toUpperCase(Locale.ROOT));
+    }
+
     public Opcode getOpcode() {
         return this.opcode;
     }
@@ -20,11 +66,17 @@ public abstract class IOpcode {
         setOpcode(opcode);
     }
 
+    /**
+     * @return The opcodes "all" means. HLT is only ever inserted by the
+     * generator, and INC, CALL and RET are still stubs which can't be
+     * simulated.
+     */
     public static Collection<String> getAllOpcodes() {
         ArrayList<String> ops = new ArrayList<String>();
 
         for (Opcode o : Opcode.values()) {
-            if (o != Opcode.HLT && o != Opcode.RET)
+            if (o != Opcode.HLT && o != Opcode.RET && o != Opcode.INC && o
+                    != Opcode.CALL)
                 ops.add(o.toString().toUpperCase());
         }
 
@@ -32,20 +84,55 @@ public abstract class IOpcode {
     }
 
     public static boolean isValidOpcode(String s) {
-        for (Opcode o : Opcode.values()) {
-            if (o.name().equalsIgnoreCase(s))
-                return true;
-        }
-
-        return false;
+        return fromMnemonic(s) != null;
     }
 
     public enum Opcode {
-        ADD, SUB, NAND, XOR, INC, SRA, SRL, SLL, LW, SW, LHB, LLB, B, HLT, CALL, RET;
+        ADD(0x0), SUB(0x1), NAND(0x2), XOR(0x3), INC(0x4), SRA(0x5),
+        SRL(0x6), SLL(0x7), LW(0x8), SW(0x9), LHB(0xA), LLB(0xB), B(0xC),
+        HLT(0xF), CALL(0xD), RET(0xE);
+
+        private final int encoding;
+
+        Opcode(int encoding) {
+            this.encoding = encoding;
+        }
+
+        /**
+         * @return The 4-bit machine opcode.
+         */
+        public int getEncoding() {
+            return encoding;
+        }
     }
 
     private Opcode opcode;
 
+    // Filled in once for the registered instances, so the hot paths don't
+    // allocate a new array per call.
+    private ArgumentType[] argumentTypes;
+    private int flags = -1;
+
+    /**
+     * Same as getArgumentTypes()[position], without allocating.
+     */
+    public final ArgumentType getArgumentType(int position) {
+        if (argumentTypes == null)
+            return getArgumentTypes()[position];
+
+        return argumentTypes[position];
+    }
+
+    /**
+     * @return The Alu.FLAG_* bits this opcode sets.
+     */
+    public final int getFlags() {
+        if (flags < 0)
+            return Alu.flags(setsZ(), setsN(), setsV());
+
+        return flags;
+    }
+
     public abstract String getMnemonic();
 
     public abstract int getArgumentCount();
@@ -1,69 +1,236 @@
 package io.kersten.thefuzz;
 
-import com.sun.org.apache.xpath.internal.Arg;
-import io.kersten.thefuzz.opcodes.Label;
-
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 
 /**
  * Once an opcode has been generated with valid arguments and things, it becomes
- * an instruction.
+ * an instruction. Instructions are packed into a single int so that a program
+ * is just a growable int array (see InstructionStream); they only turn into
+ * text when the program is written out.
+ *
+ * Layout of an instruction word:
+ * * bits 0-4: the kind, which is the IOpcode.Opcode ordinal or LABEL.
+ * * bits 5-7: the branch condition for B, otherwise a NOTE_* value saying
+ * why the generator inserted the instruction.
+ * * bits 8-31: the label id for B and labels (see LabelTable).
+ * * bits 8-11, 12-19, 20-23: the first, second and third argument for
+ * everything else. The second argument is wide enough for an IMMEDIATE8 and
+ * the third holds a register or a two's complement IMMEDIATE4.
  */
-public class Instruction {
+public final class Instruction {
+
+    /**
+     * Kind of a label. Labels take up a slot in the listing but aren't
+     * opcodes.
+     */
+    public static final int LABEL = IOpcode.Opcode.values().length;
+
+    // Reasons the generator inserted an instruction, used to annotate it.
+    public static final int NOTE_NONE = 0;
+    public static final int NOTE_LW_ADDRESS = 1;
+    public static final int NOTE_SW_ADDRESS = 2;
+    public static final int NOTE_NOT_TAKEN = 3;
+
+    private static final IOpcode.Opcode[] OPCODES = IOpcode.Opcode.values();
+
+    private static final Condition[] CONDITIONS = Condition.values();
+
+    // The registered opcode of each kind.
+    private static final IOpcode[] BY_KIND = new IOpcode[OPCODES.length];
+
+    static {
+        for (IOpcode.Opcode o : OPCODES) {
+            BY_KIND[o.ordinal()] = IOpcode.forOpcode(o);
+        }
+    }
 
-    private IOpcode iOpcode;
+    private Instruction() {
+    }
 
-    private ArrayList<Argument> arguments = new ArrayList<Argument>();
+    /**
+     * Pack an instruction which takes up to three register/immediate
+     * arguments, in the order its opcode lists them.
+     */
+    public static int make(IOpcode.Opcode opcode, int first, int second,
+                           int third) {
+        return opcode.ordinal() | (first & 0xF) << 8 | (second & 0xFF) << 12
+                | (third & 0xF) << 20;
+    }
 
-    // This will show up in the output assembly - generator can put reasons
-    // here detailing what it expects about a certain line.
-    private String comment = "";
+    public static int make(IOpcode.Opcode opcode) {
+        return opcode.ordinal();
+    }
 
+    public static int branch(Condition condition, int label) {
+        return IOpcode.Opcode.B.ordinal() | condition.ordinal() << 5 | label
+                << 8;
+    }
 
-    public Instruction(IOpcode iOpcode) {
-        this.iOpcode = iOpcode;
+    public static int label(int label) {
+        return LABEL | label << 8;
     }
 
-    public ArrayList<Argument> getArguments() {
-        return arguments;
+    public static int withNote(int word, int note) {
+        return (word & ~0xE0) | note << 5;
     }
 
-    public void addArgument(Argument arg) {
-        arguments.add(arg);
+    public static int kind(int word) {
+        return word & 0x1F;
     }
 
-    public String getComment() {
-        return comment;
+    public static boolean isLabel(int word) {
+        return kind(word) == LABEL;
     }
 
-    public void setComment(String comment) {
-        this.comment = comment;
+    /**
+     * @return The opcode of this instruction, or null for a label.
+     */
+    public static IOpcode getiOpcode(int word) {
+        return isLabel(word) ? null : BY_KIND[kind(word)];
     }
 
-    public void appendComment(String ap) {
-        setComment(getComment() + "; " + ap);
+    public static IOpcode.Opcode opcode(int word) {
+        return OPCODES[kind(word)];
     }
 
-    public String print() {
-        String build = (iOpcode instanceof Label ? "" : "  ") +
-                iOpcode.getMnemonic() + " ";
+    public static int note(int word) {
+        return (word >>> 5) & 0x7;
+    }
+
+    public static Condition condition(int word) {
+        return CONDITIONS[(word >>> 5) & 0x7];
+    }
+
+    public static int labelId(int word) {
+        return word >>> 8;
+    }
 
-        int c = 0;
-        for (Argument a : arguments) {
-            build += a.print() + (c == arguments.size() - 1 ? "" : ", ");
-            c++;
+    /**
+     * @return The register number in the first argument.
+     */
+    public static int first(int word) {
+        return (word >>> 8) & 0xF;
+    }
+
+    /**
+     * @return The register number in the second argument.
+     */
+    public static int second(int word) {
+        return (word >>> 12) & 0xF;
+    }
+
+    /**
+     * @return The register number in the third argument.
+     */
+    public static int third(int word) {
+        return (word >>> 20) & 0xF;
+    }
+
+    /**
+     * @return The second argument as an 8-bit immediate. LHB immediates are
+     * signed, LLB immediates are not.
+     */
+    public static int immediate8(int word) {
+        int imm = (word >>> 12) & 0xFF;
+        return kind(word) == IOpcode.Opcode.LHB.ordinal() ? (byte) imm : imm;
+    }
+
+    /**
+     * @return The third argument as a sign-extended 4-bit immediate.
+     */
+    public static int immediate4(int word) {
+        return (word << 8) >> 28;
+    }
+
+    public static String print(int word, LabelTable labels,
+                               CharSequence comment) {
+        StringWriter build = new StringWriter();
+
+        try {
+            write(word, labels, comment, build);
+        } catch (IOException ioe) {
+            // StringWriter doesn't throw.
+            throw new RuntimeException(ioe);
+        }
+
+        return build.toString();
+    }
+
+    /**
+     * Write an instruction as one line of assembly (without the trailing
+     * newline) straight to out, rather than building it up as a String.
+     *
+     * @param word    The instruction.
+     * @param labels  The label names of the program it belongs to.
+     * @param comment Comment text, which goes after the '#', or null for
+     *                no comment at all (not even the '#').
+     * @param out     Where to write the instruction.
+     * @throws IOException If out can't be written to.
+     */
+    public static void write(int word, LabelTable labels, CharSequence comment,
+                             Writer out) throws IOException {
+        // Keep track of the column we're at so comments can be aligned.
+        int column = 0;
+
+        if (isLabel(word)) {
+            String title = labels.getName(labelId(word));
+            out.write(title);
+            out.write(": ");
+            column += title.length() + 2;
+        } else {
+            IOpcode op = getiOpcode(word);
+            out.write("  ");
+            column += 2;
+
+            String mnemonic = String.valueOf(op.getMnemonic());
+            out.write(mnemonic);
+            out.write(' ');
+            column += mnemonic.length() + 1;
+
+            int count = op.getArgumentCount();
+            for (int c = 0; c < count; c++) {
+                String arg = printArgument(word, labels, op.getArgumentType(c),
+                        c);
+                out.write(arg);
+                column += arg.length();
+
+                if (c != count - 1) {
+                    out.write(", ");
+                    column += 2;
+                }
+            }
         }
 
+        if (comment == null)
+            return;
+
         // Attempt to align comments...
-        int numSpaces = Math.max(0, 32 - build.length());
-        for (int i = 0; i < numSpaces; i++)
-            build += " ";
+        for (; column < 32; column++)
+            out.write(' ');
 
-        build += " #" + getComment();
-        return build;
+        out.write(" #");
+        out.append(comment);
     }
 
-    public IOpcode getiOpcode() {
-        return iOpcode;
+    private static String printArgument(int word, LabelTable labels,
+                                        ArgumentType type, int position) {
+        switch (type) {
+            case REGISTER:
+            case VREGISTER:
+                return "R" + (position == 0 ? first(word) : position == 1 ?
+                        second(word) : third(word));
+            case IMMEDIATE4:
+                return Integer.toString(immediate4(word));
+            case IMMEDIATE8:
+                return Integer.toString(immediate8(word));
+            case LABEL:
+                return labels.getName(labelId(word));
+            case CONDITION:
+                return condition(word).toString();
+            default:
+                return "INVALID ARGUMENT!";
+        }
     }
 }
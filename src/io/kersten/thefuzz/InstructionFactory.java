@@ -1,15 +1,13 @@
 package io.kersten.thefuzz;
 
-import io.kersten.thefuzz.opcodes.*;
-
-import java.util.ArrayList;
-import java.util.List;
-
 public class InstructionFactory {
 
+    // Condition.values() makes a new array every time.
+    private static final Condition[] CONDITIONS = Condition.values();
+
     /**
-     * Generates a list of one or more instructions that need to be added to a
-     * program in order to insert an opcode with this mnemonic. For example,
+     * Generates one or more instructions and adds them to the end of a
+     * program in order to insert an instruction of this opcode. For example,
      * adding a branch instruction will imply the following:
      * * The generator looks at the current state of the registers and
      * decides on a condition to branch.
@@ -25,22 +23,13 @@ public class InstructionFactory {
      *                 need to be able to see which registers have been written to,
      *                 so we don't wind up generating nonsense instructions which
      *                 take things from uninitialized registers.
-     * @param mnemonic Which opcode to generate a random instruction from.
-     * @return A list of Instructions that get generated, to be added to the end
-     * of the program.
+     * @param opcode   Which opcode to generate a random instruction from.
+     * @return How many instructions got added to the end of the program (zero
+     * if this opcode can't be generated in the program's current state).
      */
-    public static List<Instruction> generateInstruction(Program p,
-                                                        String mnemonic) {
-        if (!IOpcode.isValidOpcode(mnemonic.toUpperCase())) {
-            throw new RuntimeException("Not a valid mnemonic: " + mnemonic);
-        }
-
-        ArrayList<Instruction> newInstrs = new ArrayList<Instruction>();
-        IOpcode op = opcodeFromMnemonic(mnemonic);
-
-        //Generate arguments for this opcode...
-        newInstrs.add(new Instruction(op));
-
+    public static int generateInstruction(Program p, IOpcode.Opcode opcode) {
+        IOpcode op = IOpcode.forOpcode(opcode);
+        int before = p.getInstructions().size();
 
         // Special cases for certain instructions which need to generate
         // alternate paths through the test (like branch with pass/failure)
@@ -49,7 +38,7 @@ public class InstructionFactory {
         //TODO: in all special cases, while elaborating instructions,
         // need to check if it sets flags and set those flags.
         // set flags if the instruction needs it
-        if (mnemonic.equalsIgnoreCase("B")) {
+        if (opcode == IOpcode.Opcode.B) {
 
             // Need to do the following:
             // 1) Look at current state of the Program's register file and
@@ -61,117 +50,35 @@ public class InstructionFactory {
             int thisLabel = p.getLabelCount();
             p.incLabelCount();
 
-            // Choose a condition
-            int condIdx = (int) (Math.random() * Condition.values().length);
-            Condition cond = Condition.values()[condIdx];
+            // Choose a condition (the coverage model may have a preference)
+            Condition cond = p.getCoverage() != null ? p.getCoverage()
+                    .chooseCondition(p) : CONDITIONS[p.getRandom().nextInt
+                    (CONDITIONS.length)];
 
             // Determine if a branch on this condition will be taken or not.
-            boolean conditionIsTrue = false;
-            switch (cond) {
-                case NEQ:
-                    conditionIsTrue = !p.isFlag_z();
-                    break;
-                case EQ:
-                    conditionIsTrue = p.isFlag_z();
-                    break;
-                case GT:
-                    conditionIsTrue = !p.isFlag_z() && !p.isFlag_n();
-                    break;
-                case LT:
-                    conditionIsTrue = p.isFlag_n();
-                    break;
-                case GTE:
-                    conditionIsTrue = !p.isFlag_n();
-                    break;
-                case LTE:
-                    conditionIsTrue = p.isFlag_n() || p.isFlag_z();
-                    break;
-                case OVFL:
-                    conditionIsTrue = p.isFlag_v();
-                    break;
-                case UNCOND:
-                    conditionIsTrue = true;
-                    break;
-            }
-
-            newInstrs.get(0).appendComment("branch on " + cond + ", " +
-                    "take = " + (conditionIsTrue ? "yes" : "no"));
+            boolean conditionIsTrue = conditionHolds(p, cond);
 
             // Add the condition. If the condition is true and we take the
             // branch, we pass. Else, branch to a failure condition and add a
             // skip before it in the regular code.
-            newInstrs.get(0).addArgument(new Argument(p, ArgumentType.CONDITION,
-                    null, cond));
-            newInstrs.get(0).addArgument(new Argument(p, ArgumentType.LABEL,
-                    (conditionIsTrue ? "taken" + thisLabel : "nottaken"), null));
+            int target = conditionIsTrue ? p.getLabels().create("taken",
+                    thisLabel) : p.getLabels().intern("nottaken");
+            emit(p, Instruction.branch(cond, target));
 
             if (conditionIsTrue) {
                 // We need a failure path followed by a thisLabel,
                 // since this branch should skip it.
 
-                generateFailurePath(p, newInstrs);
-                newInstrs.add(new Instruction(new Label("taken" + thisLabel)));
+                generateFailurePath(p);
+                emit(p, Instruction.label(target));
             } else {
                 // The fall-through path is correct, and if we take the branch
                 // on accident we need to go to the global nottaken failure.
                 // Set the program to generate a global nottaken failure case.
                 p.setGenerateGlobalNotTaken();
             }
-
-            // XXX: Don't really need to simulate this,
-            // but don't want to forget to call simulate if we ever wind up
-            // needing it.
-            simulateLastInstruction(p, newInstrs.get(0));
-
-        } else if (mnemonic.equalsIgnoreCase("JAL")) {
-
-            // Need to do the following:
-            // 1) Generate a failure path (right after this instruction,
-            // since it's an unconditional).
-            //
-            // 2) Generate a label to branch to and insert at the end of the
-            // generated instructions.
-
-            int thisLabel = p.getLabelCount();
-            p.incLabelCount();
-
-            // Add a label to jump to.
-            newInstrs.get(0).addArgument(new Argument(p, ArgumentType.LABEL,
-                    "linklabel" + thisLabel, null));
-
-
-            simulateLastInstruction(p, newInstrs.get(0)); // Load R15
-
-            // Generate a failure path and then add our target label at the end.
-            generateFailurePath(p, newInstrs);
-
-            // Add target label
-            newInstrs.add(new Instruction(new Label("linklabel" + thisLabel)));
-
-        } else if (mnemonic.equalsIgnoreCase("JR")) {
-
-            // XXX: Not actually implementing because this will jump us back
-            // to wherever we JAL'd from, and that'll be a little hard to test
-            // Really, any complex JR constructions should be tested manually.
-
-            // Need to do the following:
-            // 0) Only generate this if R15 is valid.
-            // 1) Generate a failure path (right after the jump).
-
-            if (!p.isRegisterValid(Register.R15))
-                return new ArrayList<Instruction>();
-
-            newInstrs.get(0).addArgument(new Argument(p,
-                    ArgumentType.REGISTER, null, null));
-            newInstrs.get(0).getArguments().get(0).value_register =
-                    Register.R15;
-
-            simulateLastInstruction(p, newInstrs.get(0));
-
-            // Add a fall-through failure path after that.
-            generateFailurePath(p, newInstrs);
-        } else if (mnemonic.equalsIgnoreCase("LW") || mnemonic
-                .equalsIgnoreCase("SW")) {
+        } else if (opcode == IOpcode.Opcode.LW || opcode == IOpcode.Opcode
+                .SW) {
 
             // Need to do the following:
             // 1) Make sure the random addresses generated are valid (this
@@ -180,21 +87,34 @@ public class InstructionFactory {
             // generated (again, register + immOffset) is less than 65536 minus
             // dataOffset. Subtle but important.
 
-            if (mnemonic.equalsIgnoreCase("LW")) {
+            if (opcode == IOpcode.Opcode.LW) {
                 // Generate a valid memory address to load from...
-                if (p.getValidMemory().size() == 0) {
+                if (p.getMemory().getValidCount() == 0) {
                     // No valid addresses - can't generate a load instruction
                     // yet!
-                    return new ArrayList<Instruction>();
+                    return 0;
                 }
 
-                int addr = p.getValidMemory().get((int) (Math.random() * p
-                        .getValidMemory().size()));
+                int addr = p.getAddressAllocator().nextLoad(p);
+
+                // Is there a register already within reach of it?
+                int near = reuseAddress(p) ? p.getRegistersHolding(addr - 7,
+                        addr + 8) : 0;
+                if (near != 0) {
+                    Register base = p.getRandomRegister(near);
+                    Register target = p.getRandomRegister(Program
+                            .ANY_REGISTER & Program.NOT_R0);
+
+                    emit(p, Instruction.make(IOpcode.Opcode.LW, target
+                            .getNumber(), base.getNumber(), addr - p
+                            .getRegisterFile()[base.getNumber()]));
+                    return p.getInstructions().size() - before;
+                }
 
                 // Think of a split for how we want to index ths memory...
                 // Maximum offset is 4 bits, so we'll want to be able to go
                 // +7/-8 on it.
-                int offset = (int) (Math.random() * 16) - 8;
+                int offset = p.getRandom().nextInt(16) - 8;
 
                 // Need to insert the address less the offset into some random
                 // register...
@@ -202,207 +122,301 @@ public class InstructionFactory {
                 // by p.getMemoryDataOffset, since
                 // they're in the valid list.
 
-                // Need to get this value into a register. Need to use a LHB
-                // potentially, and definitely a LLB.
+                // First select a register to form the address...
+                Register chosenRegister = p.getRandomRegister(Program
+                        .ANY_REGISTER & Program.NOT_R0);
 
-                // First select a register to form the address
-                Register chosenRegister;
-
-                do {
-                    chosenRegister = p.getRandomRegister(false);
-                } while (chosenRegister == Register.R0);
-
-                // set up the lw instruction
-                newInstrs.get(0).addArgument(new Argument(p,
-                        ArgumentType.REGISTER, null, null));
-
-                do {
-                    newInstrs.get(0).getArguments().get(0).value_register =
-                            p.getRandomRegister(false);
-                } while (newInstrs.get(0).getArguments().get(0)
-                        .value_register == Register.R0);
-
-                newInstrs.get(0).addArgument(new Argument(p,
-                        ArgumentType.REGISTER, null, null));
-                newInstrs.get(0).getArguments().get(1).value_register =
-                        chosenRegister;
-                newInstrs.get(0).addArgument(new Argument(p,
-                        ArgumentType.IMMEDIATE4, null, null));
-                newInstrs.get(0).getArguments().get(2).value_immediate =
-                        (short) offset;
-
-
-                newInstrs.get(0).appendComment(newInstrs.get(0).getArguments()
-                        .get(0).value_register + "<-mem[" + addr
-                        + "]");
-
-                // See if we need an LHB
-                if (((short) intoReg & 0xFF00) > 0) {
-                    // Yes it's needed.
-
-                    newInstrs.add(0, new Instruction(new LHB()));
-                    newInstrs.get(0).addArgument(new Argument(p,
-                            ArgumentType.REGISTER, null, null));
-
-                    newInstrs.get(0).getArguments().get(0).value_register
-                            = chosenRegister;
-
-                    // Sets its value to the lower bits of the intoReg
-                    newInstrs.get(0).addArgument(new Argument(p,
-                            ArgumentType.IMMEDIATE8, null, null));
-                    newInstrs.get(0).getArguments().get(1).value_immediate =
-                            (short) ((short) (intoReg & 0xFF00) >> 8);
-                    newInstrs.get(0).appendComment("Load upper for lw");
-                }
-
-                newInstrs.add(0, new Instruction(new LLB()));
-                newInstrs.get(0).addArgument(new Argument(p,
-                        ArgumentType.REGISTER, null, null));
-
-                newInstrs.get(0).getArguments().get(0).value_register =
-                        chosenRegister;
+                // ...and one to load into.
+                Register target = p.getRandomRegister(Program.ANY_REGISTER &
+                        Program.NOT_R0);
 
-                // Sets its value to the lower bits of the intoReg
-                newInstrs.get(0).addArgument(new Argument(p,
-                        ArgumentType.IMMEDIATE8, null, null));
-                newInstrs.get(0).getArguments().get(1).value_immediate =
-                        (short) (intoReg & 0xFF);
-                newInstrs.get(0).appendComment("Load lower for lw");
+                // Need to get the address into a register. Need to use a LHB
+                // potentially, and definitely a LLB.
+                generateAddress(p, chosenRegister, intoReg,
+                        Instruction.NOTE_LW_ADDRESS);
 
-                for (Instruction i : newInstrs) {
-                    simulateLastInstruction(p, i);
-                }
+                emit(p, Instruction.make(IOpcode.Opcode.LW, target.getNumber(),
+                        chosenRegister.getNumber(), offset));
             } else {
                 // Store word. Need to find somewhere to store something and
                 // think of something to store.
 
                 // Store it somewhere in valid memory, but watch out for the
                 // data memory offset cap.
+                AddressAllocator allocator = p.getAddressAllocator();
                 int addr;
 
-                // Eh, screw it, keep addresses positive in 16-bit signed.
-                do {
-                    addr = (int) (Math.random() * (p.getMemory().length - p
-                            .getMemoryDataOffset()));
-                } while (addr > ((1 << 15) - 1));
+                // Store relative to a register that's already holding
+                // something in range, if there is one? Any offset from it
+                // has to stay in range too. With no pattern to keep to, any
+                // such register will do; otherwise it has to reach the
+                // address the pattern wants.
+                if (allocator.isRandom()) {
+                    int near = reuseAddress(p) ? p.getRegistersHolding(8,
+                            AddressAllocator.limit(p) - 7) : 0;
+                    if (near != 0) {
+                        Register base = p.getRandomRegister(near);
+                        int offset = p.getRandom().nextInt(16) - 8;
+                        addr = p.getRegisterFile()[base.getNumber()] + offset;
+                        storeFrom(p, base, addr);
+                        return p.getInstructions().size() - before;
+                    }
 
-                int offset = (int) (Math.random() * 16) - 8;
+                    addr = allocator.nextStore(p);
+                } else {
+                    addr = allocator.nextStore(p);
 
-                int intoReg = addr - offset;
+                    int near = reuseAddress(p) ? p.getRegistersHolding(addr -
+                            7, addr + 8) : 0;
+                    if (near != 0) {
+                        storeFrom(p, p.getRandomRegister(near), addr);
+                        return p.getInstructions().size() - before;
+                    }
+                }
 
-                p.getValidMemory().add(addr);
+                int offset = p.getRandom().nextInt(16) - 8;
 
-                // Okay, pick a valid register whose contents we want to store.
+                int intoReg = addr - offset;
 
-                // First select a register to form the address
-                Register chosenRegister;
-
-                do {
-                    chosenRegister = p.getRandomRegister(false);
-                } while (chosenRegister == Register.R0);
-
-                // set up sw instruction
-                newInstrs.get(0).addArgument(new Argument(p,
-                        ArgumentType.REGISTER, null, null));
-                newInstrs.get(0).getArguments().get(0).value_register =
-                        p.getRandomRegister(true);
-                newInstrs.get(0).addArgument(new Argument(p,
-                        ArgumentType.REGISTER, null, null));
-                newInstrs.get(0).getArguments().get(1).value_register =
-                        chosenRegister;
-                newInstrs.get(0).addArgument(new Argument(p,
-                        ArgumentType.IMMEDIATE4, null, null));
-                newInstrs.get(0).getArguments().get(2).value_immediate =
-                        (short) offset;
-
-                newInstrs.get(0).appendComment(newInstrs.get(0).getArguments()
-                        .get(0).value_register + "=" + p.getRegisterFile()[newInstrs.get(0).getArguments()
-                        .get(0).value_register.getNumber()] + "->mem[" + addr
-                        + "]");
-
-                // See if we need an LHB
-                if (((short) intoReg & 0xFF00) > 0) {
-                    // Yes it's needed.
-                    newInstrs.add(0, new Instruction(new LHB()));
-                    newInstrs.get(0).addArgument(new Argument(p,
-                            ArgumentType.REGISTER, null, null));
-
-                    newInstrs.get(0).getArguments().get(0).value_register
-                            = chosenRegister;
-
-                    // Sets its value to the lower bits of the intoReg
-                    newInstrs.get(0).addArgument(new Argument(p,
-                            ArgumentType.IMMEDIATE8, null, null));
-                    newInstrs.get(0).getArguments().get(1).value_immediate =
-                            (short) ((short) (intoReg & 0xFF00) >> 8);
-                    newInstrs.get(0).appendComment("Load upper for sw");
-                }
+                p.getMemory().setValid(addr);
 
-                newInstrs.add(0, new Instruction(new LLB()));
-                newInstrs.get(0).addArgument(new Argument(p,
-                        ArgumentType.REGISTER, null, null));
+                // First select a register to form the address
+                Register chosenRegister = p.getRandomRegister(Program
+                        .ANY_REGISTER & Program.NOT_R0);
 
-                newInstrs.get(0).getArguments().get(0).value_register =
-                        chosenRegister;
+                // Okay, pick a valid register whose contents we want to store.
+                Register source = p.getRandomRegister(true);
 
-                // Sets its value to the lower bits of the intoReg
-                newInstrs.get(0).addArgument(new Argument(p,
-                        ArgumentType.IMMEDIATE8, null, null));
-                newInstrs.get(0).getArguments().get(1).value_immediate =
-                        (short) (intoReg & 0xFF);
-                newInstrs.get(0).appendComment("Load lower for sw");
+                generateAddress(p, chosenRegister, intoReg,
+                        Instruction.NOTE_SW_ADDRESS);
 
-                for (Instruction i : newInstrs) {
-                    simulateLastInstruction(p, i);
-                }
+                emit(p, Instruction.make(IOpcode.Opcode.SW, source.getNumber(),
+                        chosenRegister.getNumber(), offset));
             }
         } else {
             // Otherwise, for each argument, assign it a value. These arguments
             // should usually just be immediate/register types since other ones
             // really do require additional logic (as seen above).
-            for (ArgumentType t : op.getArgumentTypes()) {
-                if (!(t == ArgumentType.IMMEDIATE4 || t == ArgumentType
-                        .IMMEDIATE8 || t == ArgumentType.REGISTER || t ==
-                        ArgumentType.VREGISTER)) {
-                    throw new RuntimeException("Precious and fragile things " +
-                            "need special handling - can't randomly generate " +
-                            "label or condition names without additional " +
-                            "logic.");
-                }
+            int count = op.getArgumentCount();
+
+            // For each argument the instruction expects, add a random one.
+            int first = count > 0 ? randomArgument(p, op.getArgumentType(0)) :
+                    0;
+            int second = count > 1 ? randomArgument(p, op.getArgumentType(1))
+                    : 0;
+            int third = count > 2 ? randomArgument(p, op.getArgumentType(2)) :
+                    0;
+
+            // If the coverage model still wants to see this overflow, try a
+            // few more pairs of operands to find one that does.
+            int tries = p.getCoverage() != null ? p.getCoverage()
+                    .overflowTries(opcode) : 0;
+            for (; tries > 0 && !overflows(p, opcode, second, third);
+                 tries--) {
+                second = randomArgument(p, op.getArgumentType(1));
+                third = randomArgument(p, op.getArgumentType(2));
+                if (p.getMetrics() != null)
+                    p.getMetrics().reject(GeneratorMetrics.Rejection
+                            .OVERFLOW_RETRY);
+            }
 
-                // For each argument the instruction expects, add a random one.
-                newInstrs.get(0).addArgument(new RandomArgument(p, t, null,
-                        null));
+            // Otherwise it may want the flags left in a state it hasn't seen
+            // enough of (or one on the way there).
+            int wanted = tries == 0 && p.getCoverage() != null ? p
+                    .getCoverage().wantedFlags(p, opcode) : -1;
+            for (tries = wanted < 0 ? 0 : CoverageModel.TRIES; tries > 0 &&
+                    flagsAfter(p, opcode, second, third) != wanted; tries--) {
+                second = randomArgument(p, op.getArgumentType(1));
+                third = randomArgument(p, op.getArgumentType(2));
+                if (p.getMetrics() != null)
+                    p.getMetrics().reject(GeneratorMetrics.Rejection
+                            .FLAGS_RETRY);
+            }
 
+            emit(p, Instruction.make(opcode, first, second, third));
+        }
 
-            }
+        return p.getInstructions().size() - before;
+    }
 
-            simulateLastInstruction(p, newInstrs.get(0));
+    /**
+     * Same as above, for an opcode given by name. Looking the name up costs
+     * a little, so callers generating lots of instructions should resolve
+     * their mnemonics once with IOpcode.fromMnemonic.
+     *
+     * @param mnemonic Which opcode to generate a random instruction from.
+     */
+    public static int generateInstruction(Program p, String mnemonic) {
+        IOpcode.Opcode opcode = IOpcode.fromMnemonic(mnemonic);
+        if (opcode == null) {
+            throw new RuntimeException("Not a valid mnemonic: " + mnemonic);
         }
 
-        // Look at any generated instructions' target registers and set them to
-        // valid in the program state. (This could be moved into the simulate
-        // method.)
-        for (Instruction i : newInstrs)
-            if (i.getArguments().size() > 0)
-                if (i.getArguments().get(0).getType() == ArgumentType.REGISTER)
-                    // Don't know for sure if any addz executed,
-                    // so set it valid only when it simulates (different method)
-                    p.setRegisterValid(i.getArguments().get(0)
-                            .value_register);
-
-        return newInstrs;
+        return generateInstruction(p, opcode);
     }
 
-    private static void simulateLastInstruction(Program p, Instruction instr) {
+    /**
+     * Pick a random value for an argument of the given type.
+     *
+     * @return A register number or an immediate value.
+     */
+    private static int randomArgument(Program p, ArgumentType type) {
+        switch (type) {
+            case REGISTER:
+                return p.getRandomRegister(false).getNumber();
+            case VREGISTER:
+                return p.getRandomRegister(true).getNumber();
+            case IMMEDIATE4:
+                return p.getRandom().nextInt(1 << 3);
+            case IMMEDIATE8:
+                return p.getRandom().nextInt(1 << 7);
+            case LABEL:
+            case CONDITION:
+                throw new RuntimeException("Precious and fragile things " +
+                        "need special handling - can't randomly generate " +
+                        "label or condition names without additional " +
+                        "logic.");
+            default:
+                throw new RuntimeException("Unknown argument type.");
+        }
+    }
+
+    /**
+     * Append an instruction to the program and update the program state to
+     * what it would be after executing it.
+     */
+    private static void emit(Program p, int word) {
+        int flagsBefore = p.getFlags();
+
+        p.getInstructions().add(word);
+        simulateLastInstruction(p, word, null);
+
+        // Failure paths never run, so they don't count toward coverage.
+        if (p.getCoverage() != null && Instruction.kind(word) != IOpcode
+                .Opcode.HLT.ordinal())
+            p.getCoverage().record(word, flagsBefore, p.getFlags());
+
+        // Look at the instruction's target register and set it to valid in
+        // the program state.
+        IOpcode op = Instruction.getiOpcode(word);
+        if (op != null && op.getArgumentCount() > 0 && op.getArgumentType(0)
+                == ArgumentType.REGISTER) {
+            p.setRegisterValid(Program.registerFromNumber(Instruction.first
+                    (word)));
+        }
+    }
+
+    /**
+     * Load a value into a register with an LLB, and an LHB if the upper
+     * byte isn't zero.
+     *
+     * @param note Why the value is being loaded (an Instruction.NOTE_*).
+     */
+    private static void generateAddress(Program p, Register r, int intoReg,
+                                        int note) {
+        // Sets its value to the lower bits of the intoReg
+        emit(p, Instruction.withNote(Instruction.make(IOpcode.Opcode.LLB, r
+                .getNumber(), intoReg & 0xFF, 0), note));
+
+        // See if we need an LHB
+        if (((short) intoReg & 0xFF00) > 0) {
+            // Yes it's needed.
+            emit(p, Instruction.withNote(Instruction.make(IOpcode.Opcode.LHB, r
+                    .getNumber(), (short) ((short) (intoReg & 0xFF00) >> 8), 0),
+                    note));
+        }
+    }
+
+    /**
+     * Store a random valid register to addr, relative to a register that's
+     * already within reach of it.
+     */
+    private static void storeFrom(Program p, Register base, int addr) {
+        p.getMemory().setValid(addr);
+
+        Register source = p.getRandomRegister(true);
+        emit(p, Instruction.make(IOpcode.Opcode.SW, source.getNumber(), base
+                .getNumber(), addr - p.getRegisterFile()[base.getNumber()]));
+    }
+
+    /**
+     * Should this load or store try to reuse a register for its address?
+     * Doesn't touch the random stream unless reuse is turned on.
+     */
+    private static boolean reuseAddress(Program p) {
+        return p.getReuseRate() > 0 && p.getRandom().nextDouble() < p
+                .getReuseRate();
+    }
+
+    /**
+     * Would ADD or SUB of these registers overflow?
+     */
+    private static boolean overflows(Program p, IOpcode.Opcode opcode, int
+            second, int third) {
+        short[] regs = p.getRegisterFile();
+        int outcome = opcode == IOpcode.Opcode.ADD ? Alu.add(regs[second],
+                regs[third]) : Alu.sub(regs[second], regs[third]);
+        return (Alu.flags(outcome) & Alu.FLAG_V) != 0;
+    }
+
+    /**
+     * @return The flags after an ALU instruction with these operands.
+     */
+    private static int flagsAfter(Program p, IOpcode.Opcode opcode, int
+            second, int third) {
+        IOpcode op = IOpcode.forOpcode(opcode);
+        short[] regs = p.getRegisterFile();
+        int arg2 = op.getArgumentType(2) == ArgumentType.IMMEDIATE4 ? third :
+                regs[third];
+        int sets = op.getFlags();
+        return p.getFlags() & ~sets | Alu.flags(Alu.apply(opcode,
+                regs[second], arg2)) & sets;
+    }
+
+    /**
+     * Would a branch on this condition be taken in the program's current
+     * state?
+     */
+    public static boolean conditionHolds(Program p, Condition cond) {
+        return Alu.conditionHolds(cond, Alu.flags(p.isFlag_z(), p.isFlag_n(),
+                p.isFlag_v()));
+    }
+
+    /**
+     * Simulate executing one instruction based on its arguments and the
+     * current program state, updating that state.
+     *
+     * @param p       The program whose state to update.
+     * @param word    The instruction.
+     * @param note    If not null, filled in with what this instruction did,
+     *                for its comment in the output assembly.
+     */
+    static void simulateLastInstruction(Program p, int word, Annotation
+            note) {
         // Sanity check on R0...
         if (p.getRegisterFile()[0] != 0) {
-            p.print();
+            p.dumpRegisters();
             throw new RuntimeException("R0 became non-zero!");
         }
 
-        // Simulate executing this instruction based on its arguments
-        // and the current program state.
+        if (Instruction.isLabel(word)) {
+            if (note != null) {
+                note.reset(Instruction.note(word));
+                note.label = true;
+            }
+            return;
+        }
+
+        IOpcode op = Instruction.getiOpcode(word);
+        short[] regs = p.getRegisterFile();
+
+        if (note != null) {
+            // Only the address loads say why the generator put them here.
+            note.reset(op.getOpcode() == IOpcode.Opcode.LLB || op
+                    .getOpcode() == IOpcode.Opcode.LHB ? Instruction.note
+                    (word) : Instruction.NOTE_NONE);
+            note.operation = op.getOpcode();
+        }
 
         // These flag values will only be invoked if it winds up that this
         // instruction actually should be setting flags.
@@ -420,184 +434,101 @@ public class InstructionFactory {
         // XXX: This might fail in the future if we ever have opcodes
         // that set flags that aren't of the pattern of TARGET, ARG1,
         // ARG2.
-        if (instr.getiOpcode().getArgumentCount() == 3) {
+        if (op.getArgumentCount() == 3) {
             // Need to read arg1 and arg2 out of here. This means that this
             // instruction potentially sets flags. Ones that don't are LW and
             // SW.
             // Candidates: ADD, ADDZ, SUB, AND, NOR, SLL, SRL, SRA, LW, SW
 
+            int target = Instruction.first(word);
+
             // For memory operations, update the memory or registers.
-            if (instr.getiOpcode().getMnemonic().equalsIgnoreCase("LW")) {
+            if (op.getOpcode() == IOpcode.Opcode.LW) {
                 // Load this memory location into the register. Presumably
                 // the location is valid (since this came from a generator
                 // which should be providing us with valid instructions).
+                int addr = (regs[Instruction.second(word)] + Instruction
+                        .immediate4(word)) & (DataMemory.SIZE - 1);
+                if (note != null) {
+                    note.effect = Annotation.LOAD;
+                    note.target = target;
+                    note.address = addr;
+                    note.r0 = target == 0;
+                }
 
-                if (instr.getArguments().get(0).value_register == Register.R0) {
-                    instr.appendComment("No change to R0");
-                } else {
-                    p.getRegisterFile()[
-                            instr.getArguments().get(0).value_register.getNumber()
-                            ] =
-                            p.getMemory()[
-                                    p.getMemoryDataOffset() + p.getRegisterFile()[
-                                            instr.getArguments().get(1)
-                                                    .value_register.getNumber()]
-                                            + instr.getArguments().get(2)
-                                            .value_immediate
-                                    ];
+                if (target != 0) {
+                    regs[target] = p.getMemory().read(addr);
+                }
+            } else if (op.getOpcode() == IOpcode.Opcode.SW) {
+                int addr = (regs[Instruction.second(word)] + Instruction
+                        .immediate4(word)) & (DataMemory.SIZE - 1);
+                if (note != null) {
+                    note.effect = Annotation.STORE;
+                    note.target = target;
+                    note.value = regs[target];
+                    note.address = addr;
                 }
-            } else if (instr.getiOpcode().getMnemonic().equalsIgnoreCase("SW")) {
-                p.getMemory()[
-                        p.getMemoryDataOffset() +
-                                p.getRegisterFile()[
-                                        instr.getArguments().get(1)
-                                                .value_register.getNumber()]
-                                + instr.getArguments().get(2).value_immediate
-                        ] =
-                        p.getRegisterFile()[instr.getArguments().get(0)
-                                .value_register.getNumber()];
+
+                p.getMemory().write(addr, regs[target]);
             } else {
                 // For ALU operations, update the registers and set flags.
 
                 // XXX: Assumptions here about argument types, again.
                 // Arg1 is always in a register.
-                arg1 = p.getRegisterFile()[instr.getArguments().get(1)
-                        .value_register.getNumber()];
+                arg1 = regs[Instruction.second(word)];
 
                 // Arg2 depends on if this is a shift or not. Check for an
                 // immediate 4-bit argument.
-                if (instr.getiOpcode().getArgumentTypes()[2] ==
-                        ArgumentType.IMMEDIATE4) {
-                    arg2 = instr.getArguments().get(2).value_immediate;
-                } else if (instr.getiOpcode().getArgumentTypes()[2] ==
-                        ArgumentType.VREGISTER) {
-                    arg2 = p.getRegisterFile()[instr.getArguments().get(2)
-                            .value_register.getNumber()];
+                if (op.getArgumentType(2) == ArgumentType.IMMEDIATE4) {
+                    arg2 = Instruction.immediate4(word);
+                } else if (op.getArgumentType(2) == ArgumentType.VREGISTER) {
+                    arg2 = regs[Instruction.third(word)];
                 } else {
                     throw new RuntimeException("Unexpected argument type " +
                             "during simulation!");
                 }
 
                 // Perform the ALU operation.
-                switch (instr.getiOpcode().getOpcode()) {
-                    case ADD:
-                        if (arg1 + arg2 > (1 << 15) - 1)
-                            setVTo = true;
-                        aluResult = Math.min(arg1 + arg2, (1 << 15) - 1);
-                        if (aluResult == 0)
-                            setZTo = true;
-                        if (aluResult < 0)
-                            setNTo = true;
-                        instr.appendComment("(" + arg1 + "+" + arg2 + "=" +
-                                (short) aluResult + ")");
-                        break;
-                    case SUB:
-                        if (arg1 - arg2 < -(1 << 15))
-                            setVTo = true;
-                        aluResult = Math.max(arg1 - arg2, -(1 << 15));
-                        if (aluResult == 0)
-                            setZTo = true;
-                        if (aluResult < 0)
-                            setNTo = true;
-                        instr.appendComment("(" + arg1 + "-" + arg2 + "=" +
-                                (short) aluResult + ")");
-                        break;
-                    case NAND:
-                        aluResult = ~(arg1 & arg2);
-                        setVTo = false;
-                        setNTo = false;
-                        if (aluResult == 0)
-                            setZTo = true;
-                        instr.appendComment("(" + arg1 + "!&" + arg2 + "=" +
-                                (short) aluResult + ")");
-                        break;
-                    case XOR:
-                        aluResult = (arg1 ^ arg2);
-                        setVTo = false;
-                        setNTo = false;
-                        if (aluResult == 0)
-                            setZTo = true;
-                        instr.appendComment("(~(" + arg1 + "^" + arg2 + ")=" +
-                                (short) aluResult + ")");
-                        break;
-                    case INC:
-                        // TODO
-                    case SLL:
-                        aluResult = arg1 << arg2;
-                        if (aluResult == 0)
-                            setZTo = true;
-                        instr.appendComment("(" + arg1 + "<<" + arg2 + "=" +
-                                (short) aluResult + ")");
-                        break;
-                    case SRL:
-                        aluResult = arg1 >> arg2;
-                        if (aluResult == 0)
-                            setZTo = true;
-                        instr.appendComment("(" + arg1 + ">>" + arg2 + "=" +
-                                (short) aluResult + ")");
-                        break;
-                    case SRA:
-                        // This is tricky because we're doing these
-                        // high-level on ints but need some zeros inserted
-                        // down in the 16-bit range. So cast to short first.
-                        aluResult = ((short) arg1 >>> arg2);
-                        if (aluResult == 0)
-                            setZTo = true;
-                        instr.appendComment("(" + arg1 + ">>>" + arg2 + "=" +
-                                (short) aluResult + ")");
-                        break;
-                    case INC:
-                        throw new RuntimeException("INC currently not supported!");
-                    default:
-                        throw new RuntimeException("How did we get here? (1)");
+                int outcome = Alu.apply(op.getOpcode(), arg1, arg2);
+
+                if (note != null) {
+                    note.effect = Annotation.ALU;
+                    note.arg1 = arg1;
+                    note.arg2 = arg2;
+                    note.result = Alu.result(outcome);
+                    note.r0 = target == 0;
                 }
 
+                aluResult = Alu.result(outcome);
+                setZTo = (Alu.flags(outcome) & Alu.FLAG_Z) != 0;
+                setNTo = (Alu.flags(outcome) & Alu.FLAG_N) != 0;
+                setVTo = (Alu.flags(outcome) & Alu.FLAG_V) != 0;
+
                 // Okay, update the state of the target register with the ALU
                 // result. Don't write to R0 though...
-                if (instr.getArguments().get(0).value_register != Register.R0)
-                    p.getRegisterFile()[instr.getArguments().get(0)
-                            .value_register.getNumber()] = (short) aluResult;
-                else
-                    instr.appendComment("No change to R0");
+                if (target != 0)
+                    regs[target] = (short) aluResult;
             }
-        } else if (instr.getiOpcode().getArgumentCount() == 2) {
+        } else if (op.getArgumentCount() == 2) {
             // This instruction potentailly changes things in memory or
             // registers. I don't think these can set flags though.
             // Candidates: LHB, LLB, B
 
-            switch (instr.getiOpcode().getOpcode()) {
+            int target = Instruction.first(word);
+
+            switch (op.getOpcode()) {
                 case LHB:
-                    if (instr.getArguments().get(0).value_register != Register
-                            .R0) {
-                        p.getRegisterFile()[instr.getArguments().get(0)
-                                .value_register.getNumber()] = (short) ((p
-                                .getRegisterFile()[instr.getArguments().get(0)
-                                .value_register.getNumber()]) & 0xFF);
-                        p.getRegisterFile()[instr.getArguments().get(0)
-                                .value_register.getNumber()] += (instr
-                                .getArguments().get(1).value_immediate << 8);
-                    } else {
-                        instr.appendComment("No change to R0");
+                    if (target != 0) {
+                        regs[target] = (short) (regs[target] & 0xFF);
+                        regs[target] += (Instruction.immediate8(word) << 8);
                     }
-                    instr.appendComment(instr.getArguments().get(0)
-                            .value_register + "=" +
-                            p.getRegisterFile()[instr.getArguments().get(0)
-                                    .value_register.getNumber()]);
+                    loadedByte(note, target, regs[target]);
                     break;
                 case LLB:
-                    if (instr.getArguments().get(0).value_register != Register
-                            .R0) {
-                        p.getRegisterFile()[instr.getArguments().get(0)
-                                .value_register.getNumber()] = (instr
-                                .getArguments().get(1).value_immediate);
-                    } else {
-                        instr.appendComment("No change to R0");
+                    if (target != 0) {
+                        regs[target] = (short) Instruction.immediate8(word);
                     }
-
-                    instr.appendComment(instr.getArguments().get(0)
-                            .value_register + "=" +
-                            p.getRegisterFile()[instr.getArguments().get(0)
-                                    .value_register.getNumber()]);
+                    loadedByte(note, target, regs[target]);
                     break;
                 case B:
                     // TODO: Branching really doesn't need to be simulated
@@ -605,6 +536,11 @@ public class InstructionFactory {
                     // structures, which we don't need to do for the purposes
                     // of our testing. For now, we just generate the control
                     // path for branching.
+                    if (note != null) {
+                        note.effect = Annotation.BRANCH;
+                        note.condition = Instruction.condition(word);
+                        note.taken = conditionHolds(p, note.condition);
+                    }
                     break;
                 default:
                     throw new RuntimeException("How did we get here? (2)");
@@ -613,7 +549,7 @@ public class InstructionFactory {
             // These instructions just modify the PC.
             // Candidates: CALL, RET
 
-            switch (instr.getiOpcode().getOpcode()) {
+            switch (op.getOpcode()) {
                 case CALL:
                     //TODO
                     throw new RuntimeException("CALL not implemented - too complex " +
@@ -622,148 +558,58 @@ public class InstructionFactory {
                     //TODO
                     throw new RuntimeException("RET not implemented - too complex " +
                             "to make subroutines right now. Test manually.");
-                /*
-                case JR:
-                    throw new RuntimeException("JR not implemented - too complex " +
-                            "to make subroutines right now. Test manually.");
-                case JAL:
-                    // Loads PC + 1 into R15. The program doesn't have this
-                    // instruction yet though. It needs one past this
-                    // instruction.
-                    // XXX: Assume that this instruction would be the next one
-                    // to be added to p's list of instructions,
-                    // so the last instruction in p.instructions is PC - 1.
-                    short pcp1 = (short)(p.getInstructions().size() + 2);
-                    p.getRegisterFile()[Register.R15.getNumber()] = pcp1;
-
-                    // Also set R15 as valid now...
-                    p.setRegisterValid(Register.R15);
-                    instr.appendComment("R15 linked to PC=" + pcp1);
-
-                    break;
-                    */
             }
         }
 
         // Now, set flags if the previous instruction would have.
 
-        if (instr.getiOpcode().setsZ()) {
+        int sets = op.getFlags();
+
+        if ((sets & Alu.FLAG_Z) != 0) {
             p.setFlag_z(setZTo);
-            instr.appendComment("Z->" + (setZTo ? "1" : "0"));
         }
 
-        if (instr.getiOpcode().setsN()) {
+        if ((sets & Alu.FLAG_N) != 0) {
             p.setFlag_n(setNTo);
-            instr.appendComment("N->" + (setNTo ? "1" : "0"));
         }
 
-        if (instr.getiOpcode().setsV()) {
+        if ((sets & Alu.FLAG_V) != 0) {
             p.setFlag_v(setVTo);
-            instr.appendComment("V->" + (setVTo ? "1" : "0"));
-        }
-
-    }
-
-    public static IOpcode opcodeFromMnemonic(String mnemonic) {
-        if (mnemonic.equalsIgnoreCase("ADD")) {
-            return new ADD();
-        }
-
-        if (mnemonic.equalsIgnoreCase("ADDZ")) {
-            return new ADDZ();
-        }
-
-        if (mnemonic.equalsIgnoreCase("SUB")) {
-            return new SUB();
-        }
-
-        if (mnemonic.equalsIgnoreCase("AND")) {
-            return new AND();
         }
 
-        if (mnemonic.equalsIgnoreCase("NOR")) {
-            return new NOR();
-        }
-
-        if (mnemonic.equalsIgnoreCase("SLL")) {
-            return new SLL();
-        }
-
-        if (mnemonic.equalsIgnoreCase("SRL")) {
-            return new SRL();
-        }
-
-        if (mnemonic.equalsIgnoreCase("SRA")) {
-            return new SRA();
-        }
-
-        if (mnemonic.equalsIgnoreCase("LW")) {
-            return new LW();
-        }
-
-        if (mnemonic.equalsIgnoreCase("SW")) {
-            return new SW();
-        }
-
-        if (mnemonic.equalsIgnoreCase("LLB")) {
-            return new LLB();
-        }
-
-        if (mnemonic.equalsIgnoreCase("LHB")) {
-            return new LHB();
-        }
-
-        if (mnemonic.equalsIgnoreCase("B")) {
-            return new B();
-        }
-
-        if (mnemonic.equalsIgnoreCase("JAL")) {
-            return new JAL();
-        }
-
-        if (mnemonic.equalsIgnoreCase("JR")) {
-            return new JR();
-        }
-
-        if (mnemonic.equalsIgnoreCase("NAND")){
-            return new NAND();
-        }
-
-        if (mnemonic.equalsIgnoreCase("XOR")){
-            return new XOR();
-        }
-
-        if (mnemonic.equalsIgnoreCase("CALL")){
-            return new CALL();
-        }
-
-        if (mnemonic.equalsIgnoreCase("RET")){
-            return new RET();
+        if (note != null) {
+            note.flagsSet = sets;
+            note.flags = Alu.flags(setZTo, setNTo, setVTo);
         }
+    }
 
-        if (mnemonic.equalsIgnoreCase("INC")){
-            return new INC();
+    /**
+     * Note down an LLB or LHB's new value.
+     */
+    private static void loadedByte(Annotation note, int target, short value) {
+        if (note != null) {
+            note.effect = Annotation.LOAD_BYTE;
+            note.target = target;
+            note.result = value;
+            note.r0 = target == 0;
         }
-
-        return null;
     }
 
     /**
      * Generates a dead-end failure path of instrs into which the program
      * control flow will fall if a branch/jump fails.
      *
-     * @param p      The program so we can look at register states
-     * @param instrs The instruction set which will be populated.
+     * @param p The program to add the failure path to.
      */
-    private static void generateFailurePath(Program p, ArrayList<Instruction>
-            instrs) {
+    private static void generateFailurePath(Program p) {
 
         // The most basic implementation of this will just be a failure label
         // followed by a halt.
-        instrs.add(new Instruction(new Label("fail" + p.getLabelCount())));
+        emit(p, Instruction.label(p.getLabels().create("fail", p
+                .getLabelCount())));
         p.incLabelCount();
 
-        instrs.add(new Instruction(new HLT()));
+        emit(p, Instruction.make(IOpcode.Opcode.HLT));
 
         // TODO: We might want to generate longer failure paths at random to
         // test things like erroneous instruction fetches or something.
@@ -0,0 +1,83 @@
+package io.kersten.thefuzz;
+
+import java.util.Arrays;
+
+/**
+ * A growable array of packed instruction words (see Instruction). This is all
+ * the storage a generated program needs per instruction.
+ *
+ * A stream can be frozen and then forked any number of times: each fork
+ * starts out with the frozen stream's words, shared rather than copied, and
+ * only stores what's added to it afterwards.
+ */
+public class InstructionStream {
+
+    // Words shared with the stream this was forked from, if any.
+    private final InstructionStream base;
+    private final int baseSize;
+
+    private int[] words = new int[64];
+
+    private int size = 0;
+
+    private boolean frozen = false;
+
+    public InstructionStream() {
+        this.base = null;
+        this.baseSize = 0;
+    }
+
+    private InstructionStream(InstructionStream base) {
+        this.base = base;
+        this.baseSize = base.size();
+    }
+
+    public void add(int word) {
+        if (frozen) {
+            throw new RuntimeException("Can't add to a frozen instruction " +
+                    "stream.");
+        }
+
+        if (size == words.length) {
+            words = Arrays.copyOf(words, size * 2);
+        }
+
+        words[size++] = word;
+    }
+
+    public int get(int index) {
+        if (index < baseSize)
+            return base.get(index);
+
+        if (index >= baseSize + size) {
+            throw new IndexOutOfBoundsException("Instruction " + index +
+                    " of " + (baseSize + size));
+        }
+
+        return words[index - baseSize];
+    }
+
+    public int size() {
+        return baseSize + size;
+    }
+
+    /**
+     * Stop any more words being added, so the stream can be forked.
+     */
+    public void freeze() {
+        frozen = true;
+    }
+
+    /**
+     * @return A new stream starting with this one's words. Only frozen
+     * streams can be forked, and then from any number of threads.
+     */
+    public InstructionStream fork() {
+        if (!frozen) {
+            throw new RuntimeException("Only a frozen instruction stream " +
+                    "can be forked.");
+        }
+
+        return new InstructionStream(this);
+    }
+}
@@ -0,0 +1,447 @@
+package io.kersten.thefuzz;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs a finished program from the start, following its real control flow,
+ * so the state the generator predicted while building it can be checked.
+ * The generator only ever simulates instructions in the order it emits them;
+ * this takes the branches, falls into failure paths and stops at whichever
+ * HLT it reaches.
+ *
+ * The program is decoded once into flat arrays and then run with a switch
+ * over them. Nothing is allocated while running, and an Interpreter can be
+ * loaded with program after program without allocating again unless a
+ * bigger one comes along.
+ */
+public class Interpreter {
+
+    /**
+     * How a run ended.
+     */
+    public enum Outcome {
+        // Reached the HLT at the end of the program.
+        HALTED,
+        // Reached some other HLT, which means a failure path.
+        FAIL_PATH,
+        // Took a branch to a failure label (fail*, nottaken).
+        WRONG_BRANCH,
+        // Ran past the last instruction without a HLT.
+        RAN_OFF_END,
+        // Ran for more steps than allowed.
+        STEP_LIMIT
+    }
+
+    // What to do for each decoded instruction.
+    private static final int OP_ADD = 0;
+    private static final int OP_SUB = 1;
+    private static final int OP_NAND = 2;
+    private static final int OP_XOR = 3;
+    private static final int OP_SLL = 4;
+    private static final int OP_SRL = 5;
+    private static final int OP_SRA = 6;
+    private static final int OP_LW = 7;
+    private static final int OP_SW = 8;
+    private static final int OP_LHB = 9;
+    private static final int OP_LLB = 10;
+    private static final int OP_B = 11;
+    private static final int OP_HLT = 12;
+    private static final int OP_NOP = 13;
+
+    // Set in effects[] if the instruction marks its first register valid.
+    // The low bits are the Alu.FLAG_* bits it writes.
+    private static final int MARKS_VALID = 8;
+
+    // The decoded program, one entry per instruction (labels take up no
+    // room). For B, a is the condition, b the target and c is 1 if the
+    // target is a failure label. For LHB/LLB, b is the immediate.
+    private int[] op = new int[0];
+    private int[] a = new int[0];
+    private int[] b = new int[0];
+    private int[] c = new int[0];
+    private int[] effects = new int[0];
+    private int length = 0;
+
+    // Where each decoded instruction came from in the InstructionStream.
+    private int[] source = new int[0];
+
+    private long stepLimit = -1;
+
+    // Machine state.
+    private short[] registers = new short[16];
+    private int validRegisters = 1;
+    private int flags = 0;
+    private short[] memory = new short[DataMemory.SIZE];
+
+    // One bit per address that has been stored to.
+    private long[] stored = new long[DataMemory.SIZE / 64];
+
+    private int pc = 0;
+    private long steps = 0;
+    private Outcome outcome = null;
+
+    /**
+     * Decode a program, ready to run it.
+     *
+     * @param instrs The instructions, as a Program or AsmParser has them.
+     * @param labels Their label names.
+     */
+    public void load(InstructionStream instrs, LabelTable labels) {
+        int[] labelAddress = new int[labels.size()];
+        Arrays.fill(labelAddress, -1);
+
+        int count = 0;
+        for (int i = 0; i < instrs.size(); i++) {
+            int word = instrs.get(i);
+            if (Instruction.isLabel(word))
+                labelAddress[Instruction.labelId(word)] = count;
+            else
+                count++;
+        }
+
+        if (op.length < count) {
+            op = new int[count];
+            a = new int[count];
+            b = new int[count];
+            c = new int[count];
+            effects = new int[count];
+            source = new int[count];
+        }
+
+        length = 0;
+        for (int i = 0; i < instrs.size(); i++) {
+            int word = instrs.get(i);
+            if (!Instruction.isLabel(word)) {
+                decode(word, length, labelAddress, labels);
+                source[length] = i;
+                length++;
+            }
+        }
+
+        outcome = null;
+    }
+
+    private void decode(int word, int at, int[] labelAddress, LabelTable
+            labels) {
+        IOpcode iop = Instruction.getiOpcode(word);
+        int count = iop.getArgumentCount();
+
+        a[at] = Instruction.first(word);
+        b[at] = Instruction.second(word);
+        c[at] = count > 2 && iop.getArgumentType(2) == ArgumentType
+                .IMMEDIATE4 ? Instruction.immediate4(word) : Instruction
+                .third(word);
+
+        effects[at] = iop.getFlags();
+        if (count > 0 && iop.getArgumentType(0) == ArgumentType.REGISTER)
+            effects[at] |= MARKS_VALID;
+
+        switch (iop.getOpcode()) {
+            case ADD:
+                op[at] = OP_ADD;
+                break;
+            case SUB:
+                op[at] = OP_SUB;
+                break;
+            case NAND:
+                op[at] = OP_NAND;
+                break;
+            case XOR:
+                op[at] = OP_XOR;
+                break;
+            case SLL:
+                op[at] = OP_SLL;
+                break;
+            case SRL:
+                op[at] = OP_SRL;
+                break;
+            case SRA:
+                op[at] = OP_SRA;
+                break;
+            case LW:
+                op[at] = OP_LW;
+                break;
+            case SW:
+                op[at] = OP_SW;
+                break;
+            case LHB:
+                op[at] = OP_LHB;
+                b[at] = Instruction.immediate8(word);
+                break;
+            case LLB:
+                op[at] = OP_LLB;
+                b[at] = Instruction.immediate8(word);
+                break;
+            case B:
+                int label = Instruction.labelId(word);
+                if (labelAddress[label] < 0) {
+                    throw new RuntimeException("Branch to " + labels.getName
+                            (label) + ", which isn't in the program.");
+                }
+
+                String name = labels.getName(label);
+                op[at] = OP_B;
+                a[at] = Instruction.condition(word).ordinal();
+                b[at] = labelAddress[label];
+                c[at] = name.startsWith("fail") || name.equals("nottaken") ?
+                        1 : 0;
+                break;
+            case HLT:
+                op[at] = OP_HLT;
+                break;
+            case INC:
+                // INC is still a stub which the generator treats as doing
+                // nothing, so do the same here.
+                op[at] = OP_NOP;
+                break;
+            default:
+                throw new RuntimeException("Can't interpret " + iop
+                        .getOpcode() + " yet.");
+        }
+    }
+
+    /**
+     * @param stepLimit Give up after this many instructions, or -1 for a
+     *                  limit based on the length of the program.
+     */
+    public void setStepLimit(long stepLimit) {
+        this.stepLimit = stepLimit;
+    }
+
+    /**
+     * Run the loaded program from the start with zeroed registers, flags
+     * and memory.
+     *
+     * @return How the run ended.
+     */
+    public Outcome run() {
+        reset();
+
+        // Generated programs only ever branch forwards, so anything running
+        // much longer than the program is stuck.
+        long limit = stepLimit >= 0 ? stepLimit : Math.max(1 << 20, 16L *
+                length);
+
+        short[] regs = registers;
+        short[] mem = memory;
+        int pc = 0;
+        long steps = 0;
+        Outcome result;
+
+        while (true) {
+            if (pc >= length) {
+                result = Outcome.RAN_OFF_END;
+                break;
+            }
+
+            if (steps == limit) {
+                result = Outcome.STEP_LIMIT;
+                break;
+            }
+            steps++;
+
+            int alu;
+            switch (op[pc]) {
+                case OP_ADD:
+                    alu = Alu.add(regs[b[pc]], regs[c[pc]]);
+                    break;
+                case OP_SUB:
+                    alu = Alu.sub(regs[b[pc]], regs[c[pc]]);
+                    break;
+                case OP_NAND:
+                    alu = Alu.nand(regs[b[pc]], regs[c[pc]]);
+                    break;
+                case OP_XOR:
+                    alu = Alu.xor(regs[b[pc]], regs[c[pc]]);
+                    break;
+                case OP_SLL:
+                    alu = Alu.sll(regs[b[pc]], c[pc]);
+                    break;
+                case OP_SRL:
+                    alu = Alu.srl(regs[b[pc]], c[pc]);
+                    break;
+                case OP_SRA:
+                    alu = Alu.sra(regs[b[pc]], c[pc]);
+                    break;
+                case OP_LW:
+                    setRegister(a[pc], mem[(regs[b[pc]] + c[pc]) &
+                            (DataMemory.SIZE - 1)], effects[pc]);
+                    pc++;
+                    continue;
+                case OP_SW: {
+                    int addr = (regs[b[pc]] + c[pc]) & (DataMemory.SIZE - 1);
+                    mem[addr] = regs[a[pc]];
+                    stored[addr >>> 6] |= 1L << addr;
+                    validRegisters |= (effects[pc] & MARKS_VALID) != 0 ? 1 <<
+                            a[pc] : 0;
+                    pc++;
+                    continue;
+                }
+                case OP_LHB:
+                    setRegister(a[pc], (short) ((regs[a[pc]] & 0xFF) + (b[pc]
+                            << 8)), effects[pc]);
+                    pc++;
+                    continue;
+                case OP_LLB:
+                    setRegister(a[pc], (short) b[pc], effects[pc]);
+                    pc++;
+                    continue;
+                case OP_B:
+                    if (Alu.conditionHolds(a[pc], flags)) {
+                        if (c[pc] != 0) {
+                            this.pc = pc;
+                            this.steps = steps;
+                            return outcome = Outcome.WRONG_BRANCH;
+                        }
+                        pc = b[pc];
+                    } else {
+                        pc++;
+                    }
+                    continue;
+                case OP_HLT:
+                    this.pc = pc;
+                    this.steps = steps;
+                    return outcome = pc == length - 1 ? Outcome.HALTED :
+                            Outcome.FAIL_PATH;
+                default:
+                    pc++;
+                    continue;
+            }
+
+            // Everything that gets here went through the ALU.
+            setRegister(a[pc], Alu.result(alu), effects[pc]);
+            flags = flags & ~effects[pc] | Alu.flags(alu) & effects[pc];
+            pc++;
+        }
+
+        this.pc = pc;
+        this.steps = steps;
+        return outcome = result;
+    }
+
+    private void setRegister(int r, short value, int effect) {
+        // Writes to R0 go nowhere.
+        if (r != 0)
+            registers[r] = value;
+
+        if ((effect & MARKS_VALID) != 0)
+            validRegisters |= 1 << r;
+    }
+
+    private void reset() {
+        Arrays.fill(registers, (short) 0);
+        validRegisters = 1;
+        flags = 0;
+
+        // Only the addresses the last run stored to need clearing.
+        for (int w = 0; w < stored.length; w++) {
+            long bits = stored[w];
+            while (bits != 0) {
+                memory[w << 6 | Long.numberOfTrailingZeros(bits)] = 0;
+                bits &= bits - 1;
+            }
+            stored[w] = 0;
+        }
+    }
+
+    /**
+     * @return How the last run ended, or null if there hasn't been one since
+     * the program was loaded.
+     */
+    public Outcome getOutcome() {
+        return outcome;
+    }
+
+    /**
+     * @return How many instructions the last run executed.
+     */
+    public long getSteps() {
+        return steps;
+    }
+
+    /**
+     * @return Where the last run stopped, as an index into the
+     * InstructionStream it was loaded from.
+     */
+    public int getStoppedAt() {
+        return pc < length ? source[pc] : -1;
+    }
+
+    public short getRegister(int r) {
+        return registers[r];
+    }
+
+    public boolean isRegisterValid(int r) {
+        return (validRegisters >>> r & 1) != 0;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public short readMemory(int addr) {
+        return memory[addr & (DataMemory.SIZE - 1)];
+    }
+
+    public boolean isStored(int addr) {
+        addr &= DataMemory.SIZE - 1;
+        return (stored[addr >>> 6] >>> addr & 1) != 0;
+    }
+
+    /**
+     * @return The state the last run ended in.
+     */
+    public FinalState getFinalState() {
+        FinalState s = new FinalState();
+
+        for (int r = 0; r < 16; r++) {
+            if (isRegisterValid(r))
+                s.setRegister(r, registers[r]);
+        }
+
+        s.setFlags(flags);
+
+        for (int addr = nextStored(0); addr >= 0; addr = nextStored(addr + 1)) {
+            s.addMemory(addr, memory[addr]);
+        }
+
+        return s;
+    }
+
+    /**
+     * Compare the state the last run ended in with what was expected.
+     *
+     * @return One line per difference; empty if everything matches.
+     */
+    public List<String> compare(FinalState expected) {
+        ArrayList<String> diffs = new ArrayList<String>();
+
+        if (outcome != Outcome.HALTED) {
+            diffs.add("Stopped with " + outcome + " at instruction " +
+                    getStoppedAt() + " after " + steps + " steps");
+        }
+
+        diffs.addAll(expected.diff(getFinalState(), true));
+        return diffs;
+    }
+
+    /**
+     * @return The lowest stored-to address at or after from, or -1.
+     */
+    private int nextStored(int from) {
+        if (from >= DataMemory.SIZE)
+            return -1;
+
+        int w = from >>> 6;
+        long bits = stored[w] & -1L << from;
+        while (bits == 0) {
+            if (++w == stored.length)
+                return -1;
+            bits = stored[w];
+        }
+
+        return w << 6 | Long.numberOfTrailingZeros(bits);
+    }
+}
@@ -0,0 +1,128 @@
+package io.kersten.thefuzz;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Interns the label names of a program so instructions only need to carry a
+ * small id for them. Generated labels are all a prefix plus a number (like
+ * "taken12"), so they're stored as a prefix id and a number and only turned
+ * into a String when the program is written out.
+ *
+ * Like an InstructionStream, a table can be frozen and forked: a fork sees
+ * every label the frozen table had, under the same ids, and only stores the
+ * ones created after it.
+ */
+public class LabelTable {
+
+    // The distinct prefixes seen so far, like "taken" and "fail".
+    private ArrayList<String> prefixes = new ArrayList<String>();
+    private HashMap<String, Integer> prefixIds = new HashMap<String, Integer>();
+
+    // The labels this was forked from, which keep their ids here.
+    private final LabelTable base;
+    private final int baseSize;
+
+    // For each label id from baseSize up, its prefix id and number (-1 for
+    // no number).
+    private int[] labelPrefix = new int[16];
+    private int[] labelNumber = new int[16];
+
+    private int size = 0;
+
+    // Labels which were looked up by their whole name.
+    private HashMap<String, Integer> named = new HashMap<String, Integer>();
+
+    private boolean frozen = false;
+
+    public LabelTable() {
+        this.base = null;
+        this.baseSize = 0;
+    }
+
+    private LabelTable(LabelTable base) {
+        this.base = base;
+        this.baseSize = base.size();
+
+        // There are only ever a few of these.
+        prefixes.addAll(base.prefixes);
+        prefixIds.putAll(base.prefixIds);
+        named.putAll(base.named);
+    }
+
+    /**
+     * Make a new label called prefix + number.
+     *
+     * @return The id of the new label.
+     */
+    public int create(String prefix, int number) {
+        if (frozen) {
+            throw new RuntimeException("Can't add a label to a frozen " +
+                    "table.");
+        }
+
+        Integer prefixId = prefixIds.get(prefix);
+        if (prefixId == null) {
+            prefixId = prefixes.size();
+            prefixes.add(prefix);
+            prefixIds.put(prefix, prefixId);
+        }
+
+        if (size == labelPrefix.length) {
+            labelPrefix = Arrays.copyOf(labelPrefix, size * 2);
+            labelNumber = Arrays.copyOf(labelNumber, size * 2);
+        }
+
+        labelPrefix[size] = prefixId;
+        labelNumber[size] = number;
+        return baseSize + size++;
+    }
+
+    /**
+     * @param name A whole label name, like "nottaken".
+     * @return The id of that name, allocating one if it's new.
+     */
+    public int intern(String name) {
+        Integer id = named.get(name);
+        if (id == null) {
+            id = create(name, -1);
+            named.put(name, id);
+        }
+
+        return id;
+    }
+
+    public String getName(int id) {
+        if (id < baseSize)
+            return base.getName(id);
+
+        String prefix = prefixes.get(labelPrefix[id - baseSize]);
+        int number = labelNumber[id - baseSize];
+        return number < 0 ? prefix : prefix + number;
+    }
+
+    public int size() {
+        return baseSize + size;
+    }
+
+    /**
+     * Stop any more labels being added, so the table can be forked.
+     */
+    public void freeze() {
+        frozen = true;
+    }
+
+    /**
+     * @return A new table starting with this one's labels. Only frozen
+     * tables can be forked, and then from any number of threads.
+     */
+    public LabelTable fork() {
+        if (!frozen) {
+            throw new RuntimeException("Only a frozen label table can be " +
+                    "forked.");
+        }
+
+        return new LabelTable(this);
+    }
+}
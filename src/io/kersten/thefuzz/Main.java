@@ -1,18 +1,168 @@
 package io.kersten.thefuzz;
 
-import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.InputMismatchException;
+import java.util.List;
 import java.util.Scanner;
+import java.util.SplittableRandom;
 
 public class Main {
 
     public static final String VERSION = "1.0.0";
 
-    public static void main(String[] args) {
+    public static void main(String[] rawArgs) {
+
+        // Options like --threads can go anywhere; what's left over is the
+        // usual positional batch mode arguments.
+        Options options = Options.parse(rawArgs, "--echo", "--verify",
+                "--pack", "--metrics", "--no-comments", "--state",
+                "--state-json", "--manifest");
+        List<String> args = options.getPositional();
+
+        // Check existing tests instead of generating new ones?
+        if (args.size() > 0 && args.get(0).equalsIgnoreCase("verify")) {
+            if (args.size() == 1) {
+                System.err.println("Usage: verify file.asm [file.asm ...]");
+                return;
+            }
+
+            if (!verifyFiles(args.subList(1, args.size())))
+                System.exit(1);
+            return;
+        }
+
+        // Or cut a failing test down to size?
+        if (args.size() > 0 && args.get(0).equalsIgnoreCase("shrink")) {
+            if (args.size() != 2 || !options.has("--dut")) {
+                System.err.println("Usage: shrink file.asm --dut \"command " +
+                        "{asm} {image}\" --data-offset N [--image " +
+                        "bin|hex|memh] [--timeout seconds] [--jobs N]");
+                return;
+            }
+
+            if (!shrinkFile(args.get(1), options))
+                System.exit(1);
+            return;
+        }
+
+        // Or pull tests back out of a pack?
+        if (args.size() > 0 && args.get(0).equalsIgnoreCase("unpack")) {
+            if (args.size() < 2) {
+                System.err.println("Usage: unpack file.pack [iteration ...]");
+                return;
+            }
+
+            if (!unpackFile(args.get(1), args.subList(2, args.size())))
+                System.exit(1);
+            return;
+        }
+
+        // Or check what a processor dumped after running a batch?
+        if (args.size() > 0 && args.get(0).equalsIgnoreCase("check")) {
+            if (args.size() != 3) {
+                System.err.println("Usage: check filename iterations " +
+                        "--data-offset N [--dumps dir] [--jobs N]");
+                return;
+            }
+
+            if (!checkDumps(args.get(1), Integer.parseInt(args.get(2)),
+                    options))
+                System.exit(1);
+            return;
+        }
+
+        // Or rebuild tests from a manifest?
+        if (args.size() > 0 && args.get(0).equalsIgnoreCase("regen")) {
+            if (args.size() < 2) {
+                System.err.println("Usage: regen file.manifest [iteration " +
+                        "...] [--threads N] [--into dir]");
+                return;
+            }
+
+            if (!regenFile(args.get(1), args.subList(2, args.size()),
+                    options))
+                System.exit(1);
+            return;
+        }
+
+        // Or stay up and generate tests for whoever asks over a socket?
+        if (args.size() > 0 && args.get(0).equalsIgnoreCase("serve")) {
+            if (args.size() != 1) {
+                System.err.println("Usage: serve [--listen port|unix:path] " +
+                        "[--threads N]");
+                return;
+            }
+
+            if (!serve(options))
+                System.exit(1);
+            return;
+        }
+
+        // Or run the tests on a processor as they're generated?
+        boolean diff = args.size() > 0 && args.get(0).equalsIgnoreCase("diff");
+        if (diff) {
+            args = args.subList(1, args.size());
+            if (args.size() != 5 || !options.has("--dut") || options.has
+                    ("--pack") || options.has("--manifest")) {
+                System.err.println("Usage: diff \"opcodes\" testLength " +
+                        "dataOffset filename iterations --dut \"command " +
+                        "{asm} {image}\" [--timeout seconds] [--jobs N] " +
+                        "[--threads N]");
+                return;
+            }
+        }
+
+        // How many worker threads to spread the iterations over.
+        int threads = options.getInt("--threads", 1);
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+
+        // Print each test to the console as well as to its file?
+        boolean echo = options.has("--echo");
+
+        // Seed for the whole batch. Each test records the seed it came from
+        // so failures can be reproduced.
+        long seed = options.getLong("--seed", new SplittableRandom()
+                .nextLong());
+
+        // Run each test through the interpreter before it's written?
+        boolean verify = options.has("--verify");
+
+        // Keep a coverage model over the whole batch? "guided" steers the
+        // generator toward what hasn't been covered yet, "track" just
+        // measures plain random generation.
+        String coverageMode = options.get("--coverage", null);
+        if (coverageMode != null && !coverageMode.equalsIgnoreCase
+                ("guided") && !coverageMode.equalsIgnoreCase("track")) {
+            System.err.println("Coverage mode must be guided or track.");
+            return;
+        }
+
+        // Skip programs that are the same as one already generated (in this
+        // batch or any earlier one using the same index file), apart from
+        // register and label names?
+        String dedupFile = options.get("--dedup", null);
+
+        // Also write a memory image (bin, hex or memh) for each test?
+        Assembler.Format imageFormat = null;
+        if (options.has("--image")) {
+            try {
+                imageFormat = Assembler.Format.valueOf(options.get
+                        ("--image", "").toUpperCase());
+            } catch (IllegalArgumentException iae) {
+                System.err.println("Image format must be bin, hex or memh.");
+                return;
+            }
+        }
 
         // Which opcodes should be tested?
         ArrayList<String> opcodes = new ArrayList<String>();
@@ -31,15 +181,21 @@ public class Main {
         int iterations = 1;
 
         // We might be running in batch mode...
-        if (args.length == 5) {
+        if (args.size() == 5) {
             // Usage: "opcodes opcodes opcodes" testLength dataOffset filename
-            // iterations
+            // iterations [--threads N] [--seed S] [--image FORMAT] [--echo]
+            // [--verify] [--coverage guided|track] [--dedup index]
+            // [--family K [--prefix-length P]] [--pack]
+            // [--metrics] [--metrics-json file] [--no-comments]
+            // [--reuse-rate R]
+            // [--mem-pattern MODE [--line-size W] [--sets S]]
+            // [--state] [--state-json] [--manifest]
 
             // Gather opcodes
-            if (args[0].equalsIgnoreCase("all")) {
+            if (args.get(0).equalsIgnoreCase("all")) {
                 opcodes.addAll(IOpcode.getAllOpcodes());
             } else {
-                for (String s : args[0].split(" ")) {
+                for (String s : args.get(0).split(" ")) {
                     if (IOpcode.isValidOpcode(s.toUpperCase()))
                         opcodes.add(s.toUpperCase());
                     else if (s.length() > 0)
@@ -48,24 +204,46 @@ public class Main {
             }
 
             // read test length
-            testlength = Integer.parseInt(args[1]);
+            testlength = Integer.parseInt(args.get(1));
             originalTestLength = testlength;
 
             // read data offset
-            dataoffset = Integer.parseInt(args[2]);
+            dataoffset = Integer.parseInt(args.get(2));
 
             // read filename
-            filename = args[3];
+            filename = args.get(3);
 
-            iterations = Integer.parseInt(args[4]);
-        } else if (args.length > 0) {
+            iterations = Integer.parseInt(args.get(4));
+        } else if (args.size() > 0) {
             System.err.println("Usage: \"opcodes opcodes opcodes\" testLength" +
-                    " dataOffset filename iterations");
+                    " dataOffset filename iterations [--threads N] [--seed S]" +
+                    " [--image bin|hex|memh] [--echo] [--verify]" +
+                    " [--coverage guided|track] [--dedup index]" +
+                    " [--family K [--prefix-length P]] [--pack]" +
+                    " [--metrics] [--metrics-json file] [--no-comments]" +
+                    " [--reuse-rate R]" +
+                    " [--mem-pattern random|sequential|stride:N|" +
+                    "working-set:K|conflict [--line-size W] [--sets S]]" +
+                    " [--state] [--state-json] [--manifest]");
+            System.err.println("       verify file.asm [file.asm ...]");
+            System.err.println("       shrink file.asm --dut \"command " +
+                    "{asm} {image}\" --data-offset N [--jobs N]");
+            System.err.println("       unpack file.pack [iteration ...]");
+            System.err.println("       check filename iterations " +
+                    "--data-offset N [--dumps dir] [--jobs N]");
+            System.err.println("       regen file.manifest [iteration ...] " +
+                    "[--threads N] [--into dir]");
+            System.err.println("       serve [--listen port|unix:path] " +
+                    "[--threads N]");
+            System.err.println("       diff \"opcodes\" testLength " +
+                    "dataOffset filename iterations --dut \"command {asm} " +
+                    "{image}\" [--timeout seconds] [--jobs N] [--threads N]");
             return;
         } else {
             System.out.println("Welcome to TheFuzz.");
             System.out.println("Version " + VERSION);
-            System.out.println("Supported: ADD SUB NAND XOR INC SRA SRL SLL LW SW LHB LLB B CALL RET");
+            System.out.println("Supported: " + String.join(" ", IOpcode
+                    .getAllOpcodes()));
 
             // Gather opcodes to test.
             Scanner scan = new Scanner(System.in);
@@ -107,9 +285,9 @@ public class Main {
                 } catch (InputMismatchException ime) {
                     // Not a number...
                     scan.nextLine(); // Clear buffer...
-                    testlength = -1; // ...and try again
+                    dataoffset = -1; // ...and try again
                 }
-            } while (testlength <= 0);
+            } while (dataoffset < 0 || dataoffset >= DataMemory.SIZE);
 
             scan.nextLine();    // Clear the return from the integer read
 
@@ -120,54 +298,646 @@ public class Main {
 
         }
 
-        for (int i = 0; i < iterations; i++) {
-            testlength = originalTestLength;
+        // Data has to start somewhere in the 64K words of memory.
+        if (dataoffset < 0 || dataoffset >= DataMemory.SIZE) {
+            System.err.println("The data offset has to be between 0 and " +
+                    (DataMemory.SIZE - 1) + ".");
+            return;
+        }
+
+        TestGenerator generator = new TestGenerator(opcodes,
+                originalTestLength, dataoffset, filename, seed);
+        generator.setEcho(echo);
+        generator.setImageFormat(imageFormat);
+        generator.setVerify(verify);
+        generator.setComments(!options.has("--no-comments"));
+        generator.setState(options.has("--state"), options.has
+                ("--state-json"));
+
+        // How often should loads and stores reuse a register that's already
+        // near their address?
+        double reuseRate = options.getDouble("--reuse-rate", 0);
+        if (!(reuseRate >= 0 && reuseRate <= 1)) {
+            System.err.println("--reuse-rate has to be between 0 and 1.");
+            return;
+        }
+        generator.setReuseRate(reuseRate);
+
+        // Where should loads and stores go? Lines are 8 words and the cache
+        // has 64 sets unless told otherwise.
+        try {
+            generator.setAddressAllocator(AddressAllocator.parse(options.get
+                    ("--mem-pattern", "random"), options.getInt
+                    ("--line-size", 8), options.getInt("--sets", 64)));
+        } catch (RuntimeException re) {
+            System.err.println(re.getMessage());
+            return;
+        }
+        System.out.println("Seed: " + seed);
+
+        CoverageModel coverage = null;
+        if (coverageMode != null) {
+            coverage = new CoverageModel(generator.getOpcodes(),
+                    coverageMode.equalsIgnoreCase("guided"));
+            generator.setCoverage(coverage);
+            if (threads > 1) {
+                System.out.println("Coverage campaigns run one test at a " +
+                        "time; ignoring --threads.");
+            }
+        }
 
-            //Okay, start randomly generating opcodes!
-            Program program = new Program(dataoffset);
-            while (testlength > 0) {
-                program.addInstructions(InstructionFactory.generateInstruction
-                        (program, opcodes.get((int) (Math.random() * opcodes.size())
-                        )));
+        // Generate tests in families sharing a prefix?
+        if (options.has("--family")) {
+            int familySize = options.getInt("--family", 1);
+            int prefixLength = options.getInt("--prefix-length",
+                    originalTestLength / 2);
+            if (familySize < 1 || prefixLength < 0 || prefixLength >=
+                    originalTestLength) {
+                System.err.println("--family needs at least 1 test per " +
+                        "family and --prefix-length shorter than the test.");
+                return;
+            }
+            generator.setFamily(familySize, prefixLength);
+        }
+
+        // Count where the time goes, and print it and/or write it as JSON
+        // at the end?
+        GeneratorMetrics metrics = null;
+        String metricsFile = options.get("--metrics-json", null);
+        if (options.has("--metrics") || metricsFile != null) {
+            metrics = new GeneratorMetrics();
+            generator.setMetrics(metrics);
+        }
+
+        DedupIndex dedup = null;
+        if (dedupFile != null) {
+            try {
+                dedup = new DedupIndex(new File(dedupFile));
+            } catch (IOException ioe) {
+                System.err.println(ioe.getLocalizedMessage());
+                throw new RuntimeException("Couldn't open " + dedupFile);
+            }
+            generator.setDedup(dedup);
+        }
 
-                testlength--;
+        if (diff) {
+            DutRunner dut = new DutRunner(options.get("--dut", ""), 1000L *
+                    options.getInt("--timeout", 60));
+            if (dut.needsImage() && imageFormat == null) {
+                generator.setImageFormat(Assembler.Format.MEMH);
             }
 
-            program.terminate();
+            int jobs = options.getInt("--jobs", Runtime.getRuntime()
+                    .availableProcessors());
+            File report = new File(filename + "_diff.txt");
 
-            System.out.println("");
-            String output = "# Test Name: " + filename + " (iteration " + i
-                    + ")\n# Generated by " +
-                    "TheFuzz v" + VERSION + " written by Alex Kersten and " +
-                    "Kenneth Siu for ECE552 (https://github.com/akersten/TheFuzz)\n" +
-                    "Spring 2015 Functionality Added by Sam Schwebach" +
-                    "\n\n" + program.print();
+            int mismatches;
+            try {
+                mismatches = new DiffHarness(generator, dut, threads, jobs)
+                        .run(iterations, report);
+            } catch (IOException ioe) {
+                System.err.println(ioe.getLocalizedMessage());
+                throw new RuntimeException("Couldn't run the tests.");
+            }
 
-            File f = new File(filename + "_" + i + ".asm");
+            if (dedup != null)
+                closeDedup(dedup, generator, dedupFile);
+
+            System.out.println(mismatches + " of " + iterations + " tests " +
+                    "didn't match, see " + report.getAbsolutePath());
+            if (coverage != null)
+                reportCoverage(coverage, filename);
+            if (metrics != null)
+                reportMetrics(metrics, options.has("--metrics"), metricsFile);
+            if (mismatches > 0)
+                System.exit(1);
+            return;
+        }
 
-            System.out.println(f.getAbsolutePath());
+        // Write everything into filename.pack instead of a file per test?
+        PackWriter pack = null;
+        if (options.has("--pack")) {
+            File packFile = new File(filename + ".pack");
             try {
-                if (!f.createNewFile()) {
-                    throw new RuntimeException("Sadness in creating file ):");
-                }
+                pack = new PackWriter(packFile, generator.getImageFormat());
             } catch (IOException ioe) {
                 System.err.println(ioe.getLocalizedMessage());
-                throw new RuntimeException("Extra sadness in creating file ):");
+                throw new RuntimeException("Couldn't create " + packFile);
             }
+            generator.setPack(pack);
+        }
 
-            if (!f.canWrite()) {
-                throw new RuntimeException("Can't write...");
+        // Keep a record of the batch to regenerate it from later?
+        Manifest manifest = null;
+        if (options.has("--manifest")) {
+            if (coverage != null) {
+                System.err.println("Coverage campaigns can't be regenerated " +
+                        "from a manifest; each test depends on the ones " +
+                        "before it.");
+                return;
             }
 
+            File manifestFile = new File(filename + ".manifest");
             try {
-                BufferedOutputStream bw = new BufferedOutputStream(new
-                        FileOutputStream
-                        (f));
-                bw.write(output.getBytes(), 0, output.getBytes().length);
-                bw.close();
-            } catch (Exception e) {
-                System.err.println("We lose.");
+                manifest = Manifest.create(manifestFile, generator);
+            } catch (IOException ioe) {
+                System.err.println(ioe.getLocalizedMessage());
+                throw new RuntimeException("Couldn't create " + manifestFile);
             }
+            generator.setManifest(manifest);
+        }
+
+        generator.run(iterations, threads);
+
+        if (manifest != null) {
+            try {
+                manifest.close();
+            } catch (IOException ioe) {
+                System.err.println(ioe.getLocalizedMessage());
+                throw new RuntimeException("Couldn't finish " + filename +
+                        ".manifest");
+            }
+            System.out.println("Manifest written to " + new File(filename +
+                    ".manifest").getAbsolutePath());
+        }
+
+        if (pack != null) {
+            try {
+                pack.close();
+            } catch (IOException ioe) {
+                System.err.println(ioe.getLocalizedMessage());
+                throw new RuntimeException("Couldn't finish " + pack
+                        .getFile());
+            }
+            System.out.println("Packed " + pack.getTestCount() + " tests " +
+                    "into " + pack.getFile().getAbsolutePath());
+        }
+
+        if (dedup != null) {
+            closeDedup(dedup, generator, dedupFile);
+        }
+
+        if (verify) {
+            System.out.println("All tests ran the way they were generated.");
+        }
+
+        if (coverage != null) {
+            reportCoverage(coverage, filename);
+        }
+
+        if (metrics != null) {
+            reportMetrics(metrics, options.has("--metrics"), metricsFile);
+        }
+    }
+
+    /**
+     * Run the generator as a server until it's killed.
+     *
+     * @return false if the socket couldn't be opened.
+     */
+    private static boolean serve(Options options) {
+        String listen = options.get("--listen", "5552");
+        int threads = options.getInt("--threads", 0);
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
         }
+
+        ServerSocketChannel server;
+        try {
+            server = GeneratorServer.open(listen);
+        } catch (IOException ioe) {
+            System.err.println("Couldn't listen on " + listen + ": " + ioe
+                    .getLocalizedMessage());
+            return false;
+        } catch (RuntimeException re) {
+            System.err.println(re.getMessage());
+            return false;
+        }
+
+        System.out.println("TheFuzz " + VERSION + " serving on " + listen +
+                " with " + threads + " threads.");
+        try {
+            new GeneratorServer(threads).serve(server);
+        } catch (IOException ioe) {
+            System.err.println(ioe.getLocalizedMessage());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Generate tests from a manifest again, exactly as they were written
+     * the first time.
+     *
+     * @param iterations Which iterations to write, or empty for all of them.
+     * @return false if the manifest couldn't be read, or a test didn't come
+     * out the same.
+     */
+    private static boolean regenFile(String name, List<String> iterations,
+                                     Options options) {
+        try {
+            Manifest manifest = Manifest.read(new File(name));
+            if (!manifest.getVersion().equals(VERSION)) {
+                System.out.println(name + " was made by TheFuzz " + manifest
+                        .getVersion() + ", this is " + VERSION + "; tests " +
+                        "might not come out the same.");
+            }
+
+            int[] wanted;
+            if (iterations.isEmpty()) {
+                wanted = manifest.getIterations();
+            } else {
+                wanted = new int[iterations.size()];
+                for (int i = 0; i < wanted.length; i++) {
+                    wanted[i] = Integer.parseInt(iterations.get(i));
+                    if (!manifest.contains(wanted[i])) {
+                        System.err.println("Iteration " + wanted[i] + " " +
+                                "isn't in " + name);
+                        return false;
+                    }
+                }
+            }
+
+            TestGenerator generator = TestGenerator.fromSettings(manifest
+                    .getSettings());
+            generator.setManifest(manifest);
+            if (options.has("--into"))
+                generator.setOutputDirectory(new File(options.get("--into",
+                        null)));
+
+            int threads = options.getInt("--threads", 0);
+            if (threads <= 0)
+                threads = Runtime.getRuntime().availableProcessors();
+            generator.run(wanted, threads);
+
+            System.out.println("Regenerated " + wanted.length + " tests, " +
+                    "all the same as the originals.");
+        } catch (IOException ioe) {
+            System.err.println(ioe.getLocalizedMessage());
+            return false;
+        } catch (RuntimeException re) {
+            System.err.println(re.getMessage());
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Check the dumps a processor left after running a batch, and write a
+     * report of the mismatches to filename_check.txt.
+     *
+     * @return false if anything didn't match or couldn't be checked.
+     */
+    private static boolean checkDumps(String name, int iterations, Options
+            options) {
+        File dumps = options.has("--dumps") ? new File(options.get("--dumps",
+                null)) : null;
+        File report = new File(name + "_check.txt");
+
+        int mismatches;
+        try {
+            mismatches = new DumpChecker(name, dumps, dataOffset(options),
+                    options.getInt("--jobs", Runtime.getRuntime()
+                            .availableProcessors())).run(iterations, report);
+        } catch (IOException ioe) {
+            System.err.println(ioe.getLocalizedMessage());
+            return false;
+        } catch (RuntimeException re) {
+            System.err.println(re.getMessage());
+            return false;
+        }
+
+        System.out.println(mismatches + " tests didn't match, see " + report
+                .getAbsolutePath());
+        return mismatches == 0;
+    }
+
+    /**
+     * @return The data offset tests were generated with, from --data-offset.
+     * Nothing in a test or its expected state records it, and a wrong one
+     * puts every word of data somewhere else, so it has to be given.
+     * @throws RuntimeException If it wasn't, or it's out of range.
+     */
+    private static int dataOffset(Options options) {
+        if (!options.has("--data-offset")) {
+            throw new RuntimeException("Give the data offset the tests " +
+                    "were generated with, like --data-offset 30000.");
+        }
+
+        int offset = options.getInt("--data-offset", 0);
+        if (offset < 0 || offset >= DataMemory.SIZE) {
+            throw new RuntimeException("The data offset has to be between " +
+                    "0 and " + (DataMemory.SIZE - 1) + ".");
+        }
+        return offset;
+    }
+
+    /**
+     * Shrink a test that fails on the design under test, and write the
+     * smallest failing version found next to it as name_min.asm.
+     *
+     * @return Whether it worked.
+     */
+    private static boolean shrinkFile(String name, Options options) {
+        AsmParser parsed;
+        int dataOffset;
+        try {
+            // Candidates have to run with their data where the original's
+            // was, or they'd fail (or pass) for some other reason.
+            dataOffset = dataOffset(options);
+            parsed = AsmParser.parse(new File(name));
+        } catch (IOException ioe) {
+            System.err.println(ioe.getLocalizedMessage());
+            return false;
+        } catch (RuntimeException re) {
+            System.err.println(re.getMessage());
+            return false;
+        }
+
+        DutRunner dut = new DutRunner(options.get("--dut", ""), 1000L *
+                options.getInt("--timeout", 60));
+
+        Assembler.Format imageFormat = null;
+        if (options.has("--image")) {
+            try {
+                imageFormat = Assembler.Format.valueOf(options.get
+                        ("--image", "").toUpperCase());
+            } catch (IllegalArgumentException iae) {
+                System.err.println("Image format must be bin, hex or memh.");
+                return false;
+            }
+        } else if (dut.needsImage()) {
+            imageFormat = Assembler.Format.MEMH;
+        }
+
+        String base = name.endsWith(".asm") ? name.substring(0, name.length()
+                - 4) : name;
+        File workDir = new File(base + "_shrink");
+
+        InstructionStream instructions = parsed.getInstructions();
+        int[] words = new int[instructions.size()];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = instructions.get(i);
+        }
+
+        Shrinker shrinker = new Shrinker(parsed.getLabels(), dataOffset, dut,
+                imageFormat, workDir, options.getInt("--jobs", Runtime
+                .getRuntime().availableProcessors()));
+
+        try {
+            int[] shrunk = shrinker.shrink(words);
+
+            // Run the winner once more to say how it fails.
+            List<String> diffs = shrinker.check(shrunk);
+
+            InstructionStream kept = new InstructionStream();
+            for (int w : shrunk) {
+                kept.add(w);
+            }
+            File asm = new File(base + "_min.asm");
+            File image = imageFormat == null ? null : new File(base + "_min" +
+                    "." + imageFormat.getExtension());
+            Shrinker.write(Program.replay(kept, parsed.getLabels(),
+                    dataOffset), asm, imageFormat, image);
+
+            System.out.println("Shrunk " + Shrinker.instructionCount(words) +
+                    " instructions to " + Shrinker.instructionCount(shrunk) +
+                    " in " + shrinker.getRuns() + " runs: " + asm
+                    .getAbsolutePath());
+            if (diffs != null) {
+                for (String d : diffs) {
+                    System.out.println("    " + d);
+                }
+            }
+        } catch (IOException ioe) {
+            System.err.println(ioe.getLocalizedMessage());
+            return false;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (RuntimeException re) {
+            System.err.println(re.getMessage());
+            return false;
+        } finally {
+            // Only the candidates' files went in here, and they're gone.
+            workDir.delete();
+        }
+
+        return true;
+    }
+
+    /**
+     * Write tests from a pack back out as the files batch mode would have
+     * written, named after the pack.
+     *
+     * @param iterations Which iterations to write, or empty for all of them.
+     * @return false if the pack couldn't be read or an iteration isn't in it.
+     */
+    private static boolean unpackFile(String name, List<String> iterations) {
+        String base = name.endsWith(".pack") ? name.substring(0, name.length()
+                - 5) : name;
+
+        PackReader pack;
+        try {
+            pack = new PackReader(new File(name));
+        } catch (IOException ioe) {
+            System.err.println(ioe.getLocalizedMessage());
+            return false;
+        } catch (RuntimeException re) {
+            System.err.println(re.getMessage());
+            return false;
+        }
+
+        try {
+            ArrayList<Integer> wanted = new ArrayList<Integer>();
+            if (iterations.isEmpty()) {
+                for (int i = 0; i < pack.size(); i++) {
+                    if (pack.getKind(i) == PackWriter.ASM)
+                        wanted.add(pack.getIteration(i));
+                }
+            } else {
+                for (String s : iterations) {
+                    wanted.add(Integer.parseInt(s));
+                }
+            }
+
+            Assembler.Format format = pack.getImageFormat();
+            for (int iteration : wanted) {
+                byte[] asm = pack.read(iteration, PackWriter.ASM);
+                if (asm == null) {
+                    System.err.println("Iteration " + iteration + " isn't in "
+                            + name);
+                    return false;
+                }
+                unpackEntry(new File(base + "_" + iteration + ".asm"), asm);
+
+                byte[] image = pack.read(iteration, PackWriter.IMAGE);
+                if (image != null) {
+                    unpackEntry(new File(base + "_" + iteration + "." + format
+                            .getExtension()), image);
+                }
+
+                byte[] state = pack.read(iteration, PackWriter.STATE);
+                if (state != null) {
+                    unpackEntry(new File(base + "_" + iteration + ".state"),
+                            state);
+                }
+
+                byte[] json = pack.read(iteration, PackWriter.STATE_JSON);
+                if (json != null) {
+                    unpackEntry(new File(base + "_" + iteration + ".json"),
+                            json);
+                }
+            }
+        } catch (IOException ioe) {
+            System.err.println(ioe.getLocalizedMessage());
+            return false;
+        } catch (RuntimeException re) {
+            System.err.println(re.getMessage());
+            return false;
+        } finally {
+            try {
+                pack.close();
+            } catch (IOException ioe) {
+                // Only reading.
+            }
+        }
+
+        return true;
+    }
+
+    private static void unpackEntry(File f, byte[] data) throws IOException {
+        System.out.println(f.getAbsolutePath());
+        if (!f.createNewFile()) {
+            throw new RuntimeException(f + " already exists.");
+        }
+
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Print the metrics summary and/or write them out as JSON.
+     */
+    private static void reportMetrics(GeneratorMetrics metrics, boolean
+            print, String jsonFile) {
+        if (print)
+            metrics.report(System.out);
+
+        if (jsonFile == null)
+            return;
+
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(new
+                    FileOutputStream(jsonFile), StandardCharsets.UTF_8));
+            try {
+                metrics.writeJson(out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException ioe) {
+            System.err.println(ioe.getLocalizedMessage());
+            throw new RuntimeException("Couldn't write " + jsonFile);
+        }
+        System.out.println("Metrics written to " + new File(jsonFile)
+                .getAbsolutePath());
+    }
+
+    /**
+     * Save the programs generated this run into the dedup index, and say
+     * how many were dropped.
+     */
+    private static void closeDedup(DedupIndex dedup, TestGenerator
+            generator, String dedupFile) {
+        System.out.println("Dropped " + generator.getDuplicates() + " " +
+                "duplicate tests; " + dedupFile + " now holds " + dedup.size()
+                + " programs.");
+        try {
+            dedup.close();
+        } catch (IOException ioe) {
+            System.err.println(ioe.getLocalizedMessage());
+            throw new RuntimeException("Couldn't save " + dedupFile);
+        }
+    }
+
+    /**
+     * Print how much of the ISA state a campaign covered, and write how
+     * coverage grew from test to test to filename_coverage.csv.
+     */
+    private static void reportCoverage(CoverageModel coverage, String
+            filename) {
+        coverage.report(System.out);
+
+        File csv = new File(filename + "_coverage.csv");
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(new
+                    FileOutputStream(csv), StandardCharsets.UTF_8));
+            try {
+                coverage.writeClosure(out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException ioe) {
+            System.err.println(ioe.getLocalizedMessage());
+            throw new RuntimeException("Couldn't write " + csv);
+        }
+
+        System.out.println("Coverage over time: " + csv.getAbsolutePath());
+    }
+
+    /**
+     * Run each test and check it ends up in the state listed at its end.
+     *
+     * @param files The .asm files to check.
+     * @return Whether they all passed.
+     */
+    private static boolean verifyFiles(List<String> files) {
+        Interpreter interpreter = new Interpreter();
+        boolean allPassed = true;
+
+        for (String name : files) {
+            AsmParser parsed;
+            try {
+                parsed = AsmParser.parse(new File(name));
+            } catch (IOException ioe) {
+                System.out.println("FAIL " + name + ": " + ioe
+                        .getLocalizedMessage());
+                allPassed = false;
+                continue;
+            } catch (RuntimeException re) {
+                System.out.println("FAIL " + re.getMessage());
+                allPassed = false;
+                continue;
+            }
+
+            if (parsed.getExpected() == null) {
+                System.out.println("FAIL " + name + ": no expected state " +
+                        "after the program");
+                allPassed = false;
+                continue;
+            }
+
+            interpreter.load(parsed.getInstructions(), parsed.getLabels());
+            interpreter.run();
+            List<String> diffs = interpreter.compare(parsed.getExpected());
+
+            if (diffs.isEmpty()) {
+                System.out.println("PASS " + name + " (" + interpreter
+                        .getSteps() + " steps)");
+            } else {
+                System.out.println("FAIL " + name);
+                for (String d : diffs) {
+                    System.out.println("    " + d);
+                }
+                allPassed = false;
+            }
+        }
+
+        return allPassed;
     }
 }
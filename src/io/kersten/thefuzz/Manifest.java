@@ -0,0 +1,191 @@
+package io.kersten.thefuzz;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A record of a batch that's small enough to keep instead of the tests.
+ * Every test is decided by the generator's settings, the batch seed and its
+ * iteration number alone (each Program has its own random stream, seeded
+ * from those), so the tests can be thrown away and any of them generated
+ * again later, byte for byte.
+ *
+ * A manifest is a text file:
+ *
+ * TheFuzz manifest VERSION
+ * the generator's settings (TestGenerator.getSettings)
+ * one line per test written: its iteration and the CRC-32 of its .asm file
+ * in hex
+ *
+ * The CRCs are how regenerating a test checks it came out the same.
+ */
+public class Manifest implements Closeable {
+
+    private static final String HEADER = "TheFuzz manifest ";
+
+    private final File file;
+
+    // Which version of TheFuzz made it, and how.
+    private final String version;
+    private final String settings;
+
+    // Where tests get recorded, if this is being written.
+    private final Writer out;
+
+    // The tests in it, if it was read: iterations in increasing order and
+    // their CRCs.
+    private int[] iterations = new int[0];
+    private int[] crcs = new int[0];
+
+    private Manifest(File file, String version, String settings, Writer out) {
+        this.file = file;
+        this.version = version;
+        this.settings = settings;
+        this.out = out;
+    }
+
+    /**
+     * Start a new manifest for a batch.
+     *
+     * @param f The file to write. It must not exist yet.
+     * @throws RuntimeException If the generator can't be described (it's
+     *                          running a coverage campaign).
+     */
+    public static Manifest create(File f, TestGenerator generator) throws
+            IOException {
+        String settings = generator.getSettings();
+        if (!f.createNewFile())
+            throw new RuntimeException(f + " already exists.");
+
+        Writer out = new BufferedWriter(new OutputStreamWriter(new
+                FileOutputStream(f), StandardCharsets.UTF_8));
+        out.write(HEADER + Main.VERSION + "\n" + settings + "\n");
+        return new Manifest(f, Main.VERSION, settings, out);
+    }
+
+    /**
+     * Read a manifest, to regenerate its tests.
+     */
+    public static Manifest read(File f) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new
+                FileInputStream(f), StandardCharsets.UTF_8), 1 << 16);
+        try {
+            String header = in.readLine();
+            String settings = in.readLine();
+            if (header == null || !header.startsWith(HEADER) || settings ==
+                    null) {
+                throw new RuntimeException(f + " isn't a manifest.");
+            }
+
+            Manifest m = new Manifest(f, header.substring(HEADER.length()),
+                    settings, null);
+
+            int count = 0;
+            int[] iterations = new int[1024];
+            int[] crcs = new int[1024];
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty())
+                    continue;
+
+                int space = line.indexOf(' ');
+                try {
+                    int iteration = Integer.parseInt(line.substring(0, space));
+                    if (count > 0 && iterations[count - 1] >= iteration)
+                        throw new RuntimeException("out of order");
+
+                    if (count == iterations.length) {
+                        iterations = Arrays.copyOf(iterations, 2 * count);
+                        crcs = Arrays.copyOf(crcs, 2 * count);
+                    }
+                    iterations[count] = iteration;
+                    crcs[count] = (int) Long.parseLong(line.substring(space +
+                            1), 16);
+                    count++;
+                } catch (RuntimeException re) {
+                    // Bad numbers, no space or out of order.
+                    throw new RuntimeException(f + " has a bad line: " + line);
+                }
+            }
+
+            m.iterations = Arrays.copyOf(iterations, count);
+            m.crcs = Arrays.copyOf(crcs, count);
+            return m;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return The version of TheFuzz that made this.
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * @return The settings of the generator that made this, for
+     * TestGenerator.fromSettings.
+     */
+    public String getSettings() {
+        return settings;
+    }
+
+    /**
+     * @return Every iteration in it, in increasing order.
+     */
+    public int[] getIterations() {
+        return iterations.clone();
+    }
+
+    public boolean contains(int iteration) {
+        return Arrays.binarySearch(iterations, iteration) >= 0;
+    }
+
+    /**
+     * A test has been written: record it if this manifest is being written,
+     * or make sure it's the same test it was if it's being regenerated.
+     *
+     * @param crc The CRC-32 of its .asm file.
+     * @throws RuntimeException If it came out different this time.
+     */
+    public synchronized void record(int iteration, long crc) {
+        if (out != null) {
+            try {
+                out.write(iteration + " " + Long.toHexString(crc) + "\n");
+            } catch (IOException ioe) {
+                System.err.println(ioe.getLocalizedMessage());
+                throw new RuntimeException("Couldn't write to " + file);
+            }
+            return;
+        }
+
+        int i = Arrays.binarySearch(iterations, iteration);
+        if (i < 0) {
+            throw new RuntimeException("Iteration " + iteration + " isn't " +
+                    "in " + file);
+        }
+        if (crcs[i] != (int) crc) {
+            throw new RuntimeException("Iteration " + iteration + " didn't " +
+                    "come out the same as it did with TheFuzz " + version +
+                    " (CRC " + Long.toHexString(crc) + ", expected " + Integer
+                    .toHexString(crcs[i]) + ").");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (out != null)
+            out.close();
+    }
+}
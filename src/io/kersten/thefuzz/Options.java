@@ -0,0 +1,104 @@
+package io.kersten.thefuzz;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Splits command line arguments into "--name value" options and the plain
+ * positional arguments that batch mode has always used. Options can appear
+ * anywhere on the line, so the old invocations keep working unchanged.
+ */
+public class Options {
+
+    private HashMap<String, String> values = new HashMap<String, String>();
+
+    private ArrayList<String> positional = new ArrayList<String>();
+
+    /**
+     * @param args     The raw arguments from main.
+     * @param switches Names of options which don't take a value (like
+     *                 "--echo").
+     * @return The parsed options.
+     */
+    public static Options parse(String[] args, String... switches) {
+        Options o = new Options();
+
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                o.positional.add(args[i]);
+                continue;
+            }
+
+            boolean isSwitch = false;
+            for (String s : switches) {
+                if (s.equals(args[i])) {
+                    isSwitch = true;
+                }
+            }
+
+            if (isSwitch) {
+                o.values.put(args[i], "true");
+            } else if (i + 1 < args.length) {
+                o.values.put(args[i], args[++i]);
+            } else {
+                throw new RuntimeException("Option " + args[i] + " needs a " +
+                        "value.");
+            }
+        }
+
+        return o;
+    }
+
+    public List<String> getPositional() {
+        return positional;
+    }
+
+    public boolean has(String name) {
+        return values.containsKey(name);
+    }
+
+    public String get(String name, String def) {
+        String v = values.get(name);
+        return v == null ? def : v;
+    }
+
+    public int getInt(String name, int def) {
+        String v = values.get(name);
+        if (v == null)
+            return def;
+
+        try {
+            return Integer.parseInt(v);
+        } catch (NumberFormatException nfe) {
+            throw new RuntimeException("Option " + name + " expects a " +
+                    "number, got: " + v);
+        }
+    }
+
+    public long getLong(String name, long def) {
+        String v = values.get(name);
+        if (v == null)
+            return def;
+
+        try {
+            return Long.parseLong(v);
+        } catch (NumberFormatException nfe) {
+            throw new RuntimeException("Option " + name + " expects a " +
+                    "number, got: " + v);
+        }
+    }
+
+    public double getDouble(String name, double def) {
+        String v = values.get(name);
+        if (v == null)
+            return def;
+
+        try {
+            return Double.parseDouble(v);
+        } catch (NumberFormatException nfe) {
+            throw new RuntimeException("Option " + name + " expects a " +
+                    "number, got: " + v);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package io.kersten.thefuzz;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads tests back out of a pack written by PackWriter. Only the index is
+ * mapped; each entry is read and inflated when it's asked for, so pulling
+ * one test out of a pack of millions costs a binary search and one read.
+ *
+ * A PackReader can be shared between threads.
+ */
+public class PackReader implements Closeable {
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+
+    // The index, RECORD bytes per entry, sorted by iteration then kind.
+    private final ByteBuffer index;
+    private final int count;
+
+    private final Assembler.Format imageFormat;
+
+    public PackReader(File file) throws IOException {
+        this.file = file;
+        raf = new RandomAccessFile(file, "r");
+        channel = raf.getChannel();
+
+        try {
+            long size = channel.size();
+            if (size < 8 + PackWriter.TRAILER) {
+                throw new RuntimeException(file + " isn't a finished pack.");
+            }
+
+            ByteBuffer trailer = ByteBuffer.allocate(PackWriter.TRAILER);
+            readFully(trailer, size - PackWriter.TRAILER);
+            long indexOffset = trailer.getLong(0);
+            count = trailer.getInt(8);
+            int format = trailer.getInt(12);
+
+            if (trailer.getLong(16) != PackWriter.MAGIC) {
+                throw new RuntimeException(file + " isn't a pack, or was " +
+                        "never closed.");
+            }
+            if (count < 0 || indexOffset < 8 || indexOffset + (long) count *
+                    PackWriter.RECORD != size - PackWriter.TRAILER) {
+                throw new RuntimeException(file + " has a broken index.");
+            }
+            if (format >= Assembler.Format.values().length) {
+                throw new RuntimeException(file + " has images in a format " +
+                        "we don't know.");
+            }
+
+            imageFormat = format < 0 ? null : Assembler.Format.values()
+                    [format];
+            index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset,
+                    (long) count * PackWriter.RECORD);
+        } catch (RuntimeException re) {
+            raf.close();
+            throw re;
+        } catch (IOException ioe) {
+            raf.close();
+            throw ioe;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return The format of the images in the pack, or null if there are
+     * none.
+     */
+    public Assembler.Format getImageFormat() {
+        return imageFormat;
+    }
+
+    /**
+     * @return How many entries (tests and images) the pack holds.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return The iteration the i-th entry belongs to, in index order.
+     */
+    public int getIteration(int i) {
+        return index.getInt(i * PackWriter.RECORD);
+    }
+
+    /**
+     * @return The kind (PackWriter.ASM, IMAGE, STATE or STATE_JSON) of the
+     * i-th entry.
+     */
+    public int getKind(int i) {
+        return index.getInt(i * PackWriter.RECORD + 4);
+    }
+
+    /**
+     * @return Whether the pack has an entry for this iteration and kind.
+     */
+    public boolean contains(int iteration, int kind) {
+        return find(iteration, kind) >= 0;
+    }
+
+    /**
+     * Read one entry back, exactly as it would have been written to its own
+     * file.
+     *
+     * @return The entry's bytes, or null if the pack doesn't have it.
+     */
+    public byte[] read(int iteration, int kind) throws IOException {
+        int i = find(iteration, kind);
+        if (i < 0)
+            return null;
+
+        int record = i * PackWriter.RECORD;
+        long offset = index.getLong(record + 8);
+        int deflated = index.getInt(record + 16);
+        int inflated = index.getInt(record + 20);
+
+        ByteBuffer compressed = ByteBuffer.allocate(deflated);
+        readFully(compressed, offset);
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed.array());
+            byte[] data = new byte[inflated];
+            // Once data is full, keep going into spare until the end of
+            // the stream, so an empty entry is read to its end too and one
+            // that's longer than the index says is caught.
+            byte[] spare = new byte[1];
+            long n = 0;
+            while (!inflater.finished()) {
+                int got = n < inflated ? inflater.inflate(data, (int) n,
+                        inflated - (int) n) : inflater.inflate(spare);
+                if (got == 0 && (inflater.needsInput() || inflater
+                        .needsDictionary()))
+                    break;
+                n += got;
+            }
+
+            if (n > inflated) {
+                throw new RuntimeException("Iteration " + iteration + " in " +
+                        file + " is longer than the index says.");
+            }
+            if (n != inflated || !inflater.finished()) {
+                throw new RuntimeException("Iteration " + iteration + " in " +
+                        file + " is truncated.");
+            }
+            return data;
+        } catch (DataFormatException dfe) {
+            throw new RuntimeException("Iteration " + iteration + " in " +
+                    file + " is corrupt: " + dfe.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Binary search the index.
+     *
+     * @return The entry's position in the index, or -1.
+     */
+    private int find(int iteration, int kind) {
+        int lo = 0;
+        int hi = count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int it = getIteration(mid);
+            int c = it != iteration ? (it < iteration ? -1 : 1) : getKind
+                    (mid) - kind;
+            if (c < 0)
+                lo = mid + 1;
+            else if (c > 0)
+                hi = mid - 1;
+            else
+                return mid;
+        }
+
+        return -1;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws
+            IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new RuntimeException(file + " ends too soon.");
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        raf.close();
+    }
+}
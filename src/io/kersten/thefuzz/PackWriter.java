@@ -0,0 +1,288 @@
+package io.kersten.thefuzz;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a whole batch of tests into one file instead of one or two files
+ * per iteration, which a few hundred thousand tests a night turn into a lot
+ * of inodes and very slow directory listings.
+ *
+ * A pack is a MAGIC number, then each test and image deflated on its own,
+ * one after the other in whatever order they were added, then an index, then
+ * a trailer. The index has one 24 byte record per entry, sorted by iteration
+ * and kind:
+ *
+ * iteration (int), kind (int), offset (long), deflated length (int),
+ * inflated length (int)
+ *
+ * and the trailer (the last 24 bytes) is the offset of the index (long), the
+ * number of entries (int), the image format's ordinal or -1 (int) and MAGIC
+ * again. Everything is big-endian. PackReader maps the index and finds any
+ * one test without looking at the rest.
+ *
+ * add() can be called from any number of threads; compression happens
+ * outside the lock. Or entries can be compressed with deflate() (or written
+ * to deflating() a bit at a time) wherever is convenient and handed to
+ * append() in order, so the pack comes out the same every time.
+ */
+public class PackWriter implements Closeable {
+
+    static final long MAGIC = 0x46555A5A50414B31L; // "FUZZPAK1"
+
+    static final int RECORD = 24;
+    static final int TRAILER = 24;
+
+    // Kinds of entry.
+    public static final int ASM = 0;
+    public static final int IMAGE = 1;
+    public static final int STATE = 2;
+    public static final int STATE_JSON = 3;
+
+    // How many kinds there are.
+    static final int KINDS = 4;
+
+    private final File file;
+    private final DataOutputStream out;
+    private final Assembler.Format imageFormat;
+
+    // Where the next entry goes.
+    private long offset;
+
+    private final ArrayList<Entry> entries = new ArrayList<Entry>();
+    private final HashSet<Long> keys = new HashSet<Long>();
+
+    private boolean closed = false;
+
+    private final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>
+            () {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater();
+        }
+    };
+
+    private static class Entry implements Comparable<Entry> {
+        final int iteration;
+        final int kind;
+        final long offset;
+        final int deflated;
+        final int inflated;
+
+        Entry(int iteration, int kind, long offset, int deflated, int
+                inflated) {
+            this.iteration = iteration;
+            this.kind = kind;
+            this.offset = offset;
+            this.deflated = deflated;
+            this.inflated = inflated;
+        }
+
+        @Override
+        public int compareTo(Entry e) {
+            if (iteration != e.iteration)
+                return iteration < e.iteration ? -1 : 1;
+            return kind - e.kind;
+        }
+    }
+
+    /**
+     * Start a new pack. Like the .asm files, an existing pack is never
+     * overwritten.
+     *
+     * @param imageFormat The format of the IMAGE entries, or null if there
+     *                    won't be any.
+     */
+    public PackWriter(File file, Assembler.Format imageFormat) throws
+            IOException {
+        if (!file.createNewFile()) {
+            throw new RuntimeException(file + " already exists.");
+        }
+
+        this.file = file;
+        this.imageFormat = imageFormat;
+        out = new DataOutputStream(new BufferedOutputStream(new
+                FileOutputStream(file), 1 << 20));
+        out.writeLong(MAGIC);
+        offset = 8;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Compress and append one entry.
+     *
+     * @param iteration Which test it belongs to.
+     * @param kind      ASM, IMAGE, STATE or STATE_JSON.
+     * @param data      The bytes that would have gone into its own file.
+     */
+    public void add(int iteration, int kind, byte[] data) throws IOException {
+        append(iteration, kind, deflate(data), data.length);
+    }
+
+    /**
+     * Compress an entry ahead of time, so it can be appended later (and on
+     * another thread) with append().
+     */
+    public byte[] deflate(byte[] data) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream(data
+                .length / 4 + 64);
+        byte[] buffer = new byte[1 << 13];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            deflated.write(buffer, 0, n);
+        }
+
+        return deflated.toByteArray();
+    }
+
+    /**
+     * Compress an entry ahead of time as it's written, rather than all at
+     * once, so it never has to be in memory uncompressed. Close the stream
+     * before starting another on the same thread (they share a Deflater),
+     * then hand its bytes to append().
+     */
+    public Deflating deflating() {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        return new Deflating(deflater);
+    }
+
+    /**
+     * An entry being compressed as it's written; see deflating().
+     */
+    public static class Deflating extends OutputStream {
+        private final Deflater deflater;
+        private final ByteArrayOutputStream deflated = new
+                ByteArrayOutputStream(1 << 12);
+        private final byte[] buffer = new byte[1 << 13];
+        private int length = 0;
+        private boolean closed = false;
+
+        private Deflating(Deflater deflater) {
+            this.deflater = deflater;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            deflater.setInput(b, off, len);
+            length += len;
+            while (!deflater.needsInput()) {
+                deflated.write(buffer, 0, deflater.deflate(buffer));
+            }
+        }
+
+        /**
+         * Finish compressing. Nothing more can be written after this.
+         */
+        @Override
+        public void close() {
+            if (closed)
+                return;
+            closed = true;
+
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflated.write(buffer, 0, deflater.deflate(buffer));
+            }
+        }
+
+        /**
+         * @return The entry, compressed. Only once it's closed.
+         */
+        public byte[] toByteArray() {
+            return deflated.toByteArray();
+        }
+
+        /**
+         * @return How long the entry is before it's compressed.
+         */
+        public int getLength() {
+            return length;
+        }
+    }
+
+    /**
+     * Append an entry compressed by deflate() or deflating().
+     *
+     * @param inflated How long the entry was before it was compressed.
+     */
+    public synchronized void append(int iteration, int kind, byte[] deflated,
+                                    int inflated) throws IOException {
+        if (closed)
+            throw new RuntimeException(file + " is already closed.");
+        if (!keys.add((long) iteration << 32 | kind)) {
+            throw new RuntimeException("Iteration " + iteration + " is " +
+                    "already in " + file);
+        }
+
+        out.write(deflated);
+        entries.add(new Entry(iteration, kind, offset, deflated.length,
+                inflated));
+        offset += deflated.length;
+    }
+
+    /**
+     * @return How many tests (not counting images) are in the pack so far.
+     */
+    public synchronized int getTestCount() {
+        int tests = 0;
+        for (Entry e : entries) {
+            if (e.kind == ASM)
+                tests++;
+        }
+        return tests;
+    }
+
+    /**
+     * Write the index and trailer. Until this is done the pack can't be
+     * read.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+
+        try {
+            Collections.sort(entries);
+            long index = offset;
+            for (Entry e : entries) {
+                out.writeInt(e.iteration);
+                out.writeInt(e.kind);
+                out.writeLong(e.offset);
+                out.writeInt(e.deflated);
+                out.writeInt(e.inflated);
+            }
+
+            out.writeLong(index);
+            out.writeInt(entries.size());
+            out.writeInt(imageFormat == null ? -1 : imageFormat.ordinal());
+            out.writeLong(MAGIC);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package io.kersten.thefuzz;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a batch as two stages, so the disk is kept busy while tests are
+ * generated and the generators are kept busy while the disk writes:
+ *
+ * - a pool of generator threads take iterations in order, generate them
+ * and stream them to their files (TestGenerator.produce), then drop what
+ * they wrote into a reorder buffer;
+ * - the thread that called run() takes them out of the buffer strictly in
+ * iteration order and finishes them off (TestGenerator.store): the
+ * manifest, the pack and the console all see them in order.
+ *
+ * The buffer has room for a fixed number of iterations past the one being
+ * stored, and a generator can't start an iteration until there's room for
+ * it. If storing falls behind, the generators wait rather than getting
+ * further and further ahead; if generation falls behind, the storing
+ * thread waits. Either way the batch takes about as long as its slower
+ * stage.
+ *
+ * Since tests are stored in order, a failure is reported for the lowest
+ * failing iteration, and anything after it that had already been written
+ * is removed again.
+ *
+ * Subclasses can change how an iteration is produced, or do more with each
+ * one once it's stored (DiffHarness runs them).
+ */
+public class Pipeline {
+
+    // Room in the reorder buffer for each generator thread.
+    private static final int WINDOW_PER_THREAD = 4;
+
+    private final TestGenerator generator;
+    private final int threads;
+    private final int window;
+
+    // Rendered iterations waiting to be written. The k-th iteration to be
+    // written goes at k % window.
+    private final TestGenerator.Rendered[] slots;
+
+    public Pipeline(TestGenerator generator, int threads) {
+        this.generator = generator;
+        this.threads = threads;
+        this.window = WINDOW_PER_THREAD * threads;
+        this.slots = new TestGenerator.Rendered[window];
+    }
+
+    /**
+     * Generate and write iterations [0, iterations).
+     */
+    public void run(int iterations) {
+        run(null, iterations);
+    }
+
+    /**
+     * Generate and write just these iterations, in this order.
+     */
+    public void run(int[] selected) {
+        run(selected, selected.length);
+    }
+
+    /**
+     * @param selected Which iterations to do, or null for [0, count).
+     */
+    private void run(final int[] selected, final int count) {
+        boolean finished = false;
+        // One permit per free slot. An iteration holds its permit from when
+        // a generator takes it until it's written, so no more than window
+        // iterations are ever in flight.
+        final Semaphore room = new Semaphore(window);
+        final AtomicInteger next = new AtomicInteger();
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            for (int t = 0; t < threads; t++) {
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        generate(selected, count, room, next);
+                    }
+                });
+            }
+
+            for (int k = 0; k < count; k++) {
+                TestGenerator.Rendered r = take(k);
+
+                if (r.failure instanceof RuntimeException)
+                    throw (RuntimeException) r.failure;
+                if (r.failure instanceof Error)
+                    throw (Error) r.failure;
+                if (r.failure != null)
+                    throw new RuntimeException(r.failure);
+
+                generator.store(r);
+                stored(r);
+                room.release();
+            }
+            finished = true;
+        } finally {
+            // Anything still generating is past a failure; stop it.
+            pool.shutdownNow();
+            if (!finished)
+                discardRest(pool);
+        }
+    }
+
+    /**
+     * Generate and render one iteration, on a generator thread.
+     */
+    protected TestGenerator.Rendered produce(int iteration) {
+        return generator.produce(iteration);
+    }
+
+    /**
+     * Called with each iteration once it's been stored, in iteration order,
+     * on the thread that called run(). Until this returns, its slot isn't
+     * free for another iteration, so a slow one holds the generators back.
+     */
+    protected void stored(TestGenerator.Rendered r) {
+    }
+
+    /**
+     * After a failure, wait for the generators to stop and remove whatever
+     * they'd written past it.
+     */
+    private void discardRest(ExecutorService pool) {
+        try {
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (slots) {
+            for (int i = 0; i < window; i++) {
+                if (slots[i] != null)
+                    generator.discard(slots[i]);
+                slots[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Body of each generator thread: take the next iteration as soon as
+     * there's room for it, until they've all been taken.
+     */
+    private void generate(int[] selected, int count, Semaphore room,
+                          AtomicInteger next) {
+        while (true) {
+            try {
+                room.acquire();
+            } catch (InterruptedException ie) {
+                return;
+            }
+
+            int k = next.getAndIncrement();
+            if (k >= count) {
+                room.release();
+                return;
+            }
+            int iteration = selected == null ? k : selected[k];
+
+            TestGenerator.Rendered r;
+            try {
+                r = produce(iteration);
+            } catch (Throwable t) {
+                r = new TestGenerator.Rendered(iteration);
+                r.failure = t;
+            }
+
+            synchronized (slots) {
+                slots[k % window] = r;
+                slots.notifyAll();
+            }
+
+            if (r.failure != null)
+                return;
+        }
+    }
+
+    /**
+     * Wait for the k-th iteration to come out of the generators.
+     */
+    private TestGenerator.Rendered take(int k) {
+        int slot = k % window;
+        synchronized (slots) {
+            while (slots[slot] == null) {
+                try {
+                    slots.wait();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while writing " +
+                            "tests.");
+                }
+            }
+
+            TestGenerator.Rendered r = slots[slot];
+            slots[slot] = null;
+            return r;
+        }
+    }
+}
@@ -1,15 +1,18 @@
 package io.kersten.thefuzz;
 
-import io.kersten.thefuzz.opcodes.HLT;
-import io.kersten.thefuzz.opcodes.Label;
-
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.SplittableRandom;
 
 public class Program {
 
     private boolean generateGlobalNotTaken = false;
 
+    // Set once terminate() has added the final HLT, whose comment is
+    // followed by the expected final state when the program is written.
+    private boolean terminated = false;
+
     /**
      * Convert a number to its corresponding Register enum entry.
      *
@@ -59,8 +62,14 @@ public class Program {
     // which build the program. This is to avoid label naming conflicts.
     private int labelCount = 0;
 
-    // Which registers have been written to at least once so far.
-    private boolean validRegisters[] = new boolean[16];
+    // Sets of registers for getRandomRegister(int), one bit per register.
+    // R15 is never picked.
+    public static final int ANY_REGISTER = 0x7FFF;
+    public static final int NOT_R0 = ~1;
+
+    // Which registers have been written to at least once so far, one bit
+    // per register.
+    private int validRegisters = 0;
 
     // The current state of the flags (after the last instruction executed).
     private boolean flag_z = false;
@@ -69,34 +78,245 @@ public class Program {
 
     private short registerFile[] = new short[16];
 
-    private short memory[] = new short[65536];
-    private ArrayList<Integer> validMemory = new ArrayList<Integer>();
+    // Data memory, indexed by the address the program computes. Only the
+    // pages it actually touches take up space.
+    private DataMemory memory = new DataMemory();
 
     private int memoryDataOffset = 0;   // Due to unified memory, how far into
     // memory does the data begin?
 
-    private ArrayList<Instruction> instructions = new ArrayList<Instruction>();
+    private InstructionStream instructions = new InstructionStream();
+
+    private LabelTable labels = new LabelTable();
+
+    // Every random choice made while building this program comes from here,
+    // so the same seed always generates the same program.
+    private final long seed;
+    private final SplittableRandom random;
+
+    // The campaign's coverage model, if one is being kept.
+    private CoverageModel coverage = null;
+
+    // Where to count the generator's rejected choices, if anywhere.
+    private GeneratorMetrics metrics = null;
 
-    public Program(int memoryDataOffset) {
-        validRegisters[0] = true; // R0 is always valid since it's tied to 0.
+    // How often a load or store should use a register that already holds
+    // a value near its address, rather than loading a fresh one.
+    private double reuseRate = 0;
+
+    // Picks the addresses loads and stores go to.
+    private AddressAllocator allocator = AddressAllocator.RANDOM;
+
+    // A frozen program can't change any more, but can be forked.
+    private boolean frozen = false;
+
+    // The program this was forked from, if any.
+    private Program base = null;
+
+    // A frozen program's listing, kept so its forks don't have to simulate
+    // it all over again every time one of them is written.
+    private String listing = null;
+
+    public Program(int memoryDataOffset, long seed) {
+        validRegisters = 1; // R0 is always valid since it's tied to 0.
         registerFile[0] = 0;
         this.memoryDataOffset = memoryDataOffset;
+        this.seed = seed;
+        this.random = new SplittableRandom(seed);
+    }
+
+    /**
+     * Rebuild a program from instructions that already exist (read back from
+     * a listing, or cut down from another program) by simulating them in
+     * order, the way the generator does as it emits them. Branches aren't
+     * followed, so this only gives the right state for programs laid out
+     * like generated ones; run the result through the Interpreter to be
+     * sure.
+     *
+     * @param instructions The program, ending in HLT if it's finished.
+     * @param labels       Names of the labels it uses.
+     * @param memoryDataOffset Where its data goes in a memory image.
+     */
+    public static Program replay(InstructionStream instructions, LabelTable
+            labels, int memoryDataOffset) {
+        Program p = new Program(memoryDataOffset, 0);
+        p.labels = labels;
+
+        for (int i = 0; i < instructions.size(); i++) {
+            int word = instructions.get(i);
+            p.instructions.add(word);
+            InstructionFactory.simulateLastInstruction(p, word, null);
+
+            IOpcode op = Instruction.getiOpcode(word);
+            if (op == null)
+                continue;
+
+            if (op.getOpcode() == IOpcode.Opcode.SW) {
+                p.memory.setValid((p.registerFile[Instruction.second(word)] +
+                        Instruction.immediate4(word)) & (DataMemory.SIZE - 1));
+            } else if (op.getArgumentCount() > 0 && op.getArgumentType(0) ==
+                    ArgumentType.REGISTER) {
+                p.setRegisterValid(registerFromNumber(Instruction.first
+                        (word)));
+            }
+        }
+
+        int size = instructions.size();
+        p.terminated = size > 0 && Instruction.kind(instructions.get(size -
+                1)) == IOpcode.Opcode.HLT.ordinal();
+        return p;
+    }
+
+    /**
+     * Freeze the program where it is, so it can be forked. Nothing can be
+     * added to it afterwards.
+     */
+    public void freeze() {
+        instructions.freeze();
+        labels.freeze();
+        memory.freeze();
+        frozen = true;
+    }
+
+    /**
+     * Start a new program from where this (frozen) one left off. The fork
+     * shares this program's instructions, labels and memory pages instead
+     * of copying them, so forking is cheap however long this program is,
+     * and the fork only pays for what's added to it. Any number of forks
+     * can be made, from any number of threads.
+     *
+     * @param seed Seed for the fork's random choices.
+     */
+    public Program fork(long seed) {
+        if (!frozen) {
+            throw new RuntimeException("Only a frozen program can be forked.");
+        }
+
+        Program p = new Program(memoryDataOffset, seed);
+        p.base = this;
+        p.generateGlobalNotTaken = generateGlobalNotTaken;
+        p.labelCount = labelCount;
+        p.validRegisters = validRegisters;
+        p.flag_z = flag_z;
+        p.flag_n = flag_n;
+        p.flag_v = flag_v;
+        p.registerFile = registerFile.clone();
+        p.memory = memory.fork();
+        p.instructions = instructions.fork();
+        p.labels = labels.fork();
+        p.coverage = coverage;
+        p.metrics = metrics;
+        p.reuseRate = reuseRate;
+        p.allocator = allocator.copy();
+        return p;
     }
 
-    public void addInstructions(List<Instruction> instrs) {
-        instructions.addAll
-                (instrs);
+    /**
+     * @return The listing of this frozen program, worked out the first time
+     * it's asked for.
+     */
+    private synchronized String getListing() throws IOException {
+        if (listing == null) {
+            StringWriter build = new StringWriter();
+            write(build);
+            listing = build.toString();
+        }
+
+        return listing;
     }
 
     public String print() {
-        String build = "";
+        StringWriter build = new StringWriter();
+
+        try {
+            write(build);
+        } catch (IOException ioe) {
+            // StringWriter doesn't throw.
+            throw new RuntimeException(ioe);
+        }
+
+        return build.toString();
+    }
+
+    /**
+     * Stream the program listing to out, one instruction per line. If the
+     * program has been terminated, the expected final state follows the
+     * final HLT. Nothing is built up in memory, so this is linear in the
+     * length of the program.
+     *
+     * Instructions don't carry their comments around; they're worked out
+     * here by simulating the program again from the start on a scratch copy
+     * of the state, one Annotation at a time. A fork starts with the listing
+     * of the program it was forked from, which is only worked out once, and
+     * just simulates its own instructions.
+     *
+     * @param out Where to write the listing. The caller should buffer it.
+     * @throws IOException If out can't be written to.
+     */
+    public void write(Writer out) throws IOException {
+        write(out, true);
+    }
+
+    /**
+     * Same as write(out), but without comments if comments is false. Then
+     * nothing has to be simulated again, so the listing is much quicker to
+     * write. Lines aren't padded out for a comment either; only the final
+     * HLT gets one, with the expected final state.
+     */
+    public void write(Writer out, boolean comments) throws IOException {
+        if (!comments) {
+            for (int i = 0; i < instructions.size(); i++) {
+                boolean last = terminated && i == instructions.size() - 1;
+                Instruction.write(instructions.get(i), labels, last ? "; " :
+                        null, out);
+                if (last) {
+                    writeFinalState(out);
+                }
+                out.write('\n');
+            }
+            return;
+        }
+
+        Program replay;
+        int start;
+        if (base != null) {
+            // The program this was forked from has already been simulated
+            // up to here.
+            out.write(base.getListing());
+            replay = base.fork(seed);
+            start = base.instructions.size();
+        } else {
+            replay = new Program(memoryDataOffset, seed);
+            start = 0;
+        }
+
+        Annotation note = new Annotation();
+
+        for (int i = start; i < instructions.size(); i++) {
+            int word = instructions.get(i);
+
+            InstructionFactory.simulateLastInstruction(replay, word, note);
 
-        for (Instruction i : instructions) {
-            build += i.print() + "\n";
-            System.out.println(i.print());
+            Instruction.write(word, labels, "", out);
+            note.write(out);
+
+            boolean last = terminated && i == instructions.size() - 1;
+            if (last) {
+                // The expected values go after this.
+                out.write("; ");
+                writeFinalState(out);
+            }
+
+            out.write('\n');
         }
+    }
 
-        return build;
+    public long getSeed() {
+        return seed;
+    }
+
+    public SplittableRandom getRandom() {
+        return random;
     }
 
     public int getLabelCount() {
@@ -108,29 +328,70 @@ public class Program {
     }
 
     public boolean isRegisterValid(Register r) {
-        return validRegisters[r.getNumber()];
+        return (validRegisters >>> r.getNumber() & 1) != 0;
     }
 
     public void setRegisterValid(Register r) {
-        validRegisters[r.getNumber()] = true;
+        validRegisters |= 1 << r.getNumber();
+    }
+
+    /**
+     * @return Which registers are valid, one bit per register.
+     */
+    public int getValidRegisters() {
+        return validRegisters;
+    }
+
+    /**
+     * Find registers that could serve as the base of a load or store. With
+     * only 15 registers to look at, checking each is cheaper than keeping
+     * an index from values to registers up to date on every write.
+     *
+     * @return The valid registers (R0 included, never R15) holding a value
+     * in [low, high], one bit per register.
+     */
+    public int getRegistersHolding(int low, int high) {
+        int found = 0;
+        for (int left = validRegisters & ANY_REGISTER; left != 0; left &=
+                left - 1) {
+            int r = Integer.numberOfTrailingZeros(left);
+            if (registerFile[r] >= low && registerFile[r] <= high)
+                found |= 1 << r;
+        }
+        return found;
     }
 
     /**
-     * Selects a register at random.
+     * Selects a register at random (never R15).
      *
      * @param mustBeValid If true, only select registers which are valid.
      * @return A randomly selected register.
      */
     public Register getRandomRegister(boolean mustBeValid) {
-        int choice = -1;
+        return getRandomRegister(mustBeValid ? validRegisters & ANY_REGISTER
+                : ANY_REGISTER);
+    }
+
+    /**
+     * Selects a register at random from a set, each with the same chance.
+     * This takes one random draw however many registers are in the set.
+     *
+     * @param allowed Which registers may be picked, one bit per register;
+     *                combine ANY_REGISTER, NOT_R0 and getValidRegisters().
+     * @return A randomly selected register.
+     */
+    public Register getRandomRegister(int allowed) {
+        int count = Integer.bitCount(allowed);
+        if (count == 0) {
+            throw new RuntimeException("No registers to pick from.");
+        }
 
-        do {
-            do {
-                choice = (int) (Math.random() * validRegisters.length);
-            } while (choice == 15); // Don't select register 15.
-        } while (!validRegisters[choice] && mustBeValid); // Make sure valid
+        // Drop the lowest set bits until the chosen one is lowest.
+        for (int skip = random.nextInt(count); skip > 0; skip--) {
+            allowed &= allowed - 1;
+        }
 
-        return registerFromNumber(choice);
+        return registerFromNumber(Integer.numberOfTrailingZeros(allowed));
     }
 
     public boolean isFlag_z() {
@@ -157,6 +418,54 @@ public class Program {
         this.flag_v = flag_v;
     }
 
+    /**
+     * @return The current flags, as Alu.FLAG_* bits.
+     */
+    public int getFlags() {
+        return Alu.flags(flag_z, flag_n, flag_v);
+    }
+
+    public CoverageModel getCoverage() {
+        return coverage;
+    }
+
+    public void setCoverage(CoverageModel coverage) {
+        this.coverage = coverage;
+    }
+
+    public double getReuseRate() {
+        return reuseRate;
+    }
+
+    /**
+     * @param reuseRate The chance (0 to 1) that a load or store reuses a
+     *                  register already holding a nearby address, when
+     *                  there is one.
+     */
+    public void setReuseRate(double reuseRate) {
+        this.reuseRate = reuseRate;
+    }
+
+    public AddressAllocator getAddressAllocator() {
+        return allocator;
+    }
+
+    /**
+     * @param allocator Where loads and stores should go; it's this
+     *                  program's own, so pass a copy() of a shared one.
+     */
+    public void setAddressAllocator(AddressAllocator allocator) {
+        this.allocator = allocator;
+    }
+
+    public GeneratorMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void setMetrics(GeneratorMetrics metrics) {
+        this.metrics = metrics;
+    }
+
     public short[] getRegisterFile() {
         return registerFile;
     }
@@ -165,12 +474,22 @@ public class Program {
         return memoryDataOffset;
     }
 
-    public short[] getMemory() {
+    public DataMemory getMemory() {
         return memory;
     }
 
-    public ArrayList<Integer> getValidMemory() {
-        return validMemory;
+    /**
+     * @return The addresses of memory holding values we know about, in
+     * increasing order.
+     */
+    public int[] getValidMemory() {
+        int[] addrs = new int[memory.getValidCount()];
+        int n = 0;
+        for (int a = memory.nextValid(0); a >= 0; a = memory.nextValid(a + 1)) {
+            addrs[n++] = a;
+        }
+
+        return addrs;
     }
 
     public void dumpRegisters() {
@@ -192,40 +511,52 @@ public class Program {
             // can add more instructions after the label and add an
             // unconditional branch above it to avoid executing the block at
             // the end of the program.
-            instructions.add(new Instruction(new Label("nottaken")));
-            instructions.get(instructions.size() - 1).appendComment("failure " +
-                    "case for wrongly taken branches");
+            instructions.add(Instruction.withNote(Instruction.label(labels
+                    .intern("nottaken")), Instruction.NOTE_NOT_TAKEN));
         }
 
-        instructions.add(new Instruction(new HLT()));
+        // The expected values themselves are streamed out after this HLT by
+        // writeFinalState() when the program is written.
+        instructions.add(Instruction.make(IOpcode.Opcode.HLT));
+        terminated = true;
+    }
 
-        String finalState = "\n";
+    /**
+     * Write the expected values of the registers, flags, and valid memory
+     * addresses as comments.
+     *
+     * @param out Where to write the summary.
+     * @throws IOException If out can't be written to.
+     */
+    private void writeFinalState(Writer out) throws IOException {
+        out.write('\n');
 
         // Summarize registers
         for (int i = 0; i < registerFile.length; i++) {
-            finalState += "\n# R" + i + " = " + (isRegisterValid
-                    (registerFromNumber(i)) ? registerFile[i] : "xxxx");
+            out.write("\n# R" + i + " = ");
+            out.write(isRegisterValid(registerFromNumber(i)) ?
+                    Short.toString(registerFile[i]) : "xxxx");
         }
 
         // Summarize flags
-        finalState += "\n\n# Z = " + (isFlag_z() ? "1" : "0") + " N = " +
-                (isFlag_n()
-                ? "1" : "0") + " V = " + (isFlag_v() ? "1" : "0");
+        out.write("\n\n# Z = " + (isFlag_z() ? "1" : "0") + " N = " +
+                (isFlag_n() ? "1" : "0") + " V = " + (isFlag_v() ? "1" : "0"));
 
         // Summarize memory:
-        finalState += "\n\n# Valid memory addresses:";
-        for (int i : validMemory) {
-            finalState += "\n#    mem[" + i + "] = " + memory[i];
+        out.write("\n\n# Valid memory addresses:");
+        for (int a = memory.nextValid(0); a >= 0; a = memory.nextValid(a + 1)) {
+            out.write("\n#    mem[" + a + "] = " + memory.read(a));
         }
-
-
-        instructions.get(instructions.size() - 1).appendComment(finalState);
     }
 
-    public ArrayList<Instruction> getInstructions() {
+    public InstructionStream getInstructions() {
         return instructions;
     }
 
+    public LabelTable getLabels() {
+        return labels;
+    }
+
     public void setGenerateGlobalNotTaken() {
         generateGlobalNotTaken = true;
     }
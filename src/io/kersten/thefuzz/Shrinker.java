@@ -0,0 +1,481 @@
+package io.kersten.thefuzz;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cuts a test that fails on the design under test down to a small one that
+ * still fails, by delta debugging: remove chunks of the program (halving
+ * the chunk size whenever nothing can go), then try simplifying what's
+ * left one operand at a time.
+ *
+ * Every candidate gets its expected state from Program.replay and has to
+ * run cleanly on the Interpreter (branches going the way their labels say,
+ * no reads of registers that were never written) before it's worth a run
+ * on the design. Candidates in a round are run in parallel, and the first
+ * failing one in program order wins, so the result doesn't depend on
+ * which run finishes first.
+ */
+public class Shrinker {
+
+    private final LabelTable labels;
+
+    private final int dataOffset;
+
+    private final DutRunner dut;
+
+    // Format of the memory images the command wants, or null for none.
+    private final Assembler.Format imageFormat;
+
+    // Candidates are written here while they're being run.
+    private final File workDir;
+
+    private final int jobs;
+
+    // How many times the design has been run, and candidate file numbers.
+    private final AtomicInteger runs = new AtomicInteger();
+    private final AtomicInteger nextCandidate = new AtomicInteger();
+
+    private final ThreadLocal<Interpreter> interpreters = new
+            ThreadLocal<Interpreter>() {
+                @Override
+                protected Interpreter initialValue() {
+                    return new Interpreter();
+                }
+            };
+
+    /**
+     * Builds candidate number index of a round.
+     */
+    private interface Candidates {
+        int[] build(int index);
+    }
+
+    /**
+     * @param labels      Names of the labels the program uses.
+     * @param dataOffset  Where data goes in the memory images.
+     * @param dut         The design under test.
+     * @param imageFormat Memory image format for the command, or null.
+     * @param workDir     Scratch directory for candidates.
+     * @param jobs        How many candidates to run at once.
+     */
+    public Shrinker(LabelTable labels, int dataOffset, DutRunner dut,
+                    Assembler.Format imageFormat, File workDir, int jobs) {
+        this.labels = labels;
+        this.dataOffset = dataOffset;
+        this.dut = dut;
+        this.imageFormat = imageFormat;
+        this.workDir = workDir;
+        this.jobs = Math.max(1, jobs);
+    }
+
+    /**
+     * Shrink a failing program.
+     *
+     * @param words The program, ending in its final HLT.
+     * @return The smallest failing program found.
+     * @throws RuntimeException If the program doesn't fail to begin with.
+     */
+    public int[] shrink(int[] words) throws IOException, InterruptedException {
+        if (!workDir.isDirectory() && !workDir.mkdirs()) {
+            throw new RuntimeException("Couldn't make " + workDir);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(jobs);
+        try {
+            if (check(words) == null) {
+                throw new RuntimeException("The test doesn't fail on the " +
+                        "design to begin with (or doesn't run the way its " +
+                        "listing says).");
+            }
+
+            // Simplifying can open up more removals, so go until neither
+            // does anything.
+            int[] before;
+            do {
+                before = words;
+                words = removeChunks(pool, words);
+                words = simplify(pool, words);
+            } while (!Arrays.equals(before, words));
+        } finally {
+            pool.shutdownNow();
+        }
+
+        return words;
+    }
+
+    /**
+     * @return How many times the design has been run so far.
+     */
+    public int getRuns() {
+        return runs.get();
+    }
+
+    /**
+     * Run a program on the design.
+     *
+     * @return How it went wrong, or null if it passed or isn't a valid
+     * candidate.
+     */
+    public List<String> check(int[] words) throws IOException,
+            InterruptedException {
+        InstructionStream instructions = new InstructionStream();
+        for (int w : words) {
+            instructions.add(w);
+        }
+
+        if (!readsOnlyWritten(words))
+            return null;
+
+        Program program;
+        FinalState expected;
+        try {
+            program = Program.replay(instructions, labels, dataOffset);
+            expected = FinalState.of(program);
+        } catch (RuntimeException re) {
+            // Like R0 ending up non-zero.
+            return null;
+        }
+
+        Interpreter interpreter = interpreters.get();
+        interpreter.load(instructions, labels);
+        interpreter.run();
+        if (!interpreter.compare(expected).isEmpty())
+            return null;
+
+        int n = nextCandidate.getAndIncrement();
+        File asm = new File(workDir, "candidate_" + n + ".asm");
+        File image = imageFormat == null ? null : new File(workDir,
+                "candidate_" + n + "." + imageFormat.getExtension());
+        File log = new File(asm.getPath() + ".log");
+
+        try {
+            try {
+                write(program, asm, imageFormat, image);
+            } catch (RuntimeException re) {
+                // Can't be assembled (a branch out of range, say).
+                return null;
+            }
+
+            runs.incrementAndGet();
+            List<String> diffs;
+            try {
+                diffs = expected.diff(dut.run(asm, image, log), false);
+            } catch (RuntimeException re) {
+                diffs = new ArrayList<String>();
+                diffs.add(re.getMessage());
+            }
+
+            return diffs.isEmpty() ? null : diffs;
+        } finally {
+            asm.delete();
+            log.delete();
+            if (image != null)
+                image.delete();
+        }
+    }
+
+    /**
+     * Write a program as a test listing, plus its memory image if there's
+     * an image format.
+     */
+    public static void write(Program program, File asm, Assembler.Format
+            imageFormat, File image) throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(new
+                FileOutputStream(asm), StandardCharsets.UTF_8), 1 << 16);
+        try {
+            out.write("# Shrunk by TheFuzz v" + Main.VERSION + "\n\n");
+            program.write(out);
+        } finally {
+            out.close();
+        }
+
+        if (imageFormat != null) {
+            image.delete();
+            Assembler.write(program, imageFormat, image);
+        }
+    }
+
+    /**
+     * The generator never reads a register before writing it, and neither
+     * should a candidate, since the design's registers start out unknown.
+     */
+    private static boolean readsOnlyWritten(int[] words) {
+        int written = 1;
+
+        for (int w : words) {
+            IOpcode op = Instruction.getiOpcode(w);
+            if (op == null || op.getOpcode() == IOpcode.Opcode.B)
+                continue;
+
+            int count = op.getArgumentCount();
+            if (count > 1 && op.getArgumentType(1) == ArgumentType.VREGISTER
+                    && (written >> Instruction.second(w) & 1) == 0)
+                return false;
+            if (count > 2 && op.getArgumentType(2) == ArgumentType.VREGISTER
+                    && (written >> Instruction.third(w) & 1) == 0)
+                return false;
+
+            if (op.getOpcode() == IOpcode.Opcode.SW) {
+                if ((written >> Instruction.first(w) & 1) == 0)
+                    return false;
+            } else if (count > 0 && op.getArgumentType(0) == ArgumentType
+                    .REGISTER) {
+                written |= 1 << Instruction.first(w);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Delta debugging over the program's removable pieces: each instruction
+     * on its own, except that a branch goes together with the failure path
+     * right after it. The final HLT stays.
+     */
+    private int[] removeChunks(ExecutorService pool, int[] words) throws
+            IOException, InterruptedException {
+        int n = 2;
+
+        while (true) {
+            final int[] current = words;
+            final int[] pieces = pieces(current);
+            final int count = pieces.length / 2;
+            if (count == 0)
+                return words;
+
+            n = Math.min(n, count);
+            final int chunks = n;
+
+            int found = firstFailing(pool, chunks, new Candidates() {
+                @Override
+                public int[] build(int index) {
+                    return without(current, pieces, index * count / chunks,
+                            (index + 1) * count / chunks);
+                }
+            });
+
+            if (found >= 0) {
+                words = without(current, pieces, found * count / chunks,
+                        (found + 1) * count / chunks);
+                n = Math.max(n - 1, 2);
+                System.out.println("Down to " + instructionCount(words) +
+                        " instructions (" + runs.get() + " runs)");
+            } else if (n >= count) {
+                return words;
+            } else {
+                n = Math.min(2 * n, count);
+            }
+        }
+    }
+
+    /**
+     * Try replacing operands with R0 or zero, and conditions with UNCOND,
+     * one at a time until none of them still fail.
+     */
+    private int[] simplify(ExecutorService pool, int[] words) throws
+            IOException, InterruptedException {
+        while (true) {
+            final int[] current = words;
+            final ArrayList<int[]> variants = new ArrayList<int[]>();
+
+            for (int i = 0; i < current.length; i++) {
+                for (int v : simpler(current[i])) {
+                    variants.add(new int[]{i, v});
+                }
+            }
+
+            int found = firstFailing(pool, variants.size(), new Candidates() {
+                @Override
+                public int[] build(int index) {
+                    int[] candidate = current.clone();
+                    candidate[variants.get(index)[0]] = variants.get(index)[1];
+                    return candidate;
+                }
+            });
+
+            if (found < 0)
+                return words;
+
+            words = current.clone();
+            words[variants.get(found)[0]] = variants.get(found)[1];
+        }
+    }
+
+    /**
+     * @return Simpler versions of one instruction.
+     */
+    private static int[] simpler(int word) {
+        IOpcode op = Instruction.getiOpcode(word);
+        if (op == null)
+            return new int[0];
+
+        if (op.getOpcode() == IOpcode.Opcode.B) {
+            if (Instruction.condition(word) == Condition.UNCOND)
+                return new int[0];
+            return new int[]{Instruction.branch(Condition.UNCOND, Instruction
+                    .labelId(word))};
+        }
+
+        int[] fields = {(word >>> 8) & 0xF, (word >>> 12) & 0xFF, (word >>>
+                20) & 0xF};
+        int[] found = new int[3];
+        int n = 0;
+
+        // Anything read can be R0 instead, any immediate can be 0.
+        for (int i = 1; i < op.getArgumentCount(); i++) {
+            if (fields[i] == 0)
+                continue;
+
+            int[] simpler = fields.clone();
+            simpler[i] = 0;
+            found[n++] = Instruction.withNote(Instruction.make(op
+                    .getOpcode(), simpler[0], simpler[1], simpler[2]),
+                    Instruction.note(word));
+        }
+
+        return Arrays.copyOf(found, n);
+    }
+
+    /**
+     * Run candidates [0, count) in parallel.
+     *
+     * @return The lowest numbered one that still fails, or -1.
+     */
+    private int firstFailing(ExecutorService pool, int count, final
+    Candidates candidates) throws IOException, InterruptedException {
+        ArrayList<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            results.add(pool.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return check(candidates.build(index)) != null;
+                }
+            }));
+        }
+
+        try {
+            for (int i = 0; i < count; i++) {
+                if (results.get(i).get())
+                    return i;
+            }
+            return -1;
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof IOException)
+                throw (IOException) ee.getCause();
+            if (ee.getCause() instanceof RuntimeException)
+                throw (RuntimeException) ee.getCause();
+            throw new RuntimeException(ee.getCause());
+        } finally {
+            // Nothing after the winner matters any more.
+            for (Future<Boolean> f : results) {
+                f.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * @return The removable pieces, as pairs of where each starts and ends.
+     */
+    private static int[] pieces(int[] words) {
+        int[] pieces = new int[2 * words.length];
+        int n = 0;
+
+        // The final HLT (and the label before it, if any) always stays.
+        int end = words.length - 1;
+        while (end > 0 && Instruction.isLabel(words[end - 1]))
+            end--;
+
+        for (int i = 0; i < end; ) {
+            if (Instruction.isLabel(words[i])) {
+                i++;
+                continue;
+            }
+
+            pieces[n++] = i;
+            if (Instruction.kind(words[i]) == IOpcode.Opcode.B.ordinal() && i
+                    + 2 < end && Instruction.isLabel(words[i + 1]) &&
+                    Instruction.kind(words[i + 2]) == IOpcode.Opcode.HLT
+                    .ordinal()) {
+                // The branch, its failure label and the HLT.
+                i += 3;
+            } else {
+                i++;
+            }
+            pieces[n++] = i;
+        }
+
+        return Arrays.copyOf(pieces, n);
+    }
+
+    /**
+     * @return The program without pieces [from, to), and without any
+     * labels nothing branches to any more.
+     */
+    private static int[] without(int[] words, int[] pieces, int from, int to) {
+        boolean[] removed = new boolean[words.length];
+        for (int p = from; p < to; p++) {
+            Arrays.fill(removed, pieces[2 * p], pieces[2 * p + 1], true);
+        }
+
+        int[] kept = new int[words.length];
+        int n = 0;
+        for (int i = 0; i < words.length; i++) {
+            if (!removed[i])
+                kept[n++] = words[i];
+        }
+
+        return dropUnusedLabels(Arrays.copyOf(kept, n));
+    }
+
+    private static int[] dropUnusedLabels(int[] words) {
+        int maxLabel = 0;
+        for (int w : words) {
+            if (Instruction.isLabel(w) || Instruction.kind(w) == IOpcode
+                    .Opcode.B.ordinal())
+                maxLabel = Math.max(maxLabel, Instruction.labelId(w));
+        }
+
+        boolean[] used = new boolean[maxLabel + 1];
+        for (int w : words) {
+            if (Instruction.kind(w) == IOpcode.Opcode.B.ordinal())
+                used[Instruction.labelId(w)] = true;
+        }
+
+        int[] kept = new int[words.length];
+        int n = 0;
+        for (int w : words) {
+            if (!Instruction.isLabel(w) || used[Instruction.labelId(w)])
+                kept[n++] = w;
+        }
+
+        return Arrays.copyOf(kept, n);
+    }
+
+    /**
+     * @return How many real instructions (not labels) are in a program.
+     */
+    public static int instructionCount(int[] words) {
+        int n = 0;
+        for (int w : words) {
+            if (!Instruction.isLabel(w))
+                n++;
+        }
+        return n;
+    }
+}
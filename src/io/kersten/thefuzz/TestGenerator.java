@@ -0,0 +1,953 @@
+package io.kersten.thefuzz;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Turns an iteration number into a finished test file. Each iteration builds
+ * its own Program and touches nothing shared, so iterations can be handed out
+ * to as many threads as we like.
+ *
+ * The exception is a coverage campaign: every iteration shares one
+ * CoverageModel and its choices depend on what came before, so those are
+ * always generated one at a time, in order.
+ *
+ * Tests can also come in families: every familySize consecutive iterations
+ * share their first prefixLength opcodes. The shared prefix is generated
+ * once, frozen, and forked for each member, which then only generates its
+ * own tail.
+ */
+public class TestGenerator {
+
+    // Which opcodes should be tested? Resolved from their names once, up
+    // front.
+    private final IOpcode.Opcode[] opcodes;
+
+    // How many opcodes go into each test.
+    private final int testLength;
+
+    // Memory data offset handed to each Program.
+    private final int dataOffset;
+
+    // Output files are named filename_iteration.asm
+    private final String filename;
+
+    // Each iteration's seed is derived from this, so a whole batch can be
+    // reproduced from one number.
+    private final long seed;
+
+    // Whether to also print each test to the console as it's written.
+    private boolean echo = false;
+
+    // Whether each instruction gets a comment saying what it does.
+    private boolean comments = true;
+
+    // How often loads and stores reuse a register already holding a nearby
+    // address instead of loading their own.
+    private double reuseRate = 0;
+
+    // Where loads and stores go. Each program gets its own copy.
+    private AddressAllocator allocator = AddressAllocator.RANDOM;
+
+    // If set, a memory image is written next to each .asm file.
+    private Assembler.Format imageFormat = null;
+
+    // Whether the expected final state is also written on its own, as a
+    // binary record (filename_iteration.state) and/or as JSON
+    // (filename_iteration.json).
+    private boolean state = false;
+    private boolean stateJson = false;
+
+    // If set, each program is run through the Interpreter and has to end up
+    // in the state the generator expects.
+    private boolean verify = false;
+
+    // If set, every program records what it covers here and (if the model
+    // is guided) lets it pick opcodes and conditions.
+    private CoverageModel coverage = null;
+
+    // If set, programs already in here (after renaming registers and
+    // labels) aren't written.
+    private DedupIndex dedup = null;
+
+    // Dedup checks happen in iteration order; this is the next one due.
+    private final Object dedupTurn = new Object();
+    private int nextToCheck = 0;
+
+    private final AtomicInteger duplicates = new AtomicInteger();
+
+    // If set, where to count how long everything takes.
+    private GeneratorMetrics metrics = null;
+
+    // If set, tests and images go into this one file instead of a file
+    // each.
+    private PackWriter pack = null;
+
+    // If set, every test written is recorded in (or checked against) this.
+    private Manifest manifest = null;
+
+    // If set, files go in here instead of where filename says. Their
+    // headers still say filename.
+    private File outputDir = null;
+
+    // How many tests share each prefix, and how many opcodes long it is.
+    private int familySize = 1;
+    private int prefixLength = 0;
+
+    // Prefixes of the families being generated, by family number.
+    private final HashMap<Integer, Family> families = new HashMap<Integer,
+            Family>();
+
+    private static class Family {
+        // The frozen prefix, once it's been generated.
+        Program prefix = null;
+
+        // How many members still have to fork it.
+        int forksLeft;
+    }
+
+    private final ThreadLocal<Canonicalizer> canonicalizers = new
+            ThreadLocal<Canonicalizer>() {
+                @Override
+                protected Canonicalizer initialValue() {
+                    return new Canonicalizer();
+                }
+            };
+
+    // One per thread, so they can be reused from one program to the next.
+    private final ThreadLocal<Interpreter> interpreters = new
+            ThreadLocal<Interpreter>() {
+                @Override
+                protected Interpreter initialValue() {
+                    return new Interpreter();
+                }
+            };
+
+    public TestGenerator(List<String> opcodes, int testLength, int dataOffset,
+                         String filename, long seed) {
+        this.opcodes = new IOpcode.Opcode[opcodes.size()];
+        for (int i = 0; i < this.opcodes.length; i++) {
+            this.opcodes[i] = IOpcode.fromMnemonic(opcodes.get(i));
+            if (this.opcodes[i] == null) {
+                throw new RuntimeException("Not a valid mnemonic: " + opcodes
+                        .get(i));
+            }
+        }
+        if (dataOffset < 0 || dataOffset >= DataMemory.SIZE) {
+            throw new RuntimeException("The data offset has to be between 0 " +
+                    "and " + (DataMemory.SIZE - 1) + ", not " + dataOffset);
+        }
+        this.testLength = testLength;
+        this.dataOffset = dataOffset;
+        this.filename = filename;
+        this.seed = seed;
+    }
+
+    /**
+     * Derive the seed for one iteration of a batch. This only depends on the
+     * batch seed and the iteration number, not on which thread gets there
+     * first, so iterations can be generated in any order.
+     *
+     * @param seed      The seed of the whole batch.
+     * @param iteration Which iteration this is.
+     * @return The seed to generate that iteration's Program from.
+     */
+    public static long seedForIteration(long seed, int iteration) {
+        return new SplittableRandom(seed + iteration * 0x9E3779B97F4A7C15L)
+                .nextLong();
+    }
+
+    public void setEcho(boolean echo) {
+        this.echo = echo;
+    }
+
+    /**
+     * @param reuseRate The chance (0 to 1) that a load or store builds its
+     *                  address from a register that already holds a value
+     *                  within reach, instead of with an LLB (and LHB).
+     */
+    public void setReuseRate(double reuseRate) {
+        if (!(reuseRate >= 0 && reuseRate <= 1)) {
+            throw new RuntimeException("The reuse rate has to be between 0 " +
+                    "and 1.");
+        }
+
+        this.reuseRate = reuseRate;
+    }
+
+    public void setAddressAllocator(AddressAllocator allocator) {
+        this.allocator = allocator;
+    }
+
+    public void setComments(boolean comments) {
+        this.comments = comments;
+    }
+
+    public void setImageFormat(Assembler.Format imageFormat) {
+        this.imageFormat = imageFormat;
+    }
+
+    /**
+     * @param binary Whether to write each test's expected state to a .state
+     *               file next to it (see FinalState.read).
+     * @param json   Whether to write it to a .json file too.
+     */
+    public void setState(boolean binary, boolean json) {
+        this.state = binary;
+        this.stateJson = json;
+    }
+
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    public void setCoverage(CoverageModel coverage) {
+        this.coverage = coverage;
+    }
+
+    public CoverageModel getCoverage() {
+        return coverage;
+    }
+
+    /**
+     * Generate tests in families which share a prefix.
+     *
+     * @param familySize   How many consecutive iterations share one.
+     * @param prefixLength How many opcodes long it is; has to be less than
+     *                     the test length.
+     */
+    public void setFamily(int familySize, int prefixLength) {
+        if (familySize < 1 || prefixLength < 0 || prefixLength >= testLength) {
+            throw new RuntimeException("Families need at least one test " +
+                    "each and a prefix shorter than the test.");
+        }
+
+        this.familySize = familySize;
+        this.prefixLength = prefixLength;
+    }
+
+    public void setMetrics(GeneratorMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void setPack(PackWriter pack) {
+        this.pack = pack;
+    }
+
+    public void setManifest(Manifest manifest) {
+        this.manifest = manifest;
+    }
+
+    public void setOutputDirectory(File outputDir) {
+        this.outputDir = outputDir;
+    }
+
+    public void setDedup(DedupIndex dedup) {
+        this.dedup = dedup;
+    }
+
+    /**
+     * @return How many generated programs were dropped as duplicates.
+     */
+    public int getDuplicates() {
+        return duplicates.get();
+    }
+
+    /**
+     * @return The opcodes being tested.
+     */
+    public IOpcode.Opcode[] getOpcodes() {
+        return opcodes.clone();
+    }
+
+    public Assembler.Format getImageFormat() {
+        return imageFormat;
+    }
+
+    /**
+     * @return The file an iteration's test gets written to.
+     */
+    public File getAsmFile(int iteration) {
+        return output(iteration, ".asm");
+    }
+
+    private File output(int iteration, String extension) {
+        String name = filename + "_" + iteration + extension;
+        if (outputDir == null)
+            return new File(name);
+        return new File(outputDir, new File(name).getName());
+    }
+
+    /**
+     * @return The file an iteration's memory image gets written to, or null
+     * if no image format was set.
+     */
+    public File getImageFile(int iteration) {
+        if (imageFormat == null)
+            return null;
+
+        return output(iteration, "." + imageFormat.getExtension());
+    }
+
+    /**
+     * @return The file an iteration's expected state gets written to.
+     */
+    public File getStateFile(int iteration) {
+        return output(iteration, ".state");
+    }
+
+    /**
+     * @return The file an iteration's expected state gets written to as
+     * JSON.
+     */
+    public File getStateJsonFile(int iteration) {
+        return output(iteration, ".json");
+    }
+
+    /**
+     * Generate the program for one iteration and terminate it.
+     *
+     * @param iteration Which iteration this is.
+     * @return The finished program.
+     */
+    public Program generate(int iteration) {
+        GeneratorMetrics.Span span = GeneratorMetrics.start(metrics,
+                GeneratorMetrics.Phase.GENERATE, iteration);
+
+        //Okay, start randomly generating opcodes!
+        Program program;
+        int length = testLength;
+        if (familySize > 1) {
+            program = prefixFor(iteration / familySize).fork
+                    (seedForIteration(seed, iteration));
+            length -= prefixLength;
+        } else {
+            program = new Program(dataOffset, seedForIteration(seed,
+                    iteration));
+            program.setAddressAllocator(allocator.copy());
+        }
+
+        generateOpcodes(program, length);
+
+        program.terminate();
+
+        if (coverage != null) {
+            coverage.endTest();
+        }
+
+        span.end(program.getInstructions().size());
+
+        if (verify) {
+            span = GeneratorMetrics.start(metrics, GeneratorMetrics.Phase
+                    .SIMULATE, iteration);
+            verify(iteration, program);
+            span.end(program.getInstructions().size());
+        }
+
+        return program;
+    }
+
+    /**
+     * Add length randomly chosen opcodes to the end of a program.
+     */
+    private void generateOpcodes(Program program, int length) {
+        program.setCoverage(coverage);
+        program.setMetrics(metrics);
+        program.setReuseRate(reuseRate);
+
+        for (int remaining = length; remaining > 0; remaining--) {
+            IOpcode.Opcode opcode = coverage == null ? opcodes[program
+                    .getRandom().nextInt(opcodes.length)] : coverage
+                    .chooseOpcode(program);
+
+            if (metrics == null) {
+                InstructionFactory.generateInstruction(program, opcode);
+            } else {
+                long start = System.nanoTime();
+                int added = InstructionFactory.generateInstruction(program,
+                        opcode);
+                metrics.opcode(opcode, added, System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * @return The frozen prefix of a family, generating it if this is the
+     * first member to ask. It's forgotten once every member being generated
+     * has had it.
+     */
+    private Program prefixFor(int family) {
+        Family f;
+        synchronized (families) {
+            f = families.get(family);
+            if (f == null) {
+                f = new Family();
+                f.forksLeft = familySize;
+                families.put(family, f);
+            }
+            if (--f.forksLeft == 0)
+                families.remove(family);
+        }
+
+        synchronized (f) {
+            if (f.prefix == null) {
+                // Prefixes get seeds no iteration will, counting down from
+                // -1.
+                Program prefix = new Program(dataOffset, seedForIteration
+                        (seed, -1 - family));
+                prefix.setAddressAllocator(allocator.copy());
+                generateOpcodes(prefix, prefixLength);
+                prefix.freeze();
+                f.prefix = prefix;
+            }
+
+            return f.prefix;
+        }
+    }
+
+    /**
+     * Check a generated program against the dedup index, adding it if it's
+     * new. Iterations are checked strictly in order (waiting on earlier
+     * ones if need be), so whichever iteration of a duplicate pair comes
+     * first is the one kept, however many threads are generating. Every
+     * iteration from 0 up has to be checked exactly once.
+     *
+     * @return Whether an equivalent program was already generated, in this
+     * run or an earlier one sharing the index. Always false without one.
+     */
+    public boolean isDuplicate(int iteration, Program program) {
+        if (dedup == null)
+            return false;
+
+        long hash = canonicalizers.get().hash(program);
+
+        boolean duplicate;
+        synchronized (dedupTurn) {
+            while (nextToCheck != iteration) {
+                try {
+                    dedupTurn.wait();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while waiting " +
+                            "to check for duplicates.");
+                }
+            }
+
+            duplicate = !dedup.add(hash);
+            nextToCheck++;
+            dedupTurn.notifyAll();
+        }
+
+        if (duplicate)
+            duplicates.incrementAndGet();
+        return duplicate;
+    }
+
+    /**
+     * Generate one iteration and render it, ready for store(). This is the
+     * part of writing a test that doesn't have to happen in order, so it
+     * can run on any thread.
+     *
+     * @return The rendered test, or one with nothing written if it's a
+     * duplicate.
+     */
+    Rendered produce(int iteration) {
+        Program program = generate(iteration);
+        if (isDuplicate(iteration, program))
+            return new Rendered(iteration);
+        return render(iteration, program);
+    }
+
+    /**
+     * Run a generated program from the start and make sure it halts in the
+     * state the generator says it will.
+     *
+     * @throws RuntimeException If it doesn't.
+     */
+    private void verify(int iteration, Program program) {
+        Interpreter interpreter = interpreters.get();
+        interpreter.load(program.getInstructions(), program.getLabels());
+        interpreter.run();
+
+        List<String> diffs = interpreter.compare(FinalState.of(program));
+        if (!diffs.isEmpty()) {
+            StringBuilder message = new StringBuilder("Iteration " + iteration
+                    + " (seed " + program.getSeed() + ") doesn't run the way " +
+                    "it was generated:");
+            for (String d : diffs) {
+                message.append("\n    ").append(d);
+            }
+            throw new RuntimeException(message.toString());
+        }
+    }
+
+    /**
+     * A test that's been rendered, on its way to being stored in iteration
+     * order.
+     */
+    static class Rendered {
+        final int iteration;
+
+        // The files it was written to, by pack kind (PackWriter.ASM, IMAGE,
+        // STATE and STATE_JSON), null where there isn't one. Null if it's a
+        // duplicate or it's going into a pack.
+        File[] files = null;
+
+        // If it's going into a pack, its entries by kind, deflated, and how
+        // long each one is inflated. A pack's entries have to go in in
+        // order, so these wait here, but only compressed.
+        byte[][] packed = null;
+        int[] lengths = null;
+
+        // CRC-32 of the .asm file, for the manifest.
+        long crc;
+
+        // How long the program is.
+        int instructions;
+
+        // The program itself, only kept if something needs it after it's
+        // stored (DiffHarness does).
+        Program program = null;
+
+        // What went wrong, if it couldn't be generated.
+        Throwable failure = null;
+
+        Rendered(int iteration) {
+            this.iteration = iteration;
+        }
+
+        boolean isDuplicate() {
+            return files == null && packed == null;
+        }
+    }
+
+    /**
+     * Render a generated program: its listing, its image if an image format
+     * was set and its expected state if that's wanted. Each one is streamed
+     * straight to its own file as it's rendered (so a test is never built
+     * up in memory), or compressed as it's rendered if there's a pack. This
+     * can run on any thread; store() then finishes the job in order.
+     *
+     * @throws RuntimeException If one of the files already exists or can't
+     *                          be written. Any already written are removed.
+     */
+    Rendered render(int iteration, Program program) {
+        GeneratorMetrics.Span span = GeneratorMetrics.start(metrics,
+                GeneratorMetrics.Phase.RENDER, iteration);
+
+        Rendered r = new Rendered(iteration);
+        r.instructions = program.getInstructions().size();
+        FinalState expected = state || stateJson ? FinalState.of(program) :
+                null;
+
+        try {
+            if (pack != null)
+                renderPacked(r, program, expected);
+            else
+                renderFiles(r, program, expected);
+        } catch (IOException ioe) {
+            discard(r);
+            // If it was interrupted, something else already went wrong.
+            if (!(ioe instanceof ClosedByInterruptException))
+                System.err.println(ioe.getLocalizedMessage());
+            throw new RuntimeException("Couldn't write iteration " +
+                    iteration + ".");
+        } catch (RuntimeException re) {
+            discard(r);
+            throw re;
+        }
+
+        span.end(r.instructions);
+        return r;
+    }
+
+    private void renderFiles(Rendered r, Program program, FinalState
+            expected) throws IOException {
+        r.files = new File[PackWriter.KINDS];
+
+        File asm = createNew(r, PackWriter.ASM, getAsmFile(r.iteration));
+        r.crc = writeAsm(new FileOutputStream(asm), r.iteration, program);
+
+        if (imageFormat != null) {
+            Assembler.write(program, imageFormat, createNew(r, PackWriter
+                    .IMAGE, getImageFile(r.iteration)));
+        }
+
+        if (state) {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream
+                    (createNew(r, PackWriter.STATE, getStateFile(r
+                            .iteration))), 1 << 13);
+            try {
+                expected.write(out);
+            } finally {
+                out.close();
+            }
+        }
+
+        if (stateJson) {
+            Writer out = new TextBuffer(new FileOutputStream(createNew(r,
+                    PackWriter.STATE_JSON, getStateJsonFile(r.iteration))),
+                    1 << 13);
+            try {
+                expected.writeJson(out);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Create one of a test's files, which mustn't be there already, and
+     * note it down so it can be removed if the test doesn't make it.
+     */
+    private static File createNew(Rendered r, int kind, File f) throws
+            IOException {
+        if (!f.createNewFile()) {
+            throw new RuntimeException("Sadness in creating file ): " + f +
+                    " already exists.");
+        }
+
+        r.files[kind] = f;
+        return f;
+    }
+
+    private void renderPacked(Rendered r, Program program, FinalState
+            expected) throws IOException {
+        r.packed = new byte[PackWriter.KINDS][];
+        r.lengths = new int[PackWriter.KINDS];
+
+        PackWriter.Deflating asm = pack.deflating();
+        r.crc = writeAsm(asm, r.iteration, program);
+        keep(r, PackWriter.ASM, asm);
+
+        if (imageFormat != null) {
+            PackWriter.Deflating image = pack.deflating();
+            Assembler.write(program, imageFormat, image);
+            keep(r, PackWriter.IMAGE, image);
+        }
+
+        if (state) {
+            PackWriter.Deflating record = pack.deflating();
+            expected.write(new BufferedOutputStream(record, 1 << 13));
+            keep(r, PackWriter.STATE, record);
+        }
+
+        if (stateJson) {
+            PackWriter.Deflating json = pack.deflating();
+            Writer out = new TextBuffer(json, 1 << 13);
+            expected.writeJson(out);
+            out.flush();
+            keep(r, PackWriter.STATE_JSON, json);
+        }
+    }
+
+    private static void keep(Rendered r, int kind, PackWriter.Deflating
+            entry) {
+        entry.close();
+        r.packed[kind] = entry.toByteArray();
+        r.lengths[kind] = entry.getLength();
+    }
+
+    /**
+     * Stream a test to out and close it.
+     *
+     * @return The CRC-32 of everything written.
+     */
+    private long writeAsm(OutputStream out, int iteration, Program program)
+            throws IOException {
+        CRC32 crc = new CRC32();
+        Writer text = new TextBuffer(new CheckedOutputStream(out, crc), 1 <<
+                16);
+        try {
+            writeTest(text, iteration, program);
+        } finally {
+            text.close();
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Remove whatever files a rendered test was written to, for when it
+     * isn't going to be stored after all.
+     */
+    void discard(Rendered r) {
+        if (r.files == null)
+            return;
+
+        for (File f : r.files) {
+            if (f != null)
+                f.delete();
+        }
+    }
+
+    /**
+     * Write a generated program out to filename_iteration.asm, plus its
+     * memory image and expected state if they're wanted, or add them all
+     * to the pack if there is one.
+     *
+     * @param iteration Which iteration this is.
+     * @param program   The finished program from generate().
+     */
+    public void write(int iteration, Program program) {
+        store(render(iteration, program));
+    }
+
+    /**
+     * Finish off a rendered test, in iteration order: check it against the
+     * manifest, add it to the pack if there is one, and say where it went.
+     * Duplicates are skipped.
+     */
+    void store(Rendered r) {
+        if (r.isDuplicate())
+            return;
+
+        // When regenerating, this is where a test that doesn't come out the
+        // same is caught. Its files don't stay.
+        if (manifest != null) {
+            try {
+                manifest.record(r.iteration, r.crc);
+            } catch (RuntimeException re) {
+                discard(r);
+                throw re;
+            }
+        }
+
+        GeneratorMetrics.Span span = GeneratorMetrics.start(metrics,
+                GeneratorMetrics.Phase.WRITE, r.iteration);
+        save(r);
+        span.end(r.instructions);
+
+        if (echo) {
+            // Hold the console so tests from other threads don't interleave.
+            synchronized (System.out) {
+                echo(r);
+            }
+        }
+    }
+
+    private void save(Rendered r) {
+        if (r.files != null) {
+            System.out.println(r.files[PackWriter.ASM].getAbsolutePath());
+            return;
+        }
+
+        try {
+            for (int kind = 0; kind < PackWriter.KINDS; kind++) {
+                if (r.packed[kind] != null) {
+                    pack.append(r.iteration, kind, r.packed[kind], r
+                            .lengths[kind]);
+                }
+            }
+        } catch (IOException ioe) {
+            System.err.println(ioe.getLocalizedMessage());
+            throw new RuntimeException("Couldn't add iteration " + r
+                    .iteration + " to " + pack.getFile());
+        }
+    }
+
+    /**
+     * Copy a stored test to the console, from its file or its pack entry.
+     */
+    private static void echo(Rendered r) {
+        try {
+            InputStream in = r.files != null ? new FileInputStream(r
+                    .files[PackWriter.ASM]) : new InflaterInputStream(new
+                    ByteArrayInputStream(r.packed[PackWriter.ASM]));
+            try {
+                byte[] buffer = new byte[1 << 13];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    System.out.write(buffer, 0, n);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException ioe) {
+            System.err.println(ioe.getLocalizedMessage());
+            throw new RuntimeException("Couldn't echo iteration " + r
+                    .iteration + ".");
+        }
+        System.out.flush();
+    }
+
+    /**
+     * Stream the header and the program listing for one test to out.
+     *
+     * @param out       Where to write the test.
+     * @param iteration Which iteration this is.
+     * @param program   The finished program from generate().
+     * @throws IOException If out can't be written to.
+     */
+    public void writeTest(Writer out, int iteration, Program program) throws
+            IOException {
+        out.write("# Test Name: " + filename + " (iteration " + iteration
+                + ")\n# Seed: " + program.getSeed() + " (batch seed " + seed
+                + ")\n# Generated by " +
+                "TheFuzz v" + Main.VERSION + " written by Alex Kersten and " +
+                "Kenneth Siu for ECE552 (https://github.com/akersten/TheFuzz)\n" +
+                "# Spring 2015 Functionality Added by Sam Schwebach" +
+                "\n\n");
+        program.write(out, comments);
+    }
+
+    /**
+     * Generate and write iterations [0, iterations). Tests are generated
+     * and rendered on a pool of threads and written by this one, in
+     * iteration order (see Pipeline), so the output is the same however
+     * many threads there are. Coverage campaigns ignore threads and
+     * generate one test at a time anyway, though writing still overlaps
+     * with generating.
+     *
+     * @param iterations How many tests to generate.
+     * @param threads    How many generator threads to use.
+     */
+    public void run(int iterations, int threads) {
+        try {
+            new Pipeline(this, coverage != null ? 1 : Math.max(1, threads))
+                    .run(iterations);
+        } finally {
+            // The last family may not have been filled.
+            forgetFamilies();
+        }
+    }
+
+    /**
+     * Generate and write just some iterations, like run() would have.
+     *
+     * @param iterations Which ones, in the order to write them.
+     */
+    public void run(int[] iterations, int threads) {
+        // Each family's prefix is only forked by the members picked here, so
+        // count those, or it'd be kept waiting for the rest.
+        if (familySize > 1) {
+            synchronized (families) {
+                for (int iteration : iterations) {
+                    Family f = families.get(iteration / familySize);
+                    if (f == null) {
+                        f = new Family();
+                        families.put(iteration / familySize, f);
+                    }
+                    f.forksLeft++;
+                }
+            }
+        }
+
+        try {
+            new Pipeline(this, coverage != null ? 1 : Math.max(1, threads))
+                    .run(iterations);
+        } finally {
+            forgetFamilies();
+        }
+    }
+
+    /**
+     * Drop the prefixes of any families that weren't finished, after a run
+     * that stopped early or didn't take every member.
+     */
+    private void forgetFamilies() {
+        synchronized (families) {
+            families.clear();
+        }
+    }
+
+    /**
+     * @return Everything that decides what this generates and writes, as
+     * one line of key=value pairs for fromSettings(). The filename goes
+     * last and takes the rest of the line, so it can have spaces in it.
+     * Coverage campaigns can't be described this way, since each of their
+     * tests depends on the ones before it.
+     */
+    public String getSettings() {
+        if (coverage != null) {
+            throw new RuntimeException("Coverage campaigns can't be " +
+                    "regenerated test by test.");
+        }
+
+        StringBuilder ops = new StringBuilder();
+        for (IOpcode.Opcode o : opcodes) {
+            if (ops.length() > 0)
+                ops.append(',');
+            ops.append(o.name());
+        }
+
+        return "ops=" + ops + " length=" + testLength + " offset=" +
+                dataOffset + " seed=" + seed + " comments=" + comments +
+                " reuse=" + reuseRate + " pattern=" + allocator.getMode() +
+                " line-size=" + allocator.getLineSize() + " sets=" +
+                allocator.getSets() + " family=" + familySize + " prefix=" +
+                prefixLength + " image=" + (imageFormat == null ? "none" :
+                imageFormat.getExtension()) + " state=" + state + " json=" +
+                stateJson + " name=" + filename;
+    }
+
+    /**
+     * @return A generator set up exactly like the one getSettings() came
+     * from.
+     */
+    public static TestGenerator fromSettings(String settings) {
+        int name = settings.indexOf(" name=");
+        if (name < 0)
+            throw new RuntimeException("No name in: " + settings);
+
+        HashMap<String, String> args = new HashMap<String, String>();
+        for (String pair : settings.substring(0, name).trim().split("\\s+")) {
+            int eq = pair.indexOf('=');
+            if (eq <= 0)
+                throw new RuntimeException("Not key=value: " + pair);
+            args.put(pair.substring(0, eq), pair.substring(eq + 1));
+        }
+
+        try {
+            TestGenerator g = new TestGenerator(Arrays.asList(setting
+                    (args, "ops").split(",")), Integer.parseInt
+                    (setting(args, "length")), Integer.parseInt(setting(args,
+                    "offset")), settings.substring(name + 6), Long
+                    .parseLong(setting(args, "seed")));
+
+            g.setComments(Boolean.parseBoolean(setting(args, "comments")));
+            g.setReuseRate(Double.parseDouble(setting(args, "reuse")));
+            g.setAddressAllocator(AddressAllocator.parse(setting(args,
+                    "pattern"), Integer.parseInt(setting(args,
+                    "line-size")), Integer.parseInt(setting(args, "sets"))));
+
+            int family = Integer.parseInt(setting(args, "family"));
+            if (family > 1)
+                g.setFamily(family, Integer.parseInt(setting(args, "prefix")));
+
+            String image = setting(args, "image");
+            if (!image.equals("none"))
+                g.setImageFormat(Assembler.Format.valueOf(image.toUpperCase
+                        ()));
+
+            g.setState(Boolean.parseBoolean(setting(args, "state")), Boolean
+                    .parseBoolean(setting(args, "json")));
+            return g;
+        } catch (IllegalArgumentException iae) {
+            // Covers NumberFormatException too.
+            throw new RuntimeException("Bad setting: " + iae.getMessage());
+        }
+    }
+
+    private static String setting(HashMap<String, String> args, String key) {
+        String v = args.get(key);
+        if (v == null)
+            throw new RuntimeException("Missing setting: " + key);
+        return v;
+    }
+}
@@ -0,0 +1,105 @@
+package io.kersten.thefuzz;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A Writer that buffers text on its way to an OutputStream as UTF-8, for
+ * streaming a test to its file. Unlike a BufferedWriter, nothing here takes
+ * a lock, which matters when a listing is written a few characters at a
+ * time: every write to one of those takes one. Only a full buffer is handed
+ * on (to an OutputStreamWriter, which does the encoding), so the lock is
+ * only taken once per buffer.
+ *
+ * Only for use by one thread at a time.
+ */
+class TextBuffer extends Writer {
+
+    private final Writer out;
+
+    private final char[] chars;
+    private int count = 0;
+
+    TextBuffer(OutputStream out, int capacity) {
+        this.out = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        this.chars = new char[Math.max(16, capacity)];
+    }
+
+    /**
+     * Make room for more characters, handing the buffer on if they won't
+     * fit.
+     *
+     * @return False if there's no room even then, so they should be handed
+     * on directly.
+     */
+    private boolean ensure(int more) throws IOException {
+        if (count + more > chars.length)
+            drain();
+        return more <= chars.length;
+    }
+
+    private void drain() throws IOException {
+        out.write(chars, 0, count);
+        count = 0;
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        if (count == chars.length)
+            drain();
+        chars[count++] = (char) c;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        if (!ensure(len)) {
+            out.write(cbuf, off, len);
+            return;
+        }
+        System.arraycopy(cbuf, off, chars, count, len);
+        count += len;
+    }
+
+    @Override
+    public void write(String str) throws IOException {
+        write(str, 0, str.length());
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        if (!ensure(len)) {
+            out.write(str, off, len);
+            return;
+        }
+        str.getChars(off, off + len, chars, count);
+        count += len;
+    }
+
+    @Override
+    public Writer append(CharSequence csq) throws IOException {
+        if (csq instanceof String) {
+            write((String) csq);
+        } else {
+            int len = csq.length();
+            for (int i = 0; i < len; i++) {
+                write(csq.charAt(i));
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        drain();
+        out.close();
+    }
+}
@@ -0,0 +1,151 @@
+package io.kersten.thefuzz;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+class AddressAllocatorTest {
+
+    /**
+     * Make a store the way the generator would: ask for an address and mark
+     * it as written.
+     */
+    private static int store(AddressAllocator allocator, Program p) {
+        int addr = allocator.nextStore(p);
+        assertTrue(addr >= 0 && addr <= AddressAllocator.limit(p), "store " +
+                "to " + addr);
+        p.getMemory().setValid(addr);
+        return addr;
+    }
+
+    @Test
+    void strideWalksAndWraps() {
+        // 41 words of room, so the walk wraps a few times.
+        Program p = new Program(DataMemory.SIZE - 41, 3);
+        assertEquals(40, AddressAllocator.limit(p));
+        AddressAllocator stride = AddressAllocator.parse("stride:5", 8, 64);
+
+        List<Integer> firstStored = new ArrayList<Integer>();
+        int last = store(stride, p);
+        assertEquals(0, last % 8, "starts on a line");
+        firstStored.add(last);
+        for (int i = 0; i < 30; i++) {
+            int addr = store(stride, p);
+            assertEquals((last + 5) % 41, addr);
+            if (!firstStored.contains(addr))
+                firstStored.add(addr);
+            last = addr;
+        }
+
+        // Loads go over the stores in the order they were made, then start
+        // again.
+        for (int round = 0; round < 2; round++) {
+            for (int addr : firstStored) {
+                assertEquals(addr, stride.nextLoad(p));
+            }
+        }
+    }
+
+    @Test
+    void sequentialLoadsFollowStores() {
+        Program p = new Program(30000, 4);
+        AddressAllocator sequential = AddressAllocator.parse("sequential", 8,
+                64);
+
+        int first = store(sequential, p);
+        assertEquals(first, sequential.nextLoad(p));
+        for (int i = 1; i < 10; i++) {
+            assertEquals(first + i, store(sequential, p));
+            assertEquals(first + i, sequential.nextLoad(p));
+        }
+    }
+
+    @Test
+    void workingSetStaysInItsLines() {
+        Program p = new Program(30000, 5);
+        AddressAllocator set = AddressAllocator.parse("working-set:3", 8, 64);
+
+        HashSet<Integer> lines = new HashSet<Integer>();
+        for (int i = 0; i < 200; i++) {
+            lines.add(store(set, p) / 8);
+        }
+        assertTrue(lines.size() <= 3, lines.toString());
+
+        for (int i = 0; i < 200; i++) {
+            int addr = set.nextLoad(p);
+            assertTrue(p.getMemory().isValid(addr));
+            assertTrue(lines.contains(addr / 8), "load from " + addr);
+        }
+    }
+
+    @Test
+    void conflictStaysInOneSet() {
+        Program p = new Program(30000, 6);
+        AddressAllocator conflict = AddressAllocator.parse("conflict", 4, 16);
+
+        int set = store(conflict, p) / 4 % 16;
+        HashSet<Integer> lines = new HashSet<Integer>();
+        for (int i = 0; i < 200; i++) {
+            int line = store(conflict, p) / 4;
+            assertEquals(set, line % 16);
+            lines.add(line);
+        }
+        // It isn't just one line over and over.
+        assertTrue(lines.size() > 10, lines.toString());
+
+        for (int i = 0; i < 200; i++) {
+            int addr = conflict.nextLoad(p);
+            assertTrue(p.getMemory().isValid(addr));
+            assertEquals(set, addr / 4 % 16, "load from " + addr);
+        }
+    }
+
+    @Test
+    void copiesCarryOnFromTheSamePlace() {
+        Program p = new Program(30000, 7);
+        AddressAllocator stride = AddressAllocator.parse("stride:3", 8, 64);
+        int addr = store(stride, p);
+
+        AddressAllocator copy = stride.copy();
+        assertEquals(addr + 3, copy.nextStore(p));
+        assertEquals(addr + 3, stride.nextStore(p));
+        assertEquals("stride:3", copy.getMode());
+    }
+
+    @Test
+    void randomKeepsTheGeometry() {
+        AddressAllocator random = AddressAllocator.parse("random", 16, 32);
+        assertTrue(random.isRandom());
+        assertEquals(16, random.getLineSize());
+        assertEquals(32, random.getSets());
+        assertTrue(AddressAllocator.RANDOM.isRandom());
+    }
+
+    @Test
+    void badModesAreRejected() {
+        String[] modes = {"stride:0", "stride", "stride:x", "sequential:2",
+                "working-set", "zigzag"};
+        for (String mode : modes) {
+            try {
+                AddressAllocator.parse(mode, 8, 64);
+                fail(mode + " was taken.");
+            } catch (RuntimeException re) {
+                assertTrue(re.getMessage().contains(mode), re.getMessage());
+            }
+        }
+
+        try {
+            AddressAllocator.parse("random", 0, 64);
+            fail("A line size of 0 was taken.");
+        } catch (RuntimeException re) {
+            assertEquals("The line size and number of sets have to be " +
+                    "positive.", re.getMessage());
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package io.kersten.thefuzz;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The ALU's quirks are what the processors being tested are built to, so
+ * they're pinned down here as they are, not as they'd be on a real machine.
+ */
+class AluTest {
+
+    private static final int MAX = Short.MAX_VALUE;
+    private static final int MIN = Short.MIN_VALUE;
+
+    private static void assertOutcome(int result, int flags, int outcome) {
+        assertEquals((short) result, Alu.result(outcome));
+        assertEquals(flags, Alu.flags(outcome));
+    }
+
+    @Test
+    void addSaturatesOnlyOnPositiveOverflow() {
+        assertOutcome(5, 0, Alu.add(2, 3));
+        assertOutcome(0, Alu.FLAG_Z, Alu.add(7, -7));
+        assertOutcome(-1, Alu.FLAG_N, Alu.add(2, -3));
+        assertOutcome(MAX, Alu.FLAG_V, Alu.add(MAX, 1));
+        assertOutcome(MAX, Alu.FLAG_V, Alu.add(MAX, MAX));
+
+        // Negative overflow just wraps, and the flags come from the result
+        // before it was cut down to 16 bits.
+        assertOutcome(0, Alu.FLAG_N, Alu.add(MIN, MIN));
+        assertOutcome(MAX, Alu.FLAG_N, Alu.add(MIN, -1));
+    }
+
+    @Test
+    void subSaturatesOnlyOnNegativeOverflow() {
+        assertOutcome(-1, Alu.FLAG_N, Alu.sub(2, 3));
+        assertOutcome(0, Alu.FLAG_Z, Alu.sub(9, 9));
+        assertOutcome(MIN, Alu.FLAG_N | Alu.FLAG_V, Alu.sub(MIN, 1));
+        assertOutcome(MIN, Alu.FLAG_N | Alu.FLAG_V, Alu.sub(MIN, MAX));
+
+        // Positive overflow wraps.
+        assertOutcome(-1, 0, Alu.sub(MAX, MIN));
+        assertOutcome(MIN, 0, Alu.sub(MAX, -1));
+    }
+
+    @Test
+    void logicAndShiftsOnlySetZero() {
+        assertOutcome(-1, 0, Alu.nand(0, 0));
+        assertOutcome(0, Alu.FLAG_Z, Alu.nand(-1, -1));
+        assertOutcome(0x0FF0, 0, Alu.xor(0x0F0F, 0x00FF));
+        assertOutcome(0, Alu.FLAG_Z, Alu.xor(1234, 1234));
+
+        assertOutcome(0x1230, 0, Alu.sll(0x0123, 4));
+        assertOutcome(MIN, 0, Alu.sll(1, 15));
+        assertOutcome(0, Alu.FLAG_Z, Alu.sll(0, 3));
+        // Z comes from the result before it's cut down to 16 bits too.
+        assertOutcome(0, 0, Alu.sll(2, 15));
+
+        // Both right shifts sign-extend a negative register.
+        assertOutcome(-4, 0, Alu.srl(-16, 2));
+        assertOutcome(0x40, 0, Alu.srl(0x100, 2));
+        assertOutcome(-4, 0, Alu.sra(-16, 2));
+        assertOutcome(0, Alu.FLAG_Z, Alu.sra(1, 1));
+    }
+
+    @Test
+    void applyMatchesTheOperations() {
+        assertEquals(Alu.add(MAX, 3), Alu.apply(IOpcode.Opcode.ADD, MAX, 3));
+        assertEquals(Alu.sub(MIN, 3), Alu.apply(IOpcode.Opcode.SUB, MIN, 3));
+        assertEquals(Alu.sra(-5, 1), Alu.apply(IOpcode.Opcode.SRA, -5, 1));
+    }
+
+    @Test
+    void conditions() {
+        int none = 0;
+        int z = Alu.FLAG_Z;
+        int n = Alu.FLAG_N;
+        int v = Alu.FLAG_V;
+
+        assertTrue(Alu.conditionHolds(Condition.NEQ, n | v));
+        assertFalse(Alu.conditionHolds(Condition.NEQ, z));
+        assertTrue(Alu.conditionHolds(Condition.EQ, z | n));
+        assertTrue(Alu.conditionHolds(Condition.GT, none));
+        assertFalse(Alu.conditionHolds(Condition.GT, z));
+        assertFalse(Alu.conditionHolds(Condition.GT, n));
+        assertTrue(Alu.conditionHolds(Condition.LT, n));
+        assertFalse(Alu.conditionHolds(Condition.LT, z | v));
+        assertTrue(Alu.conditionHolds(Condition.GTE, z));
+        assertFalse(Alu.conditionHolds(Condition.GTE, n));
+        assertTrue(Alu.conditionHolds(Condition.LTE, z));
+        assertTrue(Alu.conditionHolds(Condition.LTE, n));
+        assertFalse(Alu.conditionHolds(Condition.LTE, v));
+        assertTrue(Alu.conditionHolds(Condition.OVFL, v));
+        assertFalse(Alu.conditionHolds(Condition.OVFL, z | n));
+        assertTrue(Alu.conditionHolds(Condition.UNCOND, none));
+    }
+}
@@ -0,0 +1,153 @@
+package io.kersten.thefuzz;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+class AssemblerTest {
+
+    private static Program program(int dataOffset, String... lines) throws
+            IOException {
+        StringBuilder asm = new StringBuilder();
+        for (String line : lines) {
+            asm.append(line).append('\n');
+        }
+
+        AsmParser parsed = AsmParser.parse(new StringReader(asm.toString()),
+                "test");
+        return Program.replay(parsed.getInstructions(), parsed.getLabels(),
+                dataOffset);
+    }
+
+    private static String image(Program p, Assembler.Format format) throws
+            IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assembler.write(p, format, out);
+        return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    void oneOfEachInstructionFormat() throws IOException {
+        Program p = program(0,
+                "  ADD R3, R4, R5",
+                "  SUB R15, R1, R2",
+                "  NAND R0, R14, R7",
+                "  XOR R1, R2, R3",
+                "  SRA R2, R3, 7",
+                "  SRL R9, R8, 0",
+                "  SLL R1, R2, 7",
+                "  LW R6, R7, -1",
+                "  SW R6, R7, 5",
+                "  LHB R1, -1",
+                "  LLB R2, 200",
+                "here:",
+                "  B EQ, next",
+                "next:",
+                "  B UNCOND, here",
+                "  HLT");
+
+        short[] expected = {
+                0x0345, 0x1F12, 0x20E7, 0x3123,
+                0x5237, 0x6980, 0x7127,
+                (short) 0x867F, (short) 0x9675,
+                (short) 0xA1FF, (short) 0xB2C8,
+                // Offsets are from the instruction after the branch.
+                (short) 0xC200, (short) 0xCFFE,
+                (short) 0xF000
+        };
+        assertArrayEquals(expected, Assembler.assemble(p));
+    }
+
+    /**
+     * Encode a branch at pc to a label at target.
+     */
+    private static short branch(Condition cond, int pc, int target) {
+        LabelTable labels = new LabelTable();
+        int label = labels.intern("far");
+        return Assembler.encode(Instruction.branch(cond, label), pc, new
+                int[]{target}, labels);
+    }
+
+    @Test
+    void branchOffsetsReachBothWays() {
+        assertEquals((short) 0xC0FF, branch(Condition.NEQ, 0, 256));
+        assertEquals((short) 0xC500, branch(Condition.GT, 300, 45));
+        assertEquals((short) 0xCC01, branch(Condition.OVFL, 1000, 1002));
+    }
+
+    @Test
+    void branchesOutOfRangeAreRejected() {
+        int[][] tooFar = {{0, 257}, {300, 44}};
+        for (int[] b : tooFar) {
+            try {
+                branch(Condition.UNCOND, b[0], b[1]);
+                fail("Branch from " + b[0] + " to " + b[1] + " was encoded.");
+            } catch (RuntimeException re) {
+                assertTrue(re.getMessage().contains("out of range"), re
+                        .getMessage());
+            }
+        }
+    }
+
+    @Test
+    void intelHex() throws IOException {
+        Program p = program(16,
+                "  LLB R1, 7",
+                "  SW R1, R0, 3",
+                "  HLT");
+
+        assertEquals(":020000040000FA\n" +
+                ":06000000B1079103F000BE\n" +
+                ":020026000000D8\n" +
+                ":00000001FF\n", image(p, Assembler.Format.HEX));
+    }
+
+    @Test
+    void intelHexAboveTheFirst64K() throws IOException {
+        // Word 40003 is byte 0x13886, which needs an extended address.
+        String hex = image(program(40000,
+                "  LLB R1, 7",
+                "  SW R1, R0, 3",
+                "  HLT"), Assembler.Format.HEX);
+        assertTrue(hex.contains(":020000040001F9\n:02388600000040\n"), hex);
+
+        // Every record adds up to zero.
+        for (String record : hex.split("\n")) {
+            int sum = 0;
+            for (int i = 1; i < record.length(); i += 2) {
+                sum += Integer.parseInt(record.substring(i, i + 2), 16);
+            }
+            assertEquals(0, sum & 0xFF, record);
+        }
+    }
+
+    @Test
+    void readmemhAndBinary() throws IOException {
+        Program p = program(16,
+                "  LLB R1, 7",
+                "  SW R1, R0, 3",
+                "  SW R1, R0, 4",
+                "  HLT");
+
+        assertEquals("// Program\n@0000\nB107\n9103\n9104\nF000\n" +
+                "// Data segment\n@0013\n0000\n0000\n", image(p, Assembler
+                .Format.MEMH));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assembler.write(p, Assembler.Format.BIN, out);
+        ByteBuffer words = ByteBuffer.wrap(out.toByteArray());
+        assertEquals(2 * 21, words.remaining());
+        assertEquals((short) 0xB107, words.getShort(0));
+        assertEquals((short) 0xF000, words.getShort(6));
+        assertEquals(0, words.getShort(2 * 20));
+    }
+}
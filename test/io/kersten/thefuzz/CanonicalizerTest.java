@@ -0,0 +1,83 @@
+package io.kersten.thefuzz;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class CanonicalizerTest {
+
+    private final Canonicalizer canonicalizer = new Canonicalizer();
+
+    private long hash(String... lines) throws IOException {
+        StringBuilder asm = new StringBuilder();
+        for (String line : lines) {
+            asm.append(line).append('\n');
+        }
+
+        return canonicalizer.hash(AsmParser.parse(new StringReader(asm
+                .toString()), "test").getInstructions());
+    }
+
+    @Test
+    void registerNamesDontMatter() throws IOException {
+        assertEquals(hash(
+                "  LLB R4, 10",
+                "  ADD R3, R4, R5",
+                "  SW R3, R4, 2",
+                "  LW R5, R4, 2",
+                "  HLT"), hash(
+                "  LLB R1, 10",
+                "  ADD R7, R1, R9",
+                "  SW R7, R1, 2",
+                "  LW R9, R1, 2",
+                "  HLT"));
+    }
+
+    @Test
+    void labelNamesDontMatter() throws IOException {
+        assertEquals(hash(
+                "  SUB R1, R2, R2",
+                "  B EQ, taken1",
+                "  HLT",
+                "taken1:",
+                "  HLT"), hash(
+                "  SUB R6, R2, R2",
+                "  B EQ, taken17",
+                "  HLT",
+                "taken17:",
+                "  HLT"));
+    }
+
+    @Test
+    void notesDontMatter() {
+        int lw = Instruction.make(IOpcode.Opcode.LW, 1, 2, 3);
+        InstructionStream plain = new InstructionStream();
+        plain.add(lw);
+        InstructionStream noted = new InstructionStream();
+        noted.add(Instruction.withNote(lw, Instruction.NOTE_LW_ADDRESS));
+
+        assertEquals(canonicalizer.hash(plain), canonicalizer.hash(noted));
+    }
+
+    @Test
+    void differentProgramsHashDifferently() throws IOException {
+        long add = hash("  ADD R1, R2, R3", "  HLT");
+
+        // Another opcode, immediate, condition or shape of register use.
+        assertNotEquals(add, hash("  SUB R1, R2, R3", "  HLT"));
+        assertNotEquals(add, hash("  ADD R1, R2, R2", "  HLT"));
+        assertNotEquals(add, hash("  ADD R1, R2, R1", "  HLT"));
+        assertNotEquals(add, hash("  ADD R1, R2, R3", "  HLT", "  HLT"));
+        assertNotEquals(hash("  LLB R1, 4", "  HLT"), hash("  LLB R1, 5",
+                "  HLT"));
+        assertNotEquals(hash("x:", "  B EQ, x", "  HLT"), hash("x:",
+                "  B NEQ, x", "  HLT"));
+
+        // R0 is always zero, so it's not just another register.
+        assertNotEquals(add, hash("  ADD R1, R0, R3", "  HLT"));
+    }
+}
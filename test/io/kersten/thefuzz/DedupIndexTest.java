@@ -0,0 +1,129 @@
+package io.kersten.thefuzz;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+class DedupIndexTest {
+
+    @TempDir
+    File dir;
+
+    /**
+     * @return The hashes in an index file, checking its header.
+     */
+    private static long[] hashes(File f) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(f));
+        try {
+            assertEquals(0x46555A5A44555031L, in.readLong());
+            long[] hashes = new long[(int) in.readLong()];
+            for (int i = 0; i < hashes.length; i++) {
+                hashes[i] = in.readLong();
+            }
+            assertEquals(-1, in.read());
+            return hashes;
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    void hashesSurviveReopening() throws IOException {
+        File f = new File(dir, "t.idx");
+
+        DedupIndex index = new DedupIndex(f);
+        assertTrue(index.add(5));
+        assertTrue(index.add(-3));
+        assertTrue(index.add(0));
+        assertFalse(index.add(5));
+        assertEquals(3, index.size());
+        index.close();
+        assertArrayEquals(new long[]{-3, 0, 5}, hashes(f));
+
+        // Merged into what's already there, in order.
+        index = new DedupIndex(f);
+        assertEquals(3, index.size());
+        assertEquals(0, index.getAddedCount());
+        assertTrue(index.contains(-3));
+        assertTrue(index.contains(0));
+        assertFalse(index.contains(7));
+        assertFalse(index.add(5));
+        assertTrue(index.add(Long.MAX_VALUE));
+        assertTrue(index.add(1));
+        assertTrue(index.add(-100));
+        index.close();
+        assertArrayEquals(new long[]{-100, -3, 0, 1, 5, Long.MAX_VALUE},
+                hashes(f));
+
+        index = new DedupIndex(f);
+        for (long h : new long[]{-100, -3, 0, 1, 5, Long.MAX_VALUE}) {
+            assertTrue(index.contains(h), Long.toString(h));
+        }
+        assertFalse(index.contains(2));
+        index.close();
+    }
+
+    @Test
+    void zeroIsKeptApart() throws IOException {
+        // 0 marks an empty slot in the table, so it has a flag of its own.
+        DedupIndex index = new DedupIndex(new File(dir, "t.idx"));
+        assertFalse(index.contains(0));
+        assertTrue(index.add(0));
+        assertTrue(index.contains(0));
+        assertFalse(index.add(0));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    void manyHashes() throws IOException {
+        File f = new File(dir, "t.idx");
+        DedupIndex index = new DedupIndex(f);
+        for (long h = 1; h <= 5000; h++) {
+            assertTrue(index.add(h * 0x9E3779B97F4A7C15L));
+        }
+        for (long h = 1; h <= 5000; h++) {
+            assertFalse(index.add(h * 0x9E3779B97F4A7C15L));
+        }
+        assertEquals(5000, index.getAddedCount());
+        index.close();
+
+        long[] hashes = hashes(f);
+        assertEquals(5000, hashes.length);
+        for (int i = 1; i < hashes.length; i++) {
+            assertTrue(hashes[i - 1] < hashes[i]);
+        }
+    }
+
+    @Test
+    void nothingAddedLeavesNoFile() throws IOException {
+        File f = new File(dir, "t.idx");
+        new DedupIndex(f).close();
+        assertFalse(f.exists());
+    }
+
+    @Test
+    void somethingElseIsRejected() throws IOException {
+        File f = new File(dir, "t.idx");
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(new byte[24]);
+        out.close();
+
+        try {
+            new DedupIndex(f);
+            fail("Something that isn't an index was opened.");
+        } catch (RuntimeException re) {
+            assertEquals(f + " isn't a dedup index.", re.getMessage());
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package io.kersten.thefuzz;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DumpCheckerTest {
+
+    private static final int OFFSET = 30000;
+
+    @TempDir
+    File dir;
+
+    private String testName;
+
+    private FinalState expected;
+
+    @BeforeEach
+    void writeTest() throws IOException {
+        testName = new File(dir, "t").getPath();
+
+        expected = new FinalState();
+        expected.setRegister(2, (short) 5);
+        expected.setRegister(9, (short) -3);
+        expected.setFlags(Alu.FLAG_Z);
+        expected.addMemory(0, (short) 7);
+        expected.addMemory(100, (short) -100);
+
+        FileOutputStream out = new FileOutputStream(testName + "_0.state");
+        try {
+            expected.write(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Dump the expected state, the way a simulator would.
+     *
+     * @param flags The flags word to add after the registers, or -1 for
+     *              none.
+     * @param words How many register words to write at most.
+     */
+    private void dump(int flags, int words) throws IOException {
+        DataOutputStream mem = new DataOutputStream(new FileOutputStream
+                (testName + "_0.mem"));
+        try {
+            for (int addr = 0; addr < DataMemory.SIZE; addr++) {
+                int i = addr - OFFSET;
+                mem.writeShort(i == 0 ? 7 : i == 100 ? -100 : 0);
+            }
+        } finally {
+            mem.close();
+        }
+
+        DataOutputStream regs = new DataOutputStream(new FileOutputStream
+                (testName + "_0.regs"));
+        try {
+            for (int r = 0; r < Math.min(16, words); r++) {
+                regs.writeShort(expected.isRegisterValid(r) ? expected
+                        .getRegister(r) : 0x5555);
+            }
+            if (flags >= 0)
+                regs.writeShort(flags);
+        } finally {
+            regs.close();
+        }
+    }
+
+    private String check() throws IOException {
+        return check(OFFSET);
+    }
+
+    private String check(int offset) throws IOException {
+        File report = new File(dir, "report.txt");
+        int mismatches = new DumpChecker(testName, null, offset, 1).run(2,
+                report);
+        String text = new String(Files.readAllBytes(report.toPath()));
+        assertTrue(text.endsWith(mismatches + " of 1 tests didn't match.\n"),
+                text);
+        return text;
+    }
+
+    @Test
+    void registersWithoutFlags() throws IOException {
+        dump(-1, 16);
+        assertEquals("0 of 1 tests didn't match.\n", check());
+    }
+
+    @Test
+    void registersWithFlags() throws IOException {
+        dump(Alu.FLAG_Z, 16);
+        assertEquals("0 of 1 tests didn't match.\n", check());
+    }
+
+    @Test
+    void wrongFlagsAreCaught() throws IOException {
+        dump(Alu.FLAG_N, 16);
+        String report = check();
+        assertTrue(report.startsWith("MISMATCH "), report);
+        assertTrue(report.endsWith("1 of 1 tests didn't match.\n"), report);
+    }
+
+    @Test
+    void wrongMemoryIsCaught() throws IOException {
+        dump(-1, 16);
+        RandomAccessFile raf = new RandomAccessFile(testName + "_0.mem",
+                "rw");
+        try {
+            raf.seek(2L * (OFFSET + 100));
+            raf.writeShort(100);
+        } finally {
+            raf.close();
+        }
+
+        String report = check();
+        assertTrue(report.contains("mem[100]"), report);
+    }
+
+    @Test
+    void dataOffsetIsApplied() throws IOException {
+        // The dump has the data at OFFSET, so at 0 it's all wrong.
+        dump(-1, 16);
+        String report = check(0);
+        assertTrue(report.contains("mem[0]"), report);
+        assertTrue(report.endsWith("1 of 1 tests didn't match.\n"), report);
+    }
+
+    @Test
+    void wrongSizeRegistersAreReported() throws IOException {
+        dump(-1, 15);
+        String report = check();
+        assertTrue(report.contains("_0.regs is 30 bytes, expected 32 or 34."),
+                report);
+    }
+
+    @Test
+    void missingDumpIsReported() throws IOException {
+        String report = check();
+        assertTrue(report.contains("No dump at " + testName + "_0.mem"),
+                report);
+    }
+}
@@ -0,0 +1,82 @@
+package io.kersten.thefuzz;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+class FinalStateTest {
+
+    private static FinalState sample() {
+        FinalState s = new FinalState();
+        s.setRegister(3, (short) 12);
+        s.setRegister(7, (short) -7);
+        s.setFlags(Alu.FLAG_N | Alu.FLAG_V);
+        s.addMemory(40, (short) -1);
+        s.addMemory(65535, (short) 0x1234);
+        return s;
+    }
+
+    @Test
+    void recordRoundTrips() {
+        FinalState written = sample();
+        ByteBuffer in = ByteBuffer.wrap(written.toBytes());
+        FinalState read = FinalState.read(in);
+
+        assertFalse(in.hasRemaining());
+        assertTrue(written.diff(read, true).isEmpty(), written.diff(read,
+                true).toString());
+        assertTrue(read.isRegisterValid(3));
+        assertFalse(read.isRegisterValid(4));
+        assertEquals(Alu.FLAG_N | Alu.FLAG_V, read.getFlags());
+        assertEquals(65535, read.getAddress(1));
+        assertEquals(0x1234, read.getValue(1));
+    }
+
+    @Test
+    void recordsReadOneAfterAnother() {
+        byte[] one = sample().toBytes();
+        byte[] two = new FinalState().toBytes();
+        ByteBuffer in = ByteBuffer.allocate(one.length + two.length);
+        in.put(one).put(two).flip();
+
+        assertEquals(2, FinalState.read(in).getMemoryCount());
+        assertEquals(0, FinalState.read(in).getMemoryCount());
+        assertFalse(in.hasRemaining());
+    }
+
+    @Test
+    void cutShortRecordIsRejected() {
+        byte[] record = sample().toBytes();
+        byte[] cut = Arrays.copyOf(record, record.length - 1);
+
+        try {
+            FinalState.read(ByteBuffer.wrap(cut));
+            fail("A cut short record was read.");
+        } catch (RuntimeException re) {
+            assertEquals("Expected state record is cut short.", re
+                    .getMessage());
+        }
+    }
+
+    @Test
+    void somethingElseIsRejected() {
+        byte[] record = sample().toBytes();
+        record[0] ^= 1;
+
+        for (byte[] b : new byte[][]{record, new byte[FinalState.HEADER -
+                1]}) {
+            try {
+                FinalState.read(ByteBuffer.wrap(b));
+                fail("Something that isn't a record was read.");
+            } catch (RuntimeException re) {
+                assertEquals("Not an expected state record.", re.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package io.kersten.thefuzz;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InterpreterTest {
+
+    private final Interpreter interpreter = new Interpreter();
+
+    private Interpreter.Outcome run(String... lines) throws IOException {
+        StringBuilder asm = new StringBuilder();
+        for (String line : lines) {
+            asm.append(line).append('\n');
+        }
+
+        AsmParser parsed = AsmParser.parse(new StringReader(asm.toString()),
+                "test");
+        interpreter.load(parsed.getInstructions(), parsed.getLabels());
+        return interpreter.run();
+    }
+
+    private void assertRegister(int r, int value) {
+        assertTrue(interpreter.isRegisterValid(r), "R" + r + " is valid");
+        assertEquals((short) value, interpreter.getRegister(r), "R" + r);
+    }
+
+    @Test
+    void addAndSubSaturateOneWayEach() throws IOException {
+        assertEquals(Interpreter.Outcome.HALTED, run(
+                "  LLB R1, 255",
+                "  LHB R1, 127",
+                "  LLB R4, 0",
+                "  LHB R4, -128",
+                "  LLB R2, 1",
+                "  ADD R3, R1, R2",
+                "  ADD R5, R4, R4",
+                "  SUB R7, R1, R4",
+                "  SUB R6, R4, R2",
+                "  HLT"));
+
+        assertRegister(1, Short.MAX_VALUE);
+        assertRegister(4, Short.MIN_VALUE);
+        assertRegister(3, Short.MAX_VALUE);
+        assertRegister(5, 0);
+        assertRegister(7, -1);
+        assertRegister(6, Short.MIN_VALUE);
+        assertEquals(Alu.FLAG_N | Alu.FLAG_V, interpreter.getFlags());
+        assertFalse(interpreter.isRegisterValid(8));
+    }
+
+    @Test
+    void logicAndShiftsOnlyTouchZero() throws IOException {
+        assertEquals(Interpreter.Outcome.HALTED, run(
+                "  LLB R1, 240",
+                "  LHB R1, -1",
+                "  SLL R2, R1, 4",
+                "  SRL R3, R1, 2",
+                "  SRA R4, R1, 2",
+                "  NAND R5, R1, R1",
+                "  XOR R6, R5, R1",
+                "  SUB R7, R0, R5",
+                "  SLL R8, R0, 3",
+                "  HLT"));
+
+        assertRegister(1, -16);
+        assertRegister(2, -256);
+        assertRegister(3, -4);
+        assertRegister(4, -4);
+        assertRegister(5, 15);
+        assertRegister(6, -1);
+        assertRegister(7, -15);
+        assertRegister(8, 0);
+        // SUB set N, and the SLL after it only set Z.
+        assertEquals(Alu.FLAG_Z | Alu.FLAG_N, interpreter.getFlags());
+    }
+
+    @Test
+    void loadsAndStores() throws IOException {
+        assertEquals(Interpreter.Outcome.HALTED, run(
+                "  LLB R1, 100",
+                "  LLB R2, 52",
+                "  LHB R2, 18",
+                "  SW R2, R1, 3",
+                "  SW R2, R1, -4",
+                "  LW R3, R1, 3",
+                "  LW R4, R1, 5",
+                "  ADD R0, R2, R2",
+                "  HLT"));
+
+        assertRegister(2, 0x1234);
+        assertRegister(3, 0x1234);
+        assertRegister(4, 0);
+        assertRegister(0, 0);
+        assertEquals(0x1234, interpreter.readMemory(103));
+        assertTrue(interpreter.isStored(96));
+        assertFalse(interpreter.isStored(105));
+
+        FinalState state = interpreter.getFinalState();
+        assertEquals(2, state.getMemoryCount());
+        assertEquals(96, state.getAddress(0));
+        assertEquals(103, state.getAddress(1));
+    }
+
+    @Test
+    void branchesFollowTheFlags() throws IOException {
+        assertEquals(Interpreter.Outcome.HALTED, run(
+                "  LLB R1, 1",
+                "  SUB R2, R1, R1",
+                "  B EQ, taken1",
+                "  LLB R3, 9",
+                "taken1:",
+                "  B NEQ, fail1",
+                "  LLB R4, 5",
+                "  B UNCOND, done",
+                "fail1:",
+                "  HLT",
+                "done:",
+                "  HLT"));
+
+        assertFalse(interpreter.isRegisterValid(3));
+        assertRegister(4, 5);
+        assertEquals(7, interpreter.getSteps());
+    }
+
+    @Test
+    void takenBranchToAFailureLabelIsWrong() throws IOException {
+        String[] targets = {"fail3", "nottaken"};
+        for (String target : targets) {
+            assertEquals(Interpreter.Outcome.WRONG_BRANCH, run(
+                    "  SUB R1, R0, R0",
+                    "  B EQ, " + target,
+                    "  HLT",
+                    target + ":",
+                    "  HLT"), target);
+
+            // It stops on the branch.
+            assertEquals(1, interpreter.getStoppedAt());
+            assertFalse(interpreter.compare(interpreter.getFinalState())
+                    .isEmpty());
+        }
+    }
+
+    @Test
+    void otherEndings() throws IOException {
+        assertEquals(Interpreter.Outcome.FAIL_PATH, run(
+                "  LLB R1, 1",
+                "  HLT",
+                "  HLT"));
+        assertEquals(1, interpreter.getStoppedAt());
+
+        assertEquals(Interpreter.Outcome.RAN_OFF_END, run(
+                "  LLB R1, 1"));
+
+        interpreter.setStepLimit(2);
+        assertEquals(Interpreter.Outcome.STEP_LIMIT, run(
+                "  LLB R1, 1",
+                "  LLB R2, 2",
+                "  HLT"));
+    }
+
+    @Test
+    void runsAgainFromScratch() throws IOException {
+        run("  LLB R1, 7",
+                "  SW R1, R1, 0",
+                "  HLT");
+        assertTrue(interpreter.isStored(7));
+
+        run("  HLT");
+        assertFalse(interpreter.isStored(7));
+        assertEquals(0, interpreter.readMemory(7));
+        assertFalse(interpreter.isRegisterValid(1));
+    }
+}
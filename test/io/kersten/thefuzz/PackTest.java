@@ -0,0 +1,101 @@
+package io.kersten.thefuzz;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+class PackTest {
+
+    @TempDir
+    File dir;
+
+    private static byte[] text(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void entriesRoundTrip() throws Exception {
+        File f = new File(dir, "t.pack");
+        byte[] asm = text("  ADD R1, R0, R0\n  HLT\n");
+        byte[] image = new byte[4096];
+        image[1] = 0x42;
+        byte[] json = text("{}\n");
+
+        PackWriter pack = new PackWriter(f, Assembler.Format.BIN);
+        // Out of order, and one of them compressed as it's written.
+        pack.add(3, PackWriter.ASM, asm);
+        pack.add(1, PackWriter.IMAGE, image);
+        PackWriter.Deflating streamed = pack.deflating();
+        streamed.write(json, 0, 1);
+        streamed.write(json, 1, json.length - 1);
+        streamed.close();
+        pack.append(1, PackWriter.STATE_JSON, streamed.toByteArray(), streamed
+                .getLength());
+        pack.add(1, PackWriter.ASM, new byte[0]);
+        assertEquals(2, pack.getTestCount());
+        pack.close();
+
+        PackReader in = new PackReader(f);
+        try {
+            assertEquals(Assembler.Format.BIN, in.getImageFormat());
+            assertEquals(4, in.size());
+            assertEquals(1, in.getIteration(0));
+            assertEquals(PackWriter.ASM, in.getKind(0));
+
+            assertArrayEquals(asm, in.read(3, PackWriter.ASM));
+            assertArrayEquals(image, in.read(1, PackWriter.IMAGE));
+            assertArrayEquals(json, in.read(1, PackWriter.STATE_JSON));
+            assertArrayEquals(new byte[0], in.read(1, PackWriter.ASM));
+            assertNull(in.read(2, PackWriter.ASM));
+            assertNull(in.read(3, PackWriter.IMAGE));
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    void sameEntryTwiceIsRejected() throws Exception {
+        PackWriter pack = new PackWriter(new File(dir, "t.pack"), null);
+        try {
+            pack.add(0, PackWriter.ASM, text("a"));
+            try {
+                pack.add(0, PackWriter.ASM, text("b"));
+                fail("The same entry went in twice.");
+            } catch (RuntimeException re) {
+                assertTrue(re.getMessage().contains("already in"));
+            }
+        } finally {
+            pack.close();
+        }
+    }
+
+    @Test
+    void unfinishedPackIsRejected() throws Exception {
+        File f = new File(dir, "t.pack");
+        PackWriter pack = new PackWriter(f, null);
+        pack.add(0, PackWriter.ASM, text("  HLT\n"));
+        pack.close();
+
+        // Lose the end of the trailer.
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        raf.setLength(raf.length() - 1);
+        raf.close();
+
+        try {
+            new PackReader(f).close();
+            fail("An unfinished pack was read.");
+        } catch (RuntimeException re) {
+            assertEquals(f + " isn't a pack, or was never closed.", re
+                    .getMessage());
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package io.kersten.thefuzz;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+class PipelineTest {
+
+    private static final int THREADS = 4;
+
+    @TempDir
+    File dir;
+
+    private TestGenerator generator() {
+        return new TestGenerator(Arrays.asList("ADD", "SUB", "LW", "SW",
+                "LLB", "B"), 40, 30000, new File(dir, "t").getPath(), 5);
+    }
+
+    /**
+     * A pipeline that notes down the order iterations are stored in, and
+     * the highest one produced.
+     */
+    private static class Recording extends Pipeline {
+        final List<Integer> stored = new ArrayList<Integer>();
+        private int highest = -1;
+
+        // Hold up storing after this iteration, so the generators get ahead.
+        int stallAfter = -1;
+
+        Recording(TestGenerator generator) {
+            super(generator, THREADS);
+        }
+
+        @Override
+        protected TestGenerator.Rendered produce(int iteration) {
+            TestGenerator.Rendered r = super.produce(iteration);
+            synchronized (this) {
+                highest = Math.max(highest, iteration);
+            }
+            return r;
+        }
+
+        synchronized int getHighest() {
+            return highest;
+        }
+
+        @Override
+        protected void stored(TestGenerator.Rendered r) {
+            stored.add(r.iteration);
+            if (r.iteration == stallAfter) {
+                try {
+                    Thread.sleep(300);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    private static List<Integer> range(int from, int to) {
+        List<Integer> list = new ArrayList<Integer>();
+        for (int i = from; i < to; i++) {
+            list.add(i);
+        }
+        return list;
+    }
+
+    @Test
+    void storedInOrder() {
+        Recording pipeline = new Recording(generator());
+        pipeline.run(60);
+
+        assertEquals(range(0, 60), pipeline.stored);
+        assertEquals(60, dir.list().length);
+    }
+
+    @Test
+    void selectedIterationsStoredInTheirOrder() {
+        Recording pipeline = new Recording(generator());
+        pipeline.run(new int[]{9, 2, 40, 3});
+
+        assertEquals(Arrays.asList(9, 2, 40, 3), pipeline.stored);
+        assertEquals(4, dir.list().length);
+    }
+
+    @Test
+    void failureStopsAtTheLowestFailingIteration() throws Exception {
+        final int k = 13;
+        TestGenerator generator = generator();
+        assertTrue(generator.getAsmFile(k).createNewFile());
+
+        Recording pipeline = new Recording(generator);
+        pipeline.stallAfter = k - 1;
+        try {
+            pipeline.run(200);
+            fail("Iteration " + k + " was written over.");
+        } catch (RuntimeException re) {
+            assertTrue(re.getMessage().contains("already exists"), re
+                    .getMessage());
+        }
+
+        assertEquals(range(0, k), pipeline.stored);
+        // The generators did get past k, but nothing they wrote stayed.
+        int highest = pipeline.getHighest();
+        assertTrue(highest > k, "highest " + highest);
+        for (int i = 0; i <= highest + 1; i++) {
+            assertEquals(i <= k, generator.getAsmFile(i).exists(), "t_" + i);
+        }
+        assertEquals(k + 1, dir.list().length);
+    }
+}